@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a guild message going through onMessageReceived: the prefix check,
+ * the command lookup and the handler. Requests the handlers make are dropped.
+ *
+ * @author maikotui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+
+    /**
+     * A chat message, an unknown command, and two commands that reply
+     */
+    @Param({"hello everyone", "au+nothing", "au+ping", "au+roles"})
+    public String content;
+
+    private GameListener listener;
+    private MessageReceivedEvent event;
+
+    @Setup
+    public void setup() {
+        Metrics metrics = new Metrics();
+        RoleCatalog catalog = Fakes.roles();
+        listener = new GameListener(() -> catalog, false, Clock.systemUTC(), GameJournal.none(), metrics, Fakes.offlineGateway(metrics));
+
+        JDA jda = Fakes.jda(Fakes.selfUser(1, "Among Us+"));
+        TextChannel channel = Fakes.textChannel(jda, 10, 20);
+        User author = Fakes.user(100, "author");
+        event = new MessageReceivedEvent(jda, 0, Fakes.message(30, author, channel, content));
+    }
+
+    /**
+     * The listener's purge timer is not a daemon, so it would keep the fork
+     * alive
+     */
+    @TearDown
+    public void tearDown() {
+        listener.stop();
+    }
+
+    @Benchmark
+    public void onMessageReceived() {
+        listener.onMessageReceived(event);
+    }
+}
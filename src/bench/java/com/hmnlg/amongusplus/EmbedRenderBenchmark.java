@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import net.dv8tion.jda.core.entities.MessageEmbed;
+import net.dv8tion.jda.core.entities.SelfUser;
+import net.dv8tion.jda.core.entities.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures rendering a 10 player game's display message in each state, with
+ * the renderer's caches warm as they are while a game is running. Half of
+ * the players have chosen a role in PREGAME.
+ *
+ * @author maikotui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmbedRenderBenchmark {
+
+    @Param({"NEW", "PREGAME", "ACTIVE"})
+    public String state;
+
+    private GameEmbedRenderer renderer;
+    private GameManager game;
+    private SelfUser bot;
+
+    @Setup
+    public void setup() {
+        GameState gameState = GameState.valueOf(state);
+        RoleCatalog catalog = Fakes.roles();
+        List<User> lobby = Fakes.players(10);
+        List<GameRole> nonDefaultRoles = catalog.getRoles().stream().filter(role -> !role.isDefault).collect(Collectors.toList());
+        game = new GameManager(lobby.get(0), 10, lobby, catalog, nonDefaultRoles, Runnable::run);
+
+        Map<User, List<GameRole>> chosenRoles = new HashMap<>();
+        int chosen = gameState == GameState.PREGAME ? lobby.size() / 2 : gameState == GameState.ACTIVE ? lobby.size() : 0;
+        for (int i = 0; i < chosen; i++) {
+            chosenRoles.put(lobby.get(i), List.of(i < 2 ? catalog.getImposterRole() : catalog.getCrewRole()));
+        }
+        game.restore(gameState, chosenRoles, false, false, false);
+
+        renderer = new GameEmbedRenderer();
+        bot = Fakes.selfUser(1, "Among Us+");
+        renderer.render(game, bot);
+    }
+
+    @Benchmark
+    public MessageEmbed render() {
+        return renderer.render(game, bot);
+    }
+
+    @Benchmark
+    public MessageEmbed renderIfChanged() {
+        return renderer.renderIfChanged(game, bot);
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.entities.ChannelType;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.GuildVoiceState;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.PrivateChannel;
+import net.dv8tion.jda.core.entities.SelfUser;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.entities.VoiceChannel;
+import net.dv8tion.jda.core.requests.RestAction;
+
+/**
+ * Lightweight stand-ins for the JDA entities the bot reads. Each fake answers
+ * a fixed set of methods by name and returns null, zero or false for
+ * everything else, so requests built from them are null and must go through
+ * an offline gateway.
+ *
+ * @author maikotui
+ */
+final class Fakes {
+
+    /**
+     * Intentionally empty
+     */
+    private Fakes() {
+
+    }
+
+    /**
+     * Creates a fake of the given interface. Answers that are functions are
+     * called with the method's arguments; other answers are returned as they
+     * are.
+     *
+     * @param <T>
+     * @param type
+     * @param answers Method name -> answer
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T of(Class<T> type, Map<String, Object> answers) {
+        return (T) Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + answers.getOrDefault("getName", answers.get("getIdLong"));
+                default:
+            }
+
+            Object answer = answers.get(method.getName());
+            if (answer instanceof Function) {
+                return ((Function<Object[], Object>) answer).apply(args);
+            }
+            if (answer == null && method.getReturnType().isPrimitive()) {
+                return defaultOf(method.getReturnType());
+            }
+            return answer;
+        });
+    }
+
+    /**
+     * Gives the default value of the given primitive type
+     *
+     * @param type
+     * @return
+     */
+    private static Object defaultOf(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == void.class) {
+            return null;
+        }
+        return (byte) 0;
+    }
+
+    /**
+     * Creates a user with the given ID and name
+     *
+     * @param id
+     * @param name
+     * @return
+     */
+    static User user(long id, String name) {
+        return of(User.class, userAnswers(id, name));
+    }
+
+    /**
+     * Creates the bot's own user
+     *
+     * @param id
+     * @param name
+     * @return
+     */
+    static SelfUser selfUser(long id, String name) {
+        Map<String, Object> answers = userAnswers(id, name);
+        answers.put("isBot", true);
+        return of(SelfUser.class, answers);
+    }
+
+    private static Map<String, Object> userAnswers(long id, String name) {
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getIdLong", id);
+        answers.put("getId", Long.toString(id));
+        answers.put("getName", name);
+        answers.put("getAsMention", "<@" + id + ">");
+        answers.put("isBot", false);
+        return answers;
+    }
+
+    /**
+     * Creates the given number of players named player0, player1 and so on
+     *
+     * @param count
+     * @return
+     */
+    static List<User> players(int count) {
+        List<User> players = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            players.add(user(1000 + i, "player" + i));
+        }
+        return players;
+    }
+
+    /**
+     * Creates a connection whose own user is the given user
+     *
+     * @param self
+     * @return
+     */
+    static JDA jda(SelfUser self) {
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getSelfUser", self);
+        return of(JDA.class, answers);
+    }
+
+    /**
+     * Creates a text channel in a guild with the given IDs
+     *
+     * @param jda
+     * @param guildId
+     * @param channelId
+     * @return
+     */
+    static TextChannel textChannel(JDA jda, long guildId, long channelId) {
+        return textChannel(guild(jda, guildId, user -> null), channelId);
+    }
+
+    /**
+     * Creates a guild whose members are looked up with the given function
+     *
+     * @param jda
+     * @param guildId
+     * @param members User -> member, or null if not a member
+     * @return
+     */
+    static Guild guild(JDA jda, long guildId, Function<User, Member> members) {
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getIdLong", guildId);
+        answers.put("getJDA", jda);
+        answers.put("getMember", (Function<Object[], Object>) args -> members.apply((User) args[0]));
+        return of(Guild.class, answers);
+    }
+
+    /**
+     * Creates a text channel in the given guild
+     *
+     * @param guild
+     * @param channelId
+     * @return
+     */
+    static TextChannel textChannel(Guild guild, long channelId) {
+        JDA jda = guild.getJDA();
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getIdLong", channelId);
+        answers.put("getType", ChannelType.TEXT);
+        answers.put("getGuild", guild);
+        answers.put("getJDA", jda);
+        return of(TextChannel.class, answers);
+    }
+
+    /**
+     * Creates a member of a guild who is in the given voice channel
+     *
+     * @param user
+     * @param guild
+     * @param voiceChannel Null if not in a voice channel
+     * @return
+     */
+    static Member member(User user, Guild guild, VoiceChannel voiceChannel) {
+        Map<String, Object> voiceAnswers = new HashMap<>();
+        voiceAnswers.put("getChannel", voiceChannel);
+
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getUser", user);
+        answers.put("getGuild", guild);
+        answers.put("getEffectiveName", user.getName());
+        answers.put("getAsMention", user.getAsMention());
+        answers.put("getVoiceState", of(GuildVoiceState.class, voiceAnswers));
+        return of(Member.class, answers);
+    }
+
+    /**
+     * Creates a voice channel with the given members in it
+     *
+     * @param channelId
+     * @param members Filled in later is fine, it is read on every call
+     * @return
+     */
+    static VoiceChannel voiceChannel(long channelId, List<Member> members) {
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getIdLong", channelId);
+        answers.put("getMembers", members);
+        return of(VoiceChannel.class, answers);
+    }
+
+    /**
+     * Creates the private channel between the bot and the given user
+     *
+     * @param jda
+     * @param user
+     * @return
+     */
+    static PrivateChannel privateChannel(JDA jda, User user) {
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getIdLong", user.getIdLong());
+        answers.put("getUser", user);
+        answers.put("getType", ChannelType.PRIVATE);
+        answers.put("getJDA", jda);
+        return of(PrivateChannel.class, answers);
+    }
+
+    /**
+     * Creates a private message sent to the bot
+     *
+     * @param id
+     * @param channel
+     * @param content
+     * @return
+     */
+    static Message privateMessage(long id, PrivateChannel channel, String content) {
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getIdLong", id);
+        answers.put("getAuthor", channel.getUser());
+        answers.put("getChannel", channel);
+        answers.put("getPrivateChannel", channel);
+        answers.put("getChannelType", ChannelType.PRIVATE);
+        answers.put("isFromType", (Function<Object[], Object>) args -> args[0] == ChannelType.PRIVATE);
+        answers.put("getContentRaw", content);
+        answers.put("getContentDisplay", content);
+        answers.put("getJDA", channel.getJDA());
+        return of(Message.class, answers);
+    }
+
+    /**
+     * Creates a message sent to the given channel
+     *
+     * @param id
+     * @param author
+     * @param channel
+     * @param content
+     * @return
+     */
+    static Message message(long id, User author, TextChannel channel, String content) {
+        return message(id, author, null, channel, content);
+    }
+
+    /**
+     * Creates a message sent to the given channel by the given member
+     *
+     * @param id
+     * @param author
+     * @param member The author as a member of the channel's guild
+     * @param channel
+     * @param content
+     * @return
+     */
+    static Message message(long id, User author, Member member, TextChannel channel, String content) {
+        Map<String, Object> answers = new HashMap<>();
+        answers.put("getIdLong", id);
+        answers.put("getAuthor", author);
+        answers.put("getMember", member);
+        answers.put("getChannel", channel);
+        answers.put("getTextChannel", channel);
+        answers.put("getGuild", channel.getGuild());
+        answers.put("getChannelType", ChannelType.TEXT);
+        answers.put("isFromType", (Function<Object[], Object>) args -> args[0] == ChannelType.TEXT);
+        answers.put("getContentRaw", content);
+        answers.put("getContentDisplay", content);
+        answers.put("getJDA", channel.getJDA());
+        return of(Message.class, answers);
+    }
+
+    /**
+     * Creates a gateway that drops every request instead of sending it. The
+     * dropped requests are never answered, so the budgets are unlimited.
+     *
+     * @param metrics
+     * @return
+     */
+    static RestGateway offlineGateway(Metrics metrics) {
+        return new RestGateway(metrics, Long.MAX_VALUE, route -> Integer.MAX_VALUE) {
+            @Override
+            protected <T> void execute(RestRoute route, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+                // Dropped
+            }
+        };
+    }
+
+    /**
+     * Loads the roles bundled with the bot
+     *
+     * @return
+     */
+    static RoleCatalog roles() {
+        try ( InputStream in = Fakes.class.getClassLoader().getResourceAsStream("roles.yml")) {
+            return new RoleCatalog(CompiledRoles.loadYaml(in));
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.dv8tion.jda.core.entities.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the fuzzy name matchers: searching a guild's member name index
+ * the way padd and prem do, and picking the closest player of a 10 player
+ * game the way detect does. Names are random but the same every run.
+ *
+ * @author maikotui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameMatchBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int members;
+
+    private MemberNameIndex index;
+    private String exactQuery;
+    private String typoQuery;
+    private GameManager game;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(members);
+        List<String> names = new ArrayList<>(members);
+        index = new MemberNameIndex();
+        for (int i = 0; i < members; i++) {
+            String name = randomName(rand);
+            names.add(name);
+            index.add(name, i);
+        }
+
+        // The query for a typo swaps two letters of a member's name
+        exactQuery = names.get(members / 2).toUpperCase();
+        char[] typo = names.get(members / 3).toCharArray();
+        char first = typo[1];
+        typo[1] = typo[2];
+        typo[2] = first;
+        typoQuery = new String(typo);
+
+        List<User> lobby = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            lobby.add(Fakes.user(i, names.get(i)));
+        }
+        game = new GameManager(lobby.get(0), 10, lobby, Fakes.roles(), List.of(), Runnable::run);
+    }
+
+    /**
+     * Makes up a name of 4 to 12 lowercase letters and digits
+     *
+     * @param rand
+     * @return
+     */
+    private static String randomName(Random rand) {
+        String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789";
+        char[] name = new char[4 + rand.nextInt(9)];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = alphabet.charAt(rand.nextInt(alphabet.length()));
+        }
+        return new String(name);
+    }
+
+    @Benchmark
+    public List<MemberNameIndex.Match> searchExact() {
+        return index.search(exactQuery, 0);
+    }
+
+    @Benchmark
+    public List<MemberNameIndex.Match> searchTypo() {
+        return index.search(typoQuery, Math.min(3, typoQuery.length() / 2));
+    }
+
+    @Benchmark
+    public User findUserInGame() {
+        return GameListener.findUserInGame(typoQuery, game);
+    }
+}
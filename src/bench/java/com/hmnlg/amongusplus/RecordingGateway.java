@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.dv8tion.jda.core.requests.RestAction;
+
+/**
+ * A gateway that pretends to be Discord. Every request is counted by route
+ * and answered after a fixed delay on a small pool of threads, the way JDA
+ * runs callbacks on its own pool. The time spent in the bot's callbacks, and
+ * the time from a request being queued until it is answered, are recorded per
+ * route.
+ *
+ * @author maikotui
+ */
+class RecordingGateway extends RestGateway {
+
+    /**
+     * Answers the requests
+     */
+    private final ScheduledExecutorService discord;
+
+    private final long latencyInMicros;
+
+    /**
+     * Route -> what a request on that route answers with
+     */
+    private final Function<RestRoute, Object> responses;
+
+    private final Map<RestRoute, LongAdder> calls = new EnumMap<>(RestRoute.class);
+    private final Map<RestRoute, LongAdder> callbackNanos = new EnumMap<>(RestRoute.class);
+    private final Map<RestRoute, LongAdder> answers = new EnumMap<>(RestRoute.class);
+    private final Map<RestRoute, LongAdder> answerNanos = new EnumMap<>(RestRoute.class);
+
+    /**
+     * Creates a gateway that answers every request after the given delay.
+     *
+     * @param metrics
+     * @param maximumInFlight The most requests handed over at once, each
+     * route also keeps to its own budget. 0 for no limit.
+     * @param latencyInMicros
+     * @param responses Gives what a request on each route answers with
+     */
+    RecordingGateway(Metrics metrics, long maximumInFlight, long latencyInMicros, Function<RestRoute, Object> responses) {
+        super(metrics, maximumInFlight > 0 ? maximumInFlight : Long.MAX_VALUE, maximumInFlight > 0 ? RestRoute::getBudget : route -> Integer.MAX_VALUE);
+        this.latencyInMicros = latencyInMicros;
+        this.responses = responses;
+        for (RestRoute route : RestRoute.values()) {
+            calls.put(route, new LongAdder());
+            callbackNanos.put(route, new LongAdder());
+            answers.put(route, new LongAdder());
+            answerNanos.put(route, new LongAdder());
+        }
+        discord = Executors.newScheduledThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "FakeDiscord");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public <T> void queue(RestRoute route, RestPriority priority, Object key, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+        long queued = System.nanoTime();
+        super.queue(route, priority, key, action, result -> {
+            answerNanos.get(route).add(System.nanoTime() - queued);
+            answers.get(route).increment();
+            if (success != null) {
+                success.accept(result);
+            }
+        }, failure);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected <T> void execute(RestRoute route, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+        calls.get(route).increment();
+        discord.schedule(() -> {
+            long start = System.nanoTime();
+            try {
+                success.accept((T) responses.apply(route));
+            } catch (RuntimeException ex) {
+                Logger.getLogger(RecordingGateway.class.getName()).log(Level.WARNING, String.format("Callback of %s failed", route.getName()), ex);
+            }
+            callbackNanos.get(route).add(System.nanoTime() - start);
+        }, latencyInMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Gives the number of requests made on the given route
+     *
+     * @param route
+     * @return
+     */
+    long getCalls(RestRoute route) {
+        return calls.get(route).sum();
+    }
+
+    /**
+     * Gives the total time spent in the callbacks of the given route
+     *
+     * @param route
+     * @return
+     */
+    long getCallbackNanos(RestRoute route) {
+        return callbackNanos.get(route).sum();
+    }
+
+    /**
+     * Gives the average time from a request on the given route being queued
+     * until it was answered, including the time it waited for a budget
+     *
+     * @param route
+     * @return 0 if none was answered
+     */
+    long getAverageAnswerNanos(RestRoute route) {
+        long count = answers.get(route).sum();
+        return count == 0 ? 0 : answerNanos.get(route).sum() / count;
+    }
+
+    /**
+     * Stops answering requests
+     */
+    void shutdown() {
+        discord.shutdownNow();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import net.dv8tion.jda.core.entities.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures handing out the non-default roles once every player has chosen
+ * crewmate or imposter. One in five players is an imposter; every
+ * non-default role is in play, as long as there are enough crewmates for
+ * them.
+ * <p>
+ * A single distribution is too short to be timed on its own, so each
+ * invocation distributes the roles of a batch of games that were all reset
+ * before it.
+ *
+ * @author maikotui
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleDistributionBenchmark {
+
+    /**
+     * The number of games distributed per invocation
+     */
+    private static final int batchSize = 100;
+
+    @Param({"4", "10", "25", "50", "100"})
+    public int players;
+
+    private List<GameManager> games;
+    private Map<User, List<GameRole>> chosenRoles;
+
+    @Setup
+    public void setup() {
+        RoleCatalog catalog = Fakes.roles();
+        List<User> lobby = Fakes.players(players);
+        int imposters = Math.max(1, players / 5);
+        List<GameRole> nonDefaultRoles = catalog.getRoles().stream()
+                .filter(role -> !role.isDefault)
+                .limit(players - imposters)
+                .collect(Collectors.toList());
+
+        games = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            games.add(new GameManager(lobby.get(0), 10, lobby, catalog, nonDefaultRoles, Runnable::run));
+        }
+        chosenRoles = new HashMap<>();
+        for (int i = 0; i < lobby.size(); i++) {
+            chosenRoles.put(lobby.get(i), List.of(i < imposters ? catalog.getImposterRole() : catalog.getCrewRole()));
+        }
+    }
+
+    /**
+     * Takes every player of every game back to only holding the role they
+     * chose
+     */
+    @Setup(Level.Invocation)
+    public void chooseRoles() {
+        for (GameManager game : games) {
+            game.resetGame();
+            game.restore(GameState.PREGAME, chosenRoles, false, false, false);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(batchSize)
+    public void distributeNonDefaultRoles(Blackhole blackhole) throws GeneralGameException {
+        for (GameManager game : games) {
+            blackhole.consume(game.distributeNonDefaultRoles());
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.MessageReaction;
+import net.dv8tion.jda.core.entities.PrivateChannel;
+import net.dv8tion.jda.core.entities.SelfUser;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.events.Event;
+import net.dv8tion.jda.core.events.message.GenericMessageEvent;
+import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.core.events.message.priv.PrivateMessageReceivedEvent;
+import net.dv8tion.jda.core.events.message.react.MessageReactionAddEvent;
+import net.dv8tion.jda.core.hooks.EventListener;
+import net.dv8tion.jda.core.hooks.IEventManager;
+import net.dv8tion.jda.core.hooks.InterfacedEventManager;
+import net.dv8tion.jda.core.requests.RestAction;
+
+/**
+ * Plays whole games against a GameListener without a connection to Discord.
+ * Every simulated guild creates a game, starts it, has every player pick a
+ * role, uses its abilities and stops it, all at the same time as the other
+ * guilds. Events are handed to an event manager on a single event thread like
+ * JDA does, and requests are answered by a RecordingGateway.
+ * <p>
+ * Prints the throughput, the latency of each step from the event being sent
+ * until its effect is seen, and the requests made per game. Options are given
+ * as --name=value (the dashes are optional): guilds, players, drivers (guilds
+ * played at once), rest-latency-ms, rest-in-flight (the gateway's budget of
+ * requests in flight, 0 for no limit), events (jda to handle events on the event
+ * thread like JDA's own manager, or virtual to use the
+ * VirtualThreadEventManager), event-concurrency (its cap) and
+ * slow-handler-ms (how long every event of every tenth guild blocks its
+ * handler, as a handler waiting on I/O would).
+ *
+ * @author maikotui
+ */
+public class Simulator {
+
+    /**
+     * How soon a driver first checks again whether the bot has finished a
+     * step. Doubled after every check up to the maximum, so waiting drivers
+     * don't starve the bot of CPU time.
+     */
+    private static final long minimumPollIntervalInNanos = 50000;
+    private static final long maximumPollIntervalInNanos = 2000000;
+
+    /**
+     * How long a step may take before the game is given up on
+     */
+    private static final long stepTimeoutInNanos = TimeUnit.SECONDS.toNanos(30);
+
+    private final int guilds;
+    private final int playersPerGame;
+    private final int drivers;
+    private final boolean virtualThreadEvents;
+    private final long slowHandlerInMillis;
+
+    private final JDA jda;
+    private final RecordingGateway rest;
+    private final GameListener listener;
+
+    /**
+     * Hands the events to the listener
+     */
+    private final IEventManager eventManager;
+
+    /**
+     * Delivers events to the event manager one at a time
+     */
+    private final ExecutorService eventThread;
+
+    private final AtomicLong nextMessageId = new AtomicLong(100000000L);
+    private final TextChannel responseChannel;
+
+    private final Map<Step, ConcurrentLinkedQueue<Long>> stepNanos = new EnumMap<>(Step.class);
+    private final LongAdder events = new LongAdder();
+    private final AtomicInteger completedGames = new AtomicInteger();
+    private final AtomicInteger failedGames = new AtomicInteger();
+
+    /**
+     * Runs the simulation with the given options and prints the report.
+     *
+     * @param args Options as --name=value or name=value
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "true");
+        }
+
+        Simulator simulator = new Simulator(
+                Integer.parseInt(options.getOrDefault("guilds", "5000")),
+                Integer.parseInt(options.getOrDefault("players", "6")),
+                Integer.parseInt(options.getOrDefault("drivers", "100")),
+                Long.parseLong(options.getOrDefault("rest-latency-ms", "20")),
+                Long.parseLong(options.getOrDefault("rest-in-flight", "50")),
+                options.getOrDefault("events", "jda").equals("virtual") ? Integer.parseInt(options.getOrDefault("event-concurrency", "256")) : 0,
+                Long.parseLong(options.getOrDefault("slow-handler-ms", "0")));
+        boolean allCompleted = simulator.run();
+
+        // The listener's purge timer would keep the JVM alive
+        System.exit(allCompleted ? 0 : 1);
+    }
+
+    /**
+     * Creates a simulation against a fresh GameListener.
+     *
+     * @param guilds The number of games to play, one per guild
+     * @param playersPerGame Including the owner. At least 2.
+     * @param drivers The number of games played at once
+     * @param restLatencyInMillis How long every request takes to answer
+     * @param restInFlight The most requests in flight at once, 0 for no limit
+     * @param eventConcurrency The cap of the VirtualThreadEventManager, or 0
+     * to handle events on the event thread
+     * @param slowHandlerInMillis How long every event of every tenth guild
+     * blocks its handler
+     */
+    public Simulator(int guilds, int playersPerGame, int drivers, long restLatencyInMillis, long restInFlight, int eventConcurrency, long slowHandlerInMillis) {
+        if (playersPerGame < 2) {
+            throw new IllegalArgumentException("A game needs at least 2 players.");
+        }
+        this.guilds = guilds;
+        this.playersPerGame = playersPerGame;
+        this.drivers = drivers;
+        this.virtualThreadEvents = eventConcurrency > 0;
+        this.slowHandlerInMillis = slowHandlerInMillis;
+        for (Step step : Step.values()) {
+            stepNanos.put(step, new ConcurrentLinkedQueue<>());
+        }
+
+        SelfUser bot = Fakes.selfUser(1, "Among Us+");
+        jda = Fakes.jda(bot);
+        responseChannel = Fakes.textChannel(jda, 0, 0);
+
+        Metrics metrics = new Metrics();
+        rest = new RecordingGateway(metrics, restInFlight, TimeUnit.MILLISECONDS.toMicros(restLatencyInMillis), this::respond);
+        RoleCatalog catalog = Fakes.roles();
+        listener = new GameListener(() -> catalog, false, Clock.systemUTC(), GameJournal.none(), metrics, rest);
+        eventManager = virtualThreadEvents ? new VirtualThreadEventManager(eventConcurrency, metrics) : new InterfacedEventManager();
+        eventManager.register((EventListener) this::blockIfSlow);
+        eventManager.register(listener);
+        eventThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SimulatedEvents");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gives what a request on the given route answers with
+     *
+     * @param route
+     * @return
+     */
+    private Object respond(RestRoute route) {
+        return switch (route) {
+            case MESSAGE_SEND, PRIVATE_MESSAGE_SEND ->
+                Fakes.message(nextMessageId.incrementAndGet(), jda.getSelfUser(), responseChannel, "");
+            case PRIVATE_CHANNEL_OPEN ->
+                Fakes.privateChannel(jda, jda.getSelfUser());
+            default ->
+                null;
+        };
+    }
+
+    /**
+     * Plays every game and prints the report.
+     *
+     * @return True if every game was played to the end.
+     * @throws InterruptedException
+     */
+    public boolean run() throws InterruptedException {
+        ExecutorService driverPool = Executors.newFixedThreadPool(drivers, runnable -> {
+            Thread thread = new Thread(runnable, "SimulatedGuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < guilds; i++) {
+            int guild = i;
+            driverPool.execute(() -> playGame(guild));
+        }
+        driverPool.shutdown();
+        driverPool.awaitTermination(1, TimeUnit.DAYS);
+        long elapsed = System.nanoTime() - start;
+
+        printReport(elapsed);
+        rest.shutdown();
+        listener.stop();
+        eventThread.shutdownNow();
+        return failedGames.get() == 0;
+    }
+
+    /**
+     * Plays one game in its own guild from creation until it is stopped
+     *
+     * @param index
+     */
+    private void playGame(int index) {
+        // Everyone is in the owner's voice channel
+        long guildId = 1000000L + index;
+        List<Member> voiceMembers = new ArrayList<>();
+        Map<User, Member> members = new HashMap<>();
+        Guild guild = Fakes.guild(jda, guildId, members::get);
+        TextChannel channel = Fakes.textChannel(guild, 2000000L + index);
+        List<User> players = new ArrayList<>();
+        for (int i = 0; i < playersPerGame; i++) {
+            User player = Fakes.user(10000000L + (long) index * playersPerGame + i, String.format("guild%dplayer%d", index, i));
+            Member member = Fakes.member(player, guild, Fakes.voiceChannel(3000000L + index, voiceMembers));
+            players.add(player);
+            members.put(player, member);
+            voiceMembers.add(member);
+        }
+        User owner = players.get(0);
+
+        // Create
+        long stepStart = System.nanoTime();
+        emit(new MessageReceivedEvent(jda, 0, Fakes.message(nextMessageId.incrementAndGet(), owner, members.get(owner), channel, "au+create veto ex")));
+        if (!await(index, Step.CREATE, stepStart, () -> {
+            GameManager created = listener.getGame(guildId, owner.getIdLong());
+            return created != null && created.displayMessge != null;
+        })) {
+            return;
+        }
+        GameManager game = listener.getGame(guildId, owner.getIdLong());
+        long displayId = game.displayMessge.getIdLong();
+
+        // Start
+        stepStart = System.nanoTime();
+        emit(reaction(owner, channel, displayId, "\u2705"));
+        if (!await(index, Step.START, stepStart, () -> game.getState() == GameState.PREGAME)) {
+            return;
+        }
+
+        // Everyone picks a role, the second player is the imposter
+        stepStart = System.nanoTime();
+        for (int i = 0; i < players.size(); i++) {
+            emit(reaction(players.get(i), channel, displayId, i == 1 ? "\uD83C\uDDEE" : "\uD83C\uDDE8"));
+        }
+        if (!await(index, Step.READY, stepStart, () -> game.getState() == GameState.ACTIVE)) {
+            return;
+        }
+
+        // Everyone tries to veto, only the veto holder can
+        for (User player : players) {
+            PrivateChannel privateChannel = Fakes.privateChannel(jda, player);
+            emit(new PrivateMessageReceivedEvent(jda, 0, Fakes.privateMessage(nextMessageId.incrementAndGet(), privateChannel, "veto")));
+        }
+
+        // Stop
+        stepStart = System.nanoTime();
+        emit(reaction(owner, channel, displayId, "\uD83D\uDED1"));
+        if (!await(index, Step.STOP, stepStart, () -> listener.getGame(guildId, owner.getIdLong()) == null)) {
+            return;
+        }
+        completedGames.incrementAndGet();
+    }
+
+    /**
+     * Creates the event of the given user reacting to the given message
+     *
+     * @param user
+     * @param channel
+     * @param messageId
+     * @param emoji
+     * @return
+     */
+    private MessageReactionAddEvent reaction(User user, TextChannel channel, long messageId, String emoji) {
+        MessageReaction reaction = new MessageReaction(channel, new MessageReaction.ReactionEmote(emoji, null, jda), messageId, false, 1) {
+            @Override
+            public RestAction<Void> removeReaction(User user) {
+                // Answered by the gateway
+                return null;
+            }
+        };
+        return new MessageReactionAddEvent(jda, 0, user, reaction);
+    }
+
+    /**
+     * Hands the given event to the event manager on the event thread
+     *
+     * @param event
+     */
+    private void emit(Event event) {
+        events.increment();
+        eventThread.execute(() -> eventManager.handle(event));
+    }
+
+    /**
+     * Blocks the handler of the given event if it is from every tenth guild.
+     * Runs before the listener.
+     *
+     * @param event
+     */
+    private void blockIfSlow(Event event) {
+        if (slowHandlerInMillis > 0 && event instanceof GenericMessageEvent) {
+            Guild guild = ((GenericMessageEvent) event).getGuild();
+            if (guild != null && guild.getIdLong() % 10 == 0) {
+                try {
+                    Thread.sleep(slowHandlerInMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the bot to finish a step and records how long it took.
+     *
+     * @param guild
+     * @param step
+     * @param stepStart When the step's first event was sent
+     * @param done
+     * @return False if the step timed out. The game is counted as failed.
+     */
+    private boolean await(int guild, Step step, long stepStart, BooleanSupplier done) {
+        long pollInterval = minimumPollIntervalInNanos;
+        while (!done.getAsBoolean()) {
+            if (System.nanoTime() - stepStart > stepTimeoutInNanos) {
+                Logger.getLogger(Simulator.class.getName()).log(Level.WARNING, String.format("Guild %d gave up waiting for %s", guild, step.name().toLowerCase()));
+                failedGames.incrementAndGet();
+                return false;
+            }
+            LockSupport.parkNanos(pollInterval);
+            pollInterval = Math.min(pollInterval * 2, maximumPollIntervalInNanos);
+        }
+        stepNanos.get(step).add(System.nanoTime() - stepStart);
+        return true;
+    }
+
+    /**
+     * Prints the throughput, step latencies and requests per game
+     *
+     * @param elapsedNanos
+     */
+    private void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        int completed = completedGames.get();
+        System.out.println(String.format("Played %d games of %d players in %.2f s with %d drivers", guilds, playersPerGame, seconds, drivers));
+        System.out.println(String.format("Events handled %s, slow handlers: %d ms", virtualThreadEvents ? "on virtual threads" : "on the event thread", slowHandlerInMillis));
+        System.out.println(String.format("Completed: %d, failed: %d", completed, failedGames.get()));
+        System.out.println(String.format("Throughput: %.1f games/s, %.1f events/s", completed / seconds, events.sum() / seconds));
+
+        System.out.println();
+        System.out.println(String.format("%-8s %8s %10s %10s %10s %10s", "step", "count", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        stepNanos.forEach((step, samples) -> {
+            long[] sorted = samples.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            System.out.println(String.format("%-8s %8d %10.2f %10.2f %10.2f %10.2f", step.name().toLowerCase(), sorted.length,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 1)));
+        });
+
+        System.out.println();
+        System.out.println(String.format("%-22s %10s %10s %16s %14s", "route", "requests", "per game", "avg callback us", "avg answer ms"));
+        for (RestRoute route : RestRoute.values()) {
+            long calls = rest.getCalls(route);
+            if (calls > 0) {
+                System.out.println(String.format("%-22s %10d %10.2f %16.1f %14.2f", route.getName(), calls, (double) calls / guilds, rest.getCallbackNanos(route) / 1000.0 / calls, rest.getAverageAnswerNanos(route) / 1e6));
+            }
+        }
+    }
+
+    /**
+     * Gives the given percentile of the sorted samples in milliseconds
+     *
+     * @param sorted
+     * @param percentile Between 0 and 1
+     * @return
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * The steps of a game that are timed
+     */
+    private enum Step {
+        CREATE, START, READY, STOP
+    }
+}
@@ -16,48 +16,228 @@
  */
 package com.hmnlg.amongusplus;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.events.message.priv.PrivateMessageReceivedEvent;
 import net.dv8tion.jda.core.hooks.ListenerAdapter;
 
 /**
  * A ListenerAdapter for the JDA Bot that will listen for admin commands from my
- * discord account
+ * discord account. Commands that act on games take an optional shard ID and
+ * act on every shard without one. When several processes share the shards,
+ * commands for shards of other processes are forwarded to them through the
+ * coordination store, and they reply themselves.
  *
  * @author maikotui
  */
 public class AdminListener extends ListenerAdapter {
 
-    private final JDA api;
-    private GameListener currentGameListener;
+    /**
+     * The listener and connection of every shard
+     */
+    private final GameShards shards;
 
-    public AdminListener(JDA api, GameListener gameListener) {
-        this.api = api;
-        currentGameListener = gameListener;
+    /**
+     * Runs restarts one at a time, away from the event threads. A restart
+     * waits for every event of a shard to finish, so one that ran on an event
+     * thread could wait for another restart waiting for it.
+     */
+    private final ExecutorService restarts;
+
+    public AdminListener(GameShards shards) {
+        this.shards = shards;
+        this.restarts = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AdminRestart");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
     public void onPrivateMessageReceived(PrivateMessageReceivedEvent event) {
         if ("258698313266626560".equals(event.getAuthor().getId())) {
-            if (event.getMessage().getContentRaw().equalsIgnoreCase("au+debug")) {
-                if (currentGameListener.toggleDebug()) {
-                    event.getMessage().getChannel().sendMessage("debug mode on").queue();
-                } else {
-                    event.getMessage().getChannel().sendMessage("debug mode off").queue();
+            String[] words = event.getMessage().getContentRaw().trim().split("\\s+");
+            String argument = words.length > 1 ? words[1] : null;
+            switch (words[0].toLowerCase()) {
+                case "au+debug" ->
+                    forEachShard(event, argument, shardId -> shards.getListener(shardId).toggleDebug() ? "debug mode on" : "debug mode off");
+                case "au+adminping" ->
+                    reply(event, "adminpong");
+                case "au+stats" ->
+                    forEachShard(event, argument, shardId -> {
+                        String stats = shards.getListener(shardId).getCommandStats();
+                        return stats.isEmpty() ? "no commands registered" : "\n" + stats;
+                    });
+                case "au+restart" ->
+                    restarts.execute(() -> forEachShard(event, argument, this::restart));
+                case "au+shards" ->
+                    forEachShard(event, null, this::describe);
+                default -> {
                 }
             }
+        }
+    }
 
-            if (event.getMessage().getContentRaw().equalsIgnoreCase("au+adminping")) {
-                event.getMessage().getChannel().sendMessage("adminpong").queue();
+    /**
+     * Runs an admin command on the given shard, or on every shard if none is
+     * given, and replies with what each shard answered.
+     *
+     * @param event
+     * @param argument The shard ID, or null for every shard
+     * @param command Shard ID -> answer
+     */
+    private void forEachShard(PrivateMessageReceivedEvent event, String argument, IntFunction<String> command) {
+        List<Integer> shardIds = new ArrayList<>(shards.getListeners().keySet());
+        Map<Integer, CoordinationStore.Lease> otherShards = getShardsOfOtherProcesses(event);
+        if (argument != null) {
+            try {
+                int shardId = Integer.parseInt(argument);
+                if (otherShards.containsKey(shardId)) {
+                    forward(event, shardId, otherShards.get(shardId).ownerId);
+                    return;
+                }
+                if (!shardIds.contains(shardId)) {
+                    reply(event, String.format("no shard %d, there are %d", shardId, shardIds.size() + otherShards.size()));
+                    return;
+                }
+                shardIds = List.of(shardId);
+            } catch (NumberFormatException ex) {
+                reply(event, "not a shard ID: " + argument);
+                return;
             }
+        } else {
+            // Every other process runs the command on all of its own shards
+            Map<String, Integer> processes = new TreeMap<>();
+            otherShards.values().forEach(lease -> processes.merge(lease.ownerId, lease.shardId, Math::min));
+            processes.forEach((processId, shardId) -> forward(event, shardId, processId));
+        }
 
-            if (event.getMessage().getContentRaw().equalsIgnoreCase("au+restart")) {
-                api.removeEventListener(currentGameListener);
-                GameListener newGameListener = new GameListener(currentGameListener);
-                api.addEventListener(newGameListener);
-                currentGameListener = newGameListener;
-                event.getMessage().getChannel().sendMessage("restarted game").queue();
-            }
+        StringJoiner answers = new StringJoiner("\n");
+        shardIds.forEach(shardId -> answers.add(String.format("shard %d: %s", shardId, command.apply(shardId))));
+        reply(event, answers.toString());
+    }
+
+    /**
+     * Gives the shards other processes hold the lease of
+     *
+     * @param event The command, which isn't forwarded if it was forwarded to
+     * this process
+     * @return Shard ID -> lease. Empty if this process runs every shard or the
+     * command was forwarded.
+     */
+    private Map<Integer, CoordinationStore.Lease> getShardsOfOtherProcesses(PrivateMessageReceivedEvent event) {
+        Map<Integer, CoordinationStore.Lease> otherShards = new TreeMap<>();
+        CoordinationStore store = shards.getCoordinationStore();
+        if (store == null || event instanceof ForwardedPrivateMessageEvent) {
+            return otherShards;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            store.getLeases().forEach((shardId, lease) -> {
+                if (lease.expiresAtMillis > now && !shards.getListeners().containsKey(shardId)) {
+                    otherShards.put(shardId, lease);
+                }
+            });
+        } catch (IOException ex) {
+            Logger.getLogger(AdminListener.class.getName()).log(Level.WARNING, "Could not read the shards of other processes", ex);
+            reply(event, "could not reach the other processes: " + ex.getMessage());
+        }
+        return otherShards;
+    }
+
+    /**
+     * Forwards the given command to the process running the given shard
+     *
+     * @param event
+     * @param shardId
+     * @param processId The process running the shard
+     */
+    private void forward(PrivateMessageReceivedEvent event, int shardId, String processId) {
+        try {
+            shards.getCoordinationStore().forward(new CoordinationStore.ForwardedMessage(shardId, event.getAuthor().getIdLong(), event.getMessageIdLong()));
+        } catch (IOException ex) {
+            reply(event, String.format("could not forward to %s: %s", processId, ex.getMessage()));
+        }
+    }
+
+    /**
+     * Hands the games of the given shard over to a new GameListener. No events
+     * of the shard are handled until this is done.
+     *
+     * @param shardId
+     * @return
+     */
+    private String restart(int shardId) {
+        JDA jda = shards.getConnection(shardId);
+        if (jda == null) {
+            return "not connected";
+        }
+
+        long start = System.nanoTime();
+        Handover handover = shards.getExclusiveExecutor(shardId).call(() -> {
+            GameListener currentGameListener = shards.getListener(shardId);
+            boolean drained = currentGameListener.freeze(5000);
+            jda.removeEventListener(currentGameListener);
+            GameListener newGameListener = new GameListener(currentGameListener);
+            shards.setListener(shardId, newGameListener);
+            jda.addEventListener(newGameListener);
+            return new Handover(newGameListener, drained);
+        });
+        long pauseInMillis = (System.nanoTime() - start) / 1000000;
+        return String.format("restarted game, handed over %d game(s), paused for %d ms%s",
+                handover.listener.getGameCount(), pauseInMillis, handover.drained ? "" : " (some games were still busy)");
+    }
+
+    /**
+     * Describes the connection and games of the given shard
+     *
+     * @param shardId
+     * @return
+     */
+    private String describe(int shardId) {
+        JDA jda = shards.getConnection(shardId);
+        int games = shards.getListener(shardId).getGameCount();
+        if (jda == null) {
+            return String.format("not connected, %d game(s)", games);
+        }
+        return String.format("%s, ping %d ms, %d guild(s), %d game(s)", jda.getStatus(), jda.getPing(), jda.getGuilds().size(), games);
+    }
+
+    /**
+     * Replies to the given admin command
+     *
+     * @param event
+     * @param message
+     */
+    private void reply(PrivateMessageReceivedEvent event, String message) {
+        shards.getListener(GameShards.shardOf(event.getJDA())).getRestGateway().queue(RestRoute.MESSAGE_SEND, event.getMessage().getChannel().sendMessage(message));
+    }
+
+    /**
+     * The result of handing a shard over to a new GameListener
+     */
+    private static class Handover {
+
+        private final GameListener listener;
+
+        /**
+         * Whether every game finished its work before the handover
+         */
+        private final boolean drained;
+
+        Handover(GameListener listener, boolean drained) {
+            this.listener = listener;
+            this.drained = drained;
         }
     }
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Routes text commands to their handlers. A message is tokenized once into a
+ * command word and its arguments, and the command word is looked up in a hash
+ * table instead of being compared against every known command.
+ * <p>
+ * A command is timed from dispatch until it is handled. A handler that only
+ * queues its work somewhere else calls defer and marks the returned
+ * completion done once that work ran, so the time includes the wait.
+ *
+ * @author maikotui
+ * @param <E> The type of event the commands are run with
+ */
+public class CommandRegistry<E> {
+
+    /**
+     * Prefix that must be used for commands to be recognized
+     */
+    private final String prefix;
+
+    /**
+     * All registered commands keyed by their command word (and aliases)
+     */
+    private final Map<String, RegisteredCommand<E>> commands;
+
+    /**
+     * Told the name and duration of every command that runs
+     */
+    private volatile ObjLongConsumer<String> observer = (name, nanos) -> {
+    };
+
+    /**
+     * The command being dispatched on the current thread
+     */
+    private static final ThreadLocal<Completion> dispatching = new ThreadLocal<>();
+
+    /**
+     * Creates an empty registry for commands that start with the given prefix.
+     *
+     * @param prefix The prefix every command must start with. Can be empty.
+     */
+    public CommandRegistry(String prefix) {
+        this.prefix = prefix;
+        this.commands = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Registers a command under the given name and any number of aliases.
+     *
+     * @param name The command word (without prefix)
+     * @param handler The handler to run when the command is received
+     * @param aliases Other command words that run the same handler
+     * @throws IllegalArgumentException if the name or an alias is already taken
+     */
+    public void register(String name, Command<E> handler, String... aliases) {
+        RegisteredCommand<E> command = new RegisteredCommand<>(name, handler);
+        claim(name, command);
+        for (String alias : aliases) {
+            claim(alias, command);
+        }
+    }
+
+    /**
+     * Sets what is told the name and duration of every command that runs, in
+     * addition to the statistics kept here.
+     *
+     * @param observer
+     */
+    public void setObserver(ObjLongConsumer<String> observer) {
+        this.observer = observer;
+    }
+
+    /**
+     * Adds the given command word to the lookup table.
+     *
+     * @param word
+     * @param command
+     */
+    private void claim(String word, RegisteredCommand<E> command) {
+        if (commands.putIfAbsent(word, command) != null) {
+            throw new IllegalArgumentException(String.format("The command '%s' is already registered.", word));
+        }
+    }
+
+    /**
+     * Parses the given message content and runs the matching command.
+     *
+     * @param content The raw text of the message
+     * @param event The event to hand to the command
+     * @return True if a command was found and ran. False otherwise.
+     */
+    public boolean dispatch(String content, E event) {
+        int wordEnd = commandWordEnd(content);
+        RegisteredCommand<E> command = wordEnd < 0 ? null : commands.get(content.substring(prefix.length(), wordEnd));
+        if (command == null) {
+            return false;
+        }
+
+        String args = content.substring(wordEnd).trim();
+        Completion completion = new Completion(command, observer);
+        dispatching.set(completion);
+        try {
+            command.handler.run(event, args);
+        } finally {
+            dispatching.remove();
+            if (!completion.deferred) {
+                completion.done();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells the command being dispatched on the current thread that it is not
+     * handled when its handler returns. It is timed until the returned
+     * completion is marked done instead.
+     *
+     * @return The completion to mark done once, when the command's work ran.
+     * Does nothing if no command is being dispatched.
+     */
+    public static Completion defer() {
+        Completion completion = dispatching.get();
+        if (completion == null) {
+            return Completion.none;
+        }
+        completion.deferred = true;
+        return completion;
+    }
+
+    /**
+     * Checks whether the given message content is one of the registered
+     * commands, without running it.
+     *
+     * @param content The raw text of the message
+     * @return
+     */
+    public boolean matches(String content) {
+        int wordEnd = commandWordEnd(content);
+        return wordEnd >= 0 && commands.containsKey(content.substring(prefix.length(), wordEnd));
+    }
+
+    /**
+     * Finds where the command word of the given message content ends
+     *
+     * @param content
+     * @return -1 if the content doesn't start with the prefix
+     */
+    private int commandWordEnd(String content) {
+        if (!content.startsWith(prefix)) {
+            return -1;
+        }
+        int wordEnd = prefix.length();
+        while (wordEnd < content.length() && !Character.isWhitespace(content.charAt(wordEnd))) {
+            wordEnd++;
+        }
+        return wordEnd;
+    }
+
+    /**
+     * Gives the latency statistics of every registered command keyed by command
+     * name.
+     *
+     * @return
+     */
+    public Map<String, CommandStats> getStats() {
+        Map<String, CommandStats> stats = new TreeMap<>();
+        commands.values().forEach(command -> stats.put(command.name, command.stats));
+        return stats;
+    }
+
+    /**
+     * Gives a human readable summary of the command latency statistics.
+     *
+     * @return
+     */
+    public String statsToString() {
+        StringBuilder sb = new StringBuilder();
+        getStats().forEach((name, stats) -> sb.append(prefix).append(name).append(" - ").append(stats).append("\n"));
+        return sb.toString();
+    }
+
+    /**
+     * Records the time a single command took once it is done
+     */
+    public static class Completion {
+
+        /**
+         * A completion that records nothing
+         */
+        private static final Completion none = new Completion(null, null);
+
+        private final RegisteredCommand<?> command;
+        private final ObjLongConsumer<String> observer;
+        private final long start;
+        private boolean deferred;
+
+        private Completion(RegisteredCommand<?> command, ObjLongConsumer<String> observer) {
+            this.command = command;
+            this.observer = observer;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Records that the command is handled now
+         */
+        public void done() {
+            if (command == null) {
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            command.stats.record(nanos);
+            observer.accept(command.name, nanos);
+        }
+    }
+
+    /**
+     * A command handler together with its name and statistics
+     *
+     * @param <E>
+     */
+    private static class RegisteredCommand<E> {
+
+        private final String name;
+        private final Command<E> handler;
+        private final CommandStats stats = new CommandStats();
+
+        RegisteredCommand(String name, Command<E> handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+}
+
+/**
+ * A handler for a single text command.
+ *
+ * @author maikotui
+ * @param <E> The type of event the command is run with
+ */
+@FunctionalInterface
+interface Command<E> {
+
+    /**
+     * Runs the command.
+     *
+     * @param event The event that issued the command
+     * @param args Everything after the command word, trimmed. Empty if nothing
+     * was given.
+     */
+    void run(E event, String args);
+}
+
+/**
+ * Keeps count of how often a command ran and how long it took.
+ *
+ * @author maikotui
+ */
+class CommandStats {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a single run of the command
+     *
+     * @param nanos How long the run took
+     */
+    void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Gives the number of times the command ran
+     *
+     * @return
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gives the total time spent in the command
+     *
+     * @return
+     */
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /**
+     * Gives the longest single run of the command
+     *
+     * @return
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long runs = getCount();
+        long averageMicros = runs == 0 ? 0 : getTotalNanos() / runs / 1000;
+        return String.format("runs: %d, avg: %dus, max: %dus", runs, averageMicros, getMaxNanos() / 1000);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Reads and writes the compiled form of roles.yml. The build runs main to
+ * validate roles.yml and write roles.bin next to the compiled classes; at
+ * startup the roles are read back with plain stream reads instead of parsing
+ * YAML and building roles through reflection.
+ *
+ * @author maikotui
+ */
+public class CompiledRoles {
+
+    /**
+     * The name of the compiled roles on the classpath
+     */
+    public static final String resourceName = "roles.bin";
+
+    /**
+     * Marks the start of a compiled roles file ("AU+R")
+     */
+    private static final int magic = 0x41552B52;
+
+    /**
+     * Bumped whenever the layout below changes
+     */
+    private static final int formatVersion = 1;
+
+    /**
+     * Intentionally empty
+     */
+    private CompiledRoles() {
+
+    }
+
+    /**
+     * Validates a roles.yml file and compiles it.
+     *
+     * @param args The roles.yml to read and the file to write the compiled
+     * roles to.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: CompiledRoles <roles.yml> <roles.bin>");
+        }
+
+        List<GameRole> roles = loadYaml(Paths.get(args[0]));
+        validate(roles);
+
+        Path output = Paths.get(args[1]);
+        if (output.getParent() != null) {
+            Files.createDirectories(output.getParent());
+        }
+        try ( OutputStream out = Files.newOutputStream(output)) {
+            write(roles, out);
+        }
+        System.out.println(String.format("Compiled %d roles from %s to %s", roles.size(), args[0], args[1]));
+    }
+
+    /**
+     * Reads the roles from the given roles.yml file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static List<GameRole> loadYaml(Path file) throws IOException {
+        try ( InputStream in = Files.newInputStream(file)) {
+            return loadYaml(in);
+        }
+    }
+
+    /**
+     * Reads the roles from the given roles.yml contents
+     *
+     * @param in
+     * @return
+     */
+    public static List<GameRole> loadYaml(InputStream in) {
+        Map<Object, List<GameRole>> temp = new Yaml().load(in);
+        if (temp == null || temp.get("roles") == null) {
+            throw new IllegalArgumentException("No 'roles' list found.");
+        }
+        return temp.get("roles");
+    }
+
+    /**
+     * Checks everything the catalog checks, and also that every unstackable
+     * role is listed on both roles.
+     *
+     * @param roles
+     * @throws IllegalArgumentException If the roles are not valid
+     */
+    public static void validate(List<GameRole> roles) {
+        // Unique IDs, known unstackable IDs, alias collisions
+        new RoleCatalog(roles);
+
+        Map<Integer, GameRole> rolesById = new HashMap<>();
+        roles.forEach(role -> rolesById.put(role.id, role));
+        for (GameRole role : roles) {
+            if (role.unstackableRoleIds == null) {
+                continue;
+            }
+            for (int unstackableRoleId : role.unstackableRoleIds) {
+                if (!lists(rolesById.get(unstackableRoleId), role.id)) {
+                    throw new IllegalArgumentException(String.format("'%s' lists '%s' as unstackable but '%s' does not list '%s'.", role.name, rolesById.get(unstackableRoleId).name, rolesById.get(unstackableRoleId).name, role.name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the given role lists the given ID as unstackable
+     *
+     * @param role
+     * @param id
+     * @return
+     */
+    private static boolean lists(GameRole role, int id) {
+        if (role.unstackableRoleIds != null) {
+            for (int unstackableRoleId : role.unstackableRoleIds) {
+                if (unstackableRoleId == id) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the given roles in the compiled format
+     *
+     * @param roles
+     * @param out
+     * @throws IOException
+     */
+    public static void write(List<GameRole> roles, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(magic);
+        data.writeInt(formatVersion);
+        data.writeInt(roles.size());
+        for (GameRole role : roles) {
+            data.writeInt(role.id);
+            data.writeUTF(role.name);
+            String[] aliases = role.aliases == null ? new String[0] : role.aliases;
+            data.writeInt(aliases.length);
+            for (String alias : aliases) {
+                data.writeUTF(alias);
+            }
+            data.writeUTF(role.description == null ? "" : role.description);
+            data.writeBoolean(role.isDefault);
+            data.writeUTF(role.assignmentMessage == null ? "" : role.assignmentMessage);
+            int[] unstackableRoleIds = role.unstackableRoleIds == null ? new int[0] : role.unstackableRoleIds;
+            data.writeInt(unstackableRoleIds.length);
+            for (int unstackableRoleId : unstackableRoleIds) {
+                data.writeInt(unstackableRoleId);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Reads roles written by write
+     *
+     * @param in
+     * @return
+     * @throws IOException If the data is not compiled roles of this version
+     */
+    public static List<GameRole> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != magic) {
+            throw new IOException("Not a compiled roles file.");
+        }
+        int version = data.readInt();
+        if (version != formatVersion) {
+            throw new IOException(String.format("Compiled roles are version %d, expected %d.", version, formatVersion));
+        }
+
+        int count = data.readInt();
+        List<GameRole> roles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            GameRole role = new GameRole();
+            role.id = data.readInt();
+            role.name = data.readUTF();
+            role.aliases = new String[data.readInt()];
+            for (int j = 0; j < role.aliases.length; j++) {
+                role.aliases[j] = data.readUTF();
+            }
+            role.description = data.readUTF();
+            role.isDefault = data.readBoolean();
+            role.assignmentMessage = data.readUTF();
+            role.unstackableRoleIds = new int[data.readInt()];
+            for (int j = 0; j < role.unstackableRoleIds.length; j++) {
+                role.unstackableRoleIds[j] = data.readInt();
+            }
+            roles.add(role);
+        }
+        return roles;
+    }
+}
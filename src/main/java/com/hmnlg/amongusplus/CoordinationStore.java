@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the bot processes that share a token agree on which of them owns
+ * which shard. A process owns a shard while it holds the shard's lease and
+ * keeps it by renewing the lease before it expires. A lease that isn't
+ * renewed in time can be taken by any other process, so a process that
+ * crashes or hangs gives up its shards on its own.
+ * <p>
+ * The store also keeps what the processes need to know about each other's
+ * games: which shard every player's game is on, so a user can only be in one
+ * game across every process, and the private messages forwarded to the
+ * process that owns a shard. Discord delivers every private message on shard
+ * 0, so only the process that owns it receives them.
+ * <p>
+ * Every method must be atomic across every process using the store.
+ *
+ * @author maikotui
+ */
+public interface CoordinationStore {
+
+    /**
+     * Takes the lease of the given shard if it is free, has expired or is
+     * already held by the given owner.
+     *
+     * @param shardId
+     * @param ownerId
+     * @param leaseInMillis How long the lease lasts without being renewed
+     * @return True if the owner now holds the lease
+     * @throws IOException If the store can't be reached
+     */
+    boolean acquire(int shardId, String ownerId, long leaseInMillis) throws IOException;
+
+    /**
+     * Extends the lease of the given shard if the given owner still holds it.
+     *
+     * @param shardId
+     * @param ownerId
+     * @param leaseInMillis How long the lease lasts from now
+     * @return False if the lease has been taken by another owner
+     * @throws IOException If the store can't be reached
+     */
+    boolean renew(int shardId, String ownerId, long leaseInMillis) throws IOException;
+
+    /**
+     * Gives up the lease of the given shard if the given owner holds it, so
+     * another process can take it right away.
+     *
+     * @param shardId
+     * @param ownerId
+     * @throws IOException If the store can't be reached
+     */
+    void release(int shardId, String ownerId) throws IOException;
+
+    /**
+     * Gives every lease in the store, including expired ones
+     *
+     * @return Shard ID -> lease
+     * @throws IOException If the store can't be reached
+     */
+    Map<Integer, Lease> getLeases() throws IOException;
+
+    /**
+     * Records the given user as a player of a game on the given shard unless
+     * they are in a game on another shard.
+     *
+     * @param playerId
+     * @param shardId
+     * @return True if the user is now recorded on the given shard
+     * @throws IOException If the store can't be reached
+     */
+    boolean claimPlayer(long playerId, int shardId) throws IOException;
+
+    /**
+     * Removes the given user's record if it is on the given shard
+     *
+     * @param playerId
+     * @param shardId
+     * @throws IOException If the store can't be reached
+     */
+    void releasePlayer(long playerId, int shardId) throws IOException;
+
+    /**
+     * Removes the record of every player of the given shard except the given
+     * ones. Used once a shard has restored its games, to drop the players of
+     * games that were lost.
+     *
+     * @param shardId
+     * @param playerIds The players of the shard's games
+     * @throws IOException If the store can't be reached
+     */
+    void retainPlayers(int shardId, Set<Long> playerIds) throws IOException;
+
+    /**
+     * Gives the shard the given user's game is on
+     *
+     * @param playerId
+     * @return -1 if the user isn't in a game
+     * @throws IOException If the store can't be reached
+     */
+    int getShardOfPlayer(long playerId) throws IOException;
+
+    /**
+     * Leaves the given private message for the process that owns its shard
+     *
+     * @param message
+     * @throws IOException If the store can't be reached
+     */
+    void forward(ForwardedMessage message) throws IOException;
+
+    /**
+     * Takes every private message left for the given shard
+     *
+     * @param shardId
+     * @return Oldest first
+     * @throws IOException If the store can't be reached
+     */
+    List<ForwardedMessage> takeForwarded(int shardId) throws IOException;
+
+    /**
+     * The lease of one shard
+     */
+    public static class Lease {
+
+        public final int shardId;
+        public final String ownerId;
+        public final long expiresAtMillis;
+
+        public Lease(int shardId, String ownerId, long expiresAtMillis) {
+            this.shardId = shardId;
+            this.ownerId = ownerId;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /**
+     * A private message received by one process and meant for a shard of
+     * another. Only IDs are kept, the owner fetches the message itself.
+     */
+    public static class ForwardedMessage {
+
+        public final int shardId;
+        public final long authorId;
+        public final long messageId;
+
+        public ForwardedMessage(int shardId, long authorId, long messageId) {
+            this.shardId = shardId;
+            this.authorId = authorId;
+            this.messageId = messageId;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A thread-safe set of IDs that may wrongly claim to contain an ID it
+ * doesn't, but never misses one it does. Every ID bumps a few 4-bit counters
+ * and removing it lowers them again, so IDs can come and go. A counter that
+ * reaches 15 stays there, which can only cause more false positives.
+ * <p>
+ * With 2^16 counters (32 KiB) and 3 counters per ID, 5000 IDs give about 1
+ * false positive per 100 lookups.
+ *
+ * @author maikotui
+ */
+public class CountingBloomFilter {
+
+    private static final int countersPerWord = 8;
+    private static final int bitsPerCounter = 4;
+    private static final int maximumCount = (1 << bitsPerCounter) - 1;
+
+    /**
+     * The counters, packed 8 to a word
+     */
+    private final AtomicIntegerArray words;
+
+    /**
+     * The number of counters minus 1, for masking
+     */
+    private final int counterMask;
+
+    /**
+     * The number of counters each ID bumps
+     */
+    private final int hashCount;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param counterCount A power of 2, at least 8
+     * @param hashCount The number of counters each ID bumps
+     */
+    public CountingBloomFilter(int counterCount, int hashCount) {
+        if (counterCount < countersPerWord || Integer.bitCount(counterCount) != 1) {
+            throw new IllegalArgumentException("The counter count must be a power of 2 of at least 8.");
+        }
+        this.words = new AtomicIntegerArray(counterCount / countersPerWord);
+        this.counterMask = counterCount - 1;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Adds the given ID. An ID that is added twice must be removed twice.
+     *
+     * @param id
+     */
+    public void add(long id) {
+        long hash = mix(id);
+        for (int i = 0; i < hashCount; i++) {
+            adjust(counterOf(hash, i), 1);
+        }
+    }
+
+    /**
+     * Removes the given ID. Must only be called for IDs that were added.
+     *
+     * @param id
+     */
+    public void remove(long id) {
+        long hash = mix(id);
+        for (int i = 0; i < hashCount; i++) {
+            adjust(counterOf(hash, i), -1);
+        }
+    }
+
+    /**
+     * Checks whether the given ID may have been added.
+     *
+     * @param id
+     * @return False if the ID certainly wasn't added
+     */
+    public boolean mightContain(long id) {
+        long hash = mix(id);
+        for (int i = 0; i < hashCount; i++) {
+            int counter = counterOf(hash, i);
+            if (((words.get(counter / countersPerWord) >>> shiftOf(counter)) & maximumCount) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Raises or lowers the given counter by one, unless it is saturated
+     *
+     * @param counter
+     * @param delta 1 or -1
+     */
+    private void adjust(int counter, int delta) {
+        int index = counter / countersPerWord;
+        int shift = shiftOf(counter);
+        while (true) {
+            int word = words.get(index);
+            int count = (word >>> shift) & maximumCount;
+            if (count == maximumCount || (count == 0 && delta < 0)) {
+                return;
+            }
+            if (words.compareAndSet(index, word, word + (delta << shift))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Spreads the bits of the given ID. Snowflake IDs are mostly timestamp,
+     * so their low bits alone are a poor hash.
+     *
+     * @param id
+     * @return
+     */
+    private static long mix(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Gives the i-th counter of the given hash, by double hashing
+     *
+     * @param hash
+     * @param i
+     * @return
+     */
+    private int counterOf(long hash, int i) {
+        int first = (int) (hash >>> 32);
+        int second = (int) hash | 1;
+        return (first + i * second) & counterMask;
+    }
+
+    private static int shiftOf(int counter) {
+        return (counter % countersPerWord) * bitsPerCounter;
+    }
+}
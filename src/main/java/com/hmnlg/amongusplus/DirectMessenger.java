@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import net.dv8tion.jda.core.entities.PrivateChannel;
+import net.dv8tion.jda.core.entities.User;
+
+/**
+ * Sends private messages to users. Opened private channels are kept in a
+ * bounded cache (least recently used channels are evicted first) so a channel
+ * is only opened once per user instead of once per message.
+ *
+ * @author maikotui
+ */
+public class DirectMessenger {
+
+    /**
+     * Cached private channels keyed by user ID, in access order
+     */
+    private final Map<Long, PrivateChannel> channels;
+
+    /**
+     * Makes the requests to Discord
+     */
+    private final RestGateway rest;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    /**
+     * Creates a messenger that caches up to the given number of channels.
+     *
+     * @param maximumCachedChannels
+     * @param rest
+     */
+    public DirectMessenger(int maximumCachedChannels, RestGateway rest) {
+        this.rest = rest;
+        this.channels = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PrivateChannel> eldest) {
+                return size() > maximumCachedChannels;
+            }
+        });
+    }
+
+    /**
+     * Gets the private channel for the given user, opening it if it isn't
+     * cached.
+     *
+     * @param user
+     * @return
+     */
+    public CompletableFuture<PrivateChannel> channelFor(User user) {
+        PrivateChannel channel = channels.get(user.getIdLong());
+        if (channel != null) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(channel);
+        }
+
+        cacheMisses.increment();
+        CompletableFuture<PrivateChannel> future = new CompletableFuture<>();
+        rest.queue(RestRoute.PRIVATE_CHANNEL_OPEN, user.openPrivateChannel(), opened -> {
+            channels.put(user.getIdLong(), opened);
+            future.complete(opened);
+        }, future::completeExceptionally);
+        return future;
+    }
+
+    /**
+     * Sends the given message to the given user.
+     *
+     * @param user
+     * @param message
+     * @return Completes when the message was sent, or exceptionally if it
+     * could not be.
+     */
+    public CompletableFuture<Void> send(User user, String message) {
+        return channelFor(user).thenCompose(channel -> {
+            CompletableFuture<Void> sent = new CompletableFuture<>();
+            rest.queue(RestRoute.PRIVATE_MESSAGE_SEND, channel.sendMessage(message), msg -> sent.complete(null), err -> {
+                // The channel may have gone stale, open a new one next time
+                channels.remove(user.getIdLong(), channel);
+                sent.completeExceptionally(err);
+            });
+            return sent;
+        });
+    }
+
+    /**
+     * Sends each user their message. All messages are sent at the same time.
+     *
+     * @param messages The message for each recipient
+     * @return Completes once every message was either sent or failed
+     */
+    public CompletableFuture<BroadcastResult> broadcast(Map<User, String> messages) {
+        BroadcastResult result = new BroadcastResult();
+        CompletableFuture<?>[] sends = messages.entrySet().stream()
+                .map(entry -> send(entry.getKey(), entry.getValue()).handle((ok, err) -> {
+            result.record(entry.getKey(), err);
+            return null;
+        }))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(sends).thenApply(done -> result);
+    }
+
+    /**
+     * Sends the same message to every given user.
+     *
+     * @param users
+     * @param message
+     * @return Completes once every message was either sent or failed
+     */
+    public CompletableFuture<BroadcastResult> broadcast(Iterable<User> users, String message) {
+        Map<User, String> messages = new LinkedHashMap<>();
+        users.forEach(user -> messages.put(user, message));
+        return broadcast(messages);
+    }
+
+    /**
+     * Gives the number of times a cached channel was used
+     *
+     * @return
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * Gives the number of times a channel had to be opened
+     *
+     * @return
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * The outcome of a broadcast for every recipient
+     */
+    public static class BroadcastResult {
+
+        private final Set<User> delivered = ConcurrentHashMap.newKeySet();
+        private final Map<User, Throwable> failed = new ConcurrentHashMap<>();
+
+        private void record(User user, Throwable err) {
+            if (err == null) {
+                delivered.add(user);
+            } else {
+                failed.put(user, err);
+            }
+        }
+
+        /**
+         * Gives every user the message was sent to
+         *
+         * @return
+         */
+        public Set<User> getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * Gives every user the message could not be sent to and why
+         *
+         * @return
+         */
+        public Map<User, Throwable> getFailed() {
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.MessageEmbed;
+import net.dv8tion.jda.core.requests.RestAction;
+
+/**
+ * Coalesces edits of the game display messages. A change to a game only marks
+ * its display as dirty; at most one edit per game is in flight at a time, and
+ * when it completes the latest state is rendered and sent if it changed.
+ * Intermediate states are never sent, so a burst of reactions costs at most
+ * two edits no matter how many players react. While the edit still waits in
+ * the gateway, a newer state replaces it and costs nothing extra.
+ * <p>
+ * All methods must be called from the game's mailbox. The completion of an
+ * edit is handed back to the mailbox, so no other locking is needed.
+ *
+ * @author maikotui
+ */
+public class DisplayUpdater {
+
+    /**
+     * Builds the embeds that are sent
+     */
+    private final GameEmbedRenderer renderer;
+
+    /**
+     * Makes the edits
+     */
+    private final RestGateway rest;
+
+    /**
+     * The edit state of every game with a pending or in-flight edit
+     */
+    private final Map<GameManager, EditState> states;
+
+    /**
+     * Creates an updater that renders with the given renderer.
+     *
+     * @param renderer
+     * @param rest
+     */
+    public DisplayUpdater(GameEmbedRenderer renderer, RestGateway rest) {
+        this.renderer = renderer;
+        this.rest = rest;
+        this.states = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Marks the display of the given game as out of date. The latest state
+     * will be sent once no other edit of the display is in flight.
+     *
+     * @param game
+     */
+    public void requestUpdate(GameManager game) {
+        if (game.displayMessge == null) {
+            return;
+        }
+
+        EditState state = states.computeIfAbsent(game, key -> new EditState());
+        state.target = game.displayMessge;
+        if (!state.inFlight) {
+            send(game, state);
+            return;
+        }
+
+        state.renderedUnsent = false;
+        if (!rest.replaceWaiting(state, () -> renderEdit(game, state))) {
+            // Already sent, so send the latest state once it's answered
+            state.dirty = true;
+            if (state.renderedUnsent) {
+                // The renderer counts what it rendered as shown, but it was sent too late to replace anything
+                renderer.forget(game);
+            }
+        }
+    }
+
+    /**
+     * Marks the given game as stopped. The stopped embed replaces whatever was
+     * going to be sent next and is the last edit made for the game. The game's
+     * display message should be unset afterwards so nothing else is sent.
+     *
+     * @param game
+     */
+    public void requestStopped(GameManager game) {
+        if (game.displayMessge == null) {
+            return;
+        }
+
+        EditState state = states.computeIfAbsent(game, key -> new EditState());
+        state.stopped = true;
+        requestUpdate(game);
+    }
+
+    /**
+     * Renders the latest state and sends it if it changed
+     *
+     * @param game
+     * @param state
+     */
+    private void send(GameManager game, EditState state) {
+        state.dirty = false;
+        MessageEmbed embed = render(game, state);
+        if (embed == null) {
+            states.remove(game);
+            return;
+        }
+
+        // Keyed by the edit state so a newer state can replace it while it waits in the gateway
+        state.inFlight = true;
+        rest.queue(RestRoute.MESSAGE_EDIT, RestPriority.CRITICAL, state, state.target.editMessage(embed), message -> onEditFinished(game, state, false), err -> onEditFinished(game, state, true));
+    }
+
+    /**
+     * Renders the latest state into an edit of the display message if it
+     * changed since the last render
+     *
+     * @param game
+     * @param state
+     * @return Null if nothing changed
+     */
+    private RestAction<Message> renderEdit(GameManager game, EditState state) {
+        state.renderedUnsent = true;
+        MessageEmbed embed = render(game, state);
+        return embed == null ? null : state.target.editMessage(embed);
+    }
+
+    /**
+     * Renders the latest state
+     *
+     * @param game
+     * @param state
+     * @return Null if nothing changed since the last render
+     */
+    private MessageEmbed render(GameManager game, EditState state) {
+        Message target = state.target;
+        return state.stopped
+                ? renderer.renderStopped(game, target.getJDA().getSelfUser())
+                : renderer.renderIfChanged(game, target.getJDA().getSelfUser());
+    }
+
+    /**
+     * Sends the next edit if the display was changed while the last one was in
+     * flight. If the edit failed, the display no longer shows what the
+     * renderer last rendered, so the next update renders it in full again.
+     *
+     * @param game
+     * @param state
+     * @param failed Whether the edit failed
+     */
+    private void onEditFinished(GameManager game, EditState state, boolean failed) {
+        game.submit(() -> {
+            state.inFlight = false;
+            if (failed) {
+                renderer.forget(game);
+            }
+            if (state.dirty) {
+                send(game, state);
+            } else {
+                states.remove(game, state);
+            }
+        });
+    }
+
+    /**
+     * The edit state of a single display message
+     */
+    private static class EditState {
+
+        /**
+         * The message to edit
+         */
+        private Message target;
+
+        /**
+         * Whether an edit has been sent and not yet answered
+         */
+        private boolean inFlight;
+
+        /**
+         * Whether the game changed since the in-flight edit was rendered
+         */
+        private boolean dirty;
+
+        /**
+         * Whether the game has been stopped
+         */
+        private boolean stopped;
+
+        /**
+         * Whether the last attempt to replace the waiting edit rendered the
+         * game, so the renderer's cache may hold an embed that was never sent
+         */
+        private boolean renderedUnsent;
+    }
+}
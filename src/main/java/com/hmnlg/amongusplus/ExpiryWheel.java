@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel that expires items after a fixed time without being
+ * re-armed. Every deadline is rounded up to the next tick and put in the slot
+ * for that tick, so advancing the wheel only looks at the slots that came due
+ * instead of at every scheduled item.
+ * <p>
+ * Re-arming an item does not search for its old entry. The old entry is left
+ * in its slot and dropped when that slot comes due, since it no longer matches
+ * the item's current deadline.
+ *
+ * @author maikotui
+ * @param <T> The type of item that expires
+ */
+public class ExpiryWheel<T> {
+
+    /**
+     * One queue of entries per tick, reused every rotation
+     */
+    private final Queue<Entry<T>>[] slots;
+
+    /**
+     * The length of a tick (the precision of the wheel) in milliseconds
+     */
+    private final long tickMillis;
+
+    /**
+     * How long an item lives without being re-armed in milliseconds
+     */
+    private final long timeoutMillis;
+
+    /**
+     * The clock used to compute deadlines and to find which ticks are due
+     */
+    private final Clock clock;
+
+    /**
+     * Called with every item that expired
+     */
+    private volatile Consumer<T> onExpire;
+
+    /**
+     * The current deadline of every scheduled item
+     */
+    private final Map<T, Long> deadlines;
+
+    /**
+     * The last tick that has been processed
+     */
+    private long lastTick;
+
+    /**
+     * Creates an empty wheel.
+     *
+     * @param slotCount The number of slots in the wheel
+     * @param tickMillis The length of a tick in milliseconds
+     * @param timeoutMillis How long an item lives without being re-armed
+     * @param clock The clock to read the current time from
+     * @param onExpire Called with every item that expired
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(int slotCount, long tickMillis, long timeoutMillis, Clock clock, Consumer<T> onExpire) {
+        this.slots = new Queue[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.tickMillis = tickMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.clock = clock;
+        this.onExpire = onExpire;
+        this.deadlines = new ConcurrentHashMap<>();
+        this.lastTick = clock.millis() / tickMillis;
+    }
+
+    /**
+     * Schedules the given item to expire after the timeout. If it was already
+     * scheduled, its previous deadline is replaced.
+     *
+     * @param item
+     */
+    public void schedule(T item) {
+        long deadline = clock.millis() + timeoutMillis;
+        deadlines.put(item, deadline);
+
+        // Round up so the slot never comes due before the deadline
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        slots[slotFor(tick)].add(new Entry<>(item, deadline));
+    }
+
+    /**
+     * Stops the given item from expiring.
+     *
+     * @param item
+     */
+    public void cancel(T item) {
+        deadlines.remove(item);
+    }
+
+    /**
+     * Replaces what is called with every item that expired. Used to hand the
+     * wheel over to a new owner without losing any deadlines.
+     *
+     * @param onExpire
+     */
+    public void setOnExpire(Consumer<T> onExpire) {
+        this.onExpire = onExpire;
+    }
+
+    /**
+     * Gives the number of items currently scheduled
+     *
+     * @return
+     */
+    public int size() {
+        return deadlines.size();
+    }
+
+    /**
+     * Processes every tick that came due since the last call and expires the
+     * items whose deadline has passed. Should be called from a single thread
+     * about once per tick.
+     *
+     * @return The number of items that expired
+     */
+    public synchronized int advance() {
+        long now = clock.millis();
+        long currentTick = now / tickMillis;
+
+        // After a long pause every slot is due, but each only needs one visit
+        long firstTick = Math.max(lastTick + 1, currentTick - slots.length + 1);
+
+        int expired = 0;
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            expired += expireSlot(slots[slotFor(tick)], now);
+        }
+        lastTick = Math.max(lastTick, currentTick);
+        return expired;
+    }
+
+    /**
+     * Expires every due entry in the given slot. Stale entries are dropped and
+     * entries for a later rotation are put back.
+     *
+     * @param slot
+     * @param now
+     * @return The number of items that expired
+     */
+    private int expireSlot(Queue<Entry<T>> slot, long now) {
+        int expired = 0;
+        List<Entry<T>> later = new ArrayList<>();
+        Entry<T> entry;
+        while ((entry = slot.poll()) != null) {
+            Long currentDeadline = deadlines.get(entry.item);
+            if (currentDeadline == null || currentDeadline != entry.deadline) {
+                continue; // Cancelled or re-armed since this entry was added
+            }
+            if (entry.deadline > now) {
+                later.add(entry);
+            } else if (deadlines.remove(entry.item, currentDeadline)) {
+                onExpire.accept(entry.item);
+                expired++;
+            }
+        }
+        slot.addAll(later);
+        return expired;
+    }
+
+    /**
+     * Gives the index of the slot for the given tick
+     *
+     * @param tick
+     * @return
+     */
+    private int slotFor(long tick) {
+        return (int) Math.floorMod(tick, (long) slots.length);
+    }
+
+    /**
+     * An item and the deadline it was scheduled with
+     *
+     * @param <T>
+     */
+    private static class Entry<T> {
+
+        private final T item;
+        private final long deadline;
+
+        Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
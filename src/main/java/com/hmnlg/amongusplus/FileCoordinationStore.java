@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A coordination store kept in local files, for running several bot
+ * processes on the same machine. Every operation locks the file it works on,
+ * so operations are atomic across processes. The given file holds one line
+ * per lease: the shard ID, the owner ID and when the lease expires in epoch
+ * milliseconds. Next to it, the file ending in .players holds one line per
+ * player: the player ID and the shard of their game. The file ending in
+ * .inbox holds one line per forwarded private message: the shard ID, the
+ * author ID and the message ID.
+ * <p>
+ * A line that can't be read, for example because a process died while
+ * writing, is dropped. At worst that frees a lease or a player early, and
+ * the lease's owner finds out on its next renewal.
+ *
+ * @author maikotui
+ */
+public class FileCoordinationStore implements CoordinationStore {
+
+    private final Path file;
+
+    /**
+     * Player ID -> shard ID
+     */
+    private final Path playersFile;
+
+    /**
+     * The forwarded private messages
+     */
+    private final Path inboxFile;
+
+    /**
+     * The clock that leases expire by, which must agree between processes
+     */
+    private final Clock clock;
+
+    /**
+     * Creates a store kept in the given file and the files next to it. The
+     * files are created on first use.
+     *
+     * @param file
+     * @param clock
+     * @throws IOException If the file's directory can't be created
+     */
+    public FileCoordinationStore(Path file, Clock clock) throws IOException {
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        this.file = file;
+        this.playersFile = file.resolveSibling(file.getFileName() + ".players");
+        this.inboxFile = file.resolveSibling(file.getFileName() + ".inbox");
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean acquire(int shardId, String ownerId, long leaseInMillis) throws IOException {
+        return updateLeases(leases -> {
+            long now = clock.millis();
+            Lease lease = leases.get(shardId);
+            if (lease != null && !lease.ownerId.equals(ownerId) && lease.expiresAtMillis > now) {
+                return false;
+            }
+            leases.put(shardId, new Lease(shardId, ownerId, now + leaseInMillis));
+            return true;
+        });
+    }
+
+    @Override
+    public boolean renew(int shardId, String ownerId, long leaseInMillis) throws IOException {
+        return updateLeases(leases -> {
+            Lease lease = leases.get(shardId);
+            if (lease == null || !lease.ownerId.equals(ownerId)) {
+                return false;
+            }
+            leases.put(shardId, new Lease(shardId, ownerId, clock.millis() + leaseInMillis));
+            return true;
+        });
+    }
+
+    @Override
+    public void release(int shardId, String ownerId) throws IOException {
+        updateLeases(leases -> {
+            Lease lease = leases.get(shardId);
+            return lease != null && lease.ownerId.equals(ownerId) && leases.remove(shardId) != null;
+        });
+    }
+
+    @Override
+    public Map<Integer, Lease> getLeases() throws IOException {
+        Map<Integer, Lease> copy = new TreeMap<>();
+        updateLeases(leases -> {
+            copy.putAll(leases);
+            return false;
+        });
+        return copy;
+    }
+
+    @Override
+    public boolean claimPlayer(long playerId, int shardId) throws IOException {
+        boolean[] claimed = new boolean[1];
+        updatePlayers(players -> {
+            Integer current = players.putIfAbsent(playerId, shardId);
+            claimed[0] = current == null || current == shardId;
+            return current == null;
+        });
+        return claimed[0];
+    }
+
+    @Override
+    public void releasePlayer(long playerId, int shardId) throws IOException {
+        updatePlayers(players -> players.remove(playerId, shardId));
+    }
+
+    @Override
+    public void retainPlayers(int shardId, Set<Long> playerIds) throws IOException {
+        updatePlayers(players -> players.entrySet().removeIf(player -> player.getValue() == shardId && !playerIds.contains(player.getKey())));
+    }
+
+    @Override
+    public int getShardOfPlayer(long playerId) throws IOException {
+        int[] shardId = {-1};
+        updatePlayers(players -> {
+            shardId[0] = players.getOrDefault(playerId, -1);
+            return false;
+        });
+        return shardId[0];
+    }
+
+    @Override
+    public void forward(ForwardedMessage message) throws IOException {
+        update(inboxFile, lines -> lines.add(String.format("%d %d %d", message.shardId, message.authorId, message.messageId)));
+    }
+
+    @Override
+    public List<ForwardedMessage> takeForwarded(int shardId) throws IOException {
+        List<ForwardedMessage> taken = new ArrayList<>();
+        update(inboxFile, lines -> {
+            for (Iterator<String> it = lines.iterator(); it.hasNext();) {
+                String[] fields = it.next().split(" ");
+                try {
+                    if (Integer.parseInt(fields[0]) == shardId) {
+                        taken.add(new ForwardedMessage(shardId, Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                        it.remove();
+                    }
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                    Logger.getLogger(FileCoordinationStore.class.getName()).log(Level.WARNING, String.format("Dropped unreadable forwarded message \"%s\" in %s", String.join(" ", fields), inboxFile));
+                    it.remove();
+                }
+            }
+            return !taken.isEmpty();
+        });
+        return taken;
+    }
+
+    /**
+     * Reads the leases, applies the given change and writes them back if it
+     * changed anything
+     *
+     * @param change Changes the leases. Returns true if they should be
+     * written.
+     * @return What the change returned
+     * @throws IOException
+     */
+    private boolean updateLeases(Predicate<Map<Integer, Lease>> change) throws IOException {
+        return update(file, lines -> {
+            Map<Integer, Lease> leases = new TreeMap<>();
+            for (String line : lines) {
+                String[] fields = line.split(" ");
+                try {
+                    int shardId = Integer.parseInt(fields[0]);
+                    leases.put(shardId, new Lease(shardId, fields[1], Long.parseLong(fields[2])));
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                    Logger.getLogger(FileCoordinationStore.class.getName()).log(Level.WARNING, String.format("Dropped unreadable lease \"%s\" in %s", line, file));
+                }
+            }
+            if (!change.test(leases)) {
+                return false;
+            }
+            lines.clear();
+            leases.values().forEach(lease -> lines.add(String.format("%d %s %d", lease.shardId, lease.ownerId, lease.expiresAtMillis)));
+            return true;
+        });
+    }
+
+    /**
+     * Reads the players, applies the given change and writes them back if it
+     * changed anything
+     *
+     * @param change Changes the players. Returns true if they should be
+     * written.
+     * @throws IOException
+     */
+    private void updatePlayers(Predicate<Map<Long, Integer>> change) throws IOException {
+        update(playersFile, lines -> {
+            Map<Long, Integer> players = new TreeMap<>();
+            for (String line : lines) {
+                String[] fields = line.split(" ");
+                try {
+                    players.put(Long.parseLong(fields[0]), Integer.parseInt(fields[1]));
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+                    Logger.getLogger(FileCoordinationStore.class.getName()).log(Level.WARNING, String.format("Dropped unreadable player \"%s\" in %s", line, playersFile));
+                }
+            }
+            if (!change.test(players)) {
+                return false;
+            }
+            lines.clear();
+            players.forEach((playerId, shardId) -> lines.add(playerId + " " + shardId));
+            return true;
+        });
+    }
+
+    /**
+     * Reads the lines of the given file, applies the given change and writes
+     * them back if it changed anything, all while holding the file's lock.
+     * Synchronized since a process can only hold the lock once.
+     *
+     * @param path
+     * @param change Changes the lines. Returns true if they should be
+     * written.
+     * @return What the change returned
+     * @throws IOException
+     */
+    private synchronized boolean update(Path path, Predicate<List<String>> change) throws IOException {
+        try ( FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileLock lock = channel.lock()) {
+            List<String> lines = read(channel);
+            boolean changed = change.test(lines);
+            if (changed) {
+                write(channel, lines);
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Reads every line in the file that isn't blank
+     *
+     * @param channel
+     * @return
+     * @throws IOException
+     */
+    private List<String> read(FileChannel channel) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) channel.size());
+        while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) >= 0) {
+            // Keep reading until full
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isBlank()) {
+                lines.add(line.trim());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Replaces the content of the file with the given lines
+     *
+     * @param channel
+     * @param lines
+     * @throws IOException
+     */
+    private void write(FileChannel channel, List<String> lines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        lines.forEach(line -> sb.append(line).append('\n'));
+        ByteBuffer bytes = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        channel.truncate(0);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes, bytes.position());
+        }
+        channel.force(false);
+    }
+}
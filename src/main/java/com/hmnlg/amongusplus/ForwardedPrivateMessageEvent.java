@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.events.message.priv.PrivateMessageReceivedEvent;
+
+/**
+ * A private message received by another process and forwarded to this one
+ * through the coordination store. It is handled like any other private
+ * message, except that it is never forwarded again.
+ *
+ * @author maikotui
+ */
+public class ForwardedPrivateMessageEvent extends PrivateMessageReceivedEvent {
+
+    /**
+     * Creates the event of the given message arriving on the given shard
+     *
+     * @param jda The shard the message was forwarded to
+     * @param message The message, fetched by this process
+     */
+    public ForwardedPrivateMessageEvent(JDA jda, Message message) {
+        super(jda, 0, message);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.dv8tion.jda.core.EmbedBuilder;
+import net.dv8tion.jda.core.entities.MessageEmbed;
+import net.dv8tion.jda.core.entities.User;
+
+/**
+ * Builds the embed shown on a game's display message from the game's current
+ * state. Role descriptions are formatted once per set of roles, mentions are
+ * stored per player, and each field is only rebuilt when its contents changed.
+ * The fields of the last embed rendered for each game are kept so unchanged
+ * embeds don't have to be sent again.
+ * <p>
+ * Rendering for a game must happen on that game's mailbox.
+ *
+ * @author maikotui
+ */
+public class GameEmbedRenderer {
+
+    private static final String title = "Among Us+ Game";
+    private static final String authorName = "Among Us+ Bot";
+    private static final String authorUrl = "https://github.com/humanalog/among-us-plus/";
+
+    private static final MessageEmbed.Field newGameInstructions = new MessageEmbed.Field("What Next?", "To add or remove players, use the ***padd*** or ***prem*** commands.\nTo add or remove roles, use the ***radd*** or ***rrem*** commands.\nTo start the game, click on the \u2705 emote.", false);
+    private static final MessageEmbed.Field pregameInstructions = new MessageEmbed.Field("Choose Your Role", "Choose \uD83C\uDDE8 for crewmate and \uD83C\uDDEE for imposter.", false);
+    private static final MessageEmbed.Field activeInstructions = new MessageEmbed.Field("What's Next?", "Choose \uD83D\uDD04 to restart the game.\nChoose \uD83D\uDED1 to stop the game.", false);
+    private static final MessageEmbed.Field stoppedMessage = new MessageEmbed.Field("Game has been stopped.", "Thanks for playing!", false);
+
+    /**
+     * The formatted role section for every set of roles (keyed by the role
+     * instances in order, since a reloaded catalog can reuse an ID with a new
+     * description). Shared by all games.
+     */
+    private final Map<RoleSectionKey, String> roleSections;
+
+    /**
+     * What was last rendered for each game
+     */
+    private final Map<GameManager, RenderCache> caches;
+
+    /**
+     * Creates a renderer with empty caches
+     */
+    public GameEmbedRenderer() {
+        roleSections = new ConcurrentHashMap<>();
+        caches = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Renders the embed for the game's current state.
+     *
+     * @param game
+     * @param bot The bot's user, shown as the embed's author
+     * @return
+     */
+    public MessageEmbed render(GameManager game, User bot) {
+        RenderCache cache = caches.computeIfAbsent(game, key -> new RenderCache());
+        List<MessageEmbed.Field> fields = new ArrayList<>(3);
+        switch (game.getState()) {
+            case NEW -> {
+                fields.add(cache.rolesField(game.playableRoles));
+                fields.add(cache.playersField(game.getAllPlayers()));
+                fields.add(newGameInstructions);
+            }
+            case PREGAME -> {
+                addReadyFields(cache, game, fields);
+                fields.add(pregameInstructions);
+            }
+            case ACTIVE -> {
+                addReadyFields(cache, game, fields);
+                fields.add(activeInstructions);
+            }
+            default -> {
+            }
+        }
+        cache.lastFields = fields;
+        return build(game, bot, Color.green, fields);
+    }
+
+    /**
+     * Renders the embed for the game's current state unless it is identical to
+     * the last embed rendered for this game.
+     *
+     * @param game
+     * @param bot The bot's user, shown as the embed's author
+     * @return The new embed, or null if nothing changed.
+     */
+    public MessageEmbed renderIfChanged(GameManager game, User bot) {
+        RenderCache cache = caches.computeIfAbsent(game, key -> new RenderCache());
+        List<MessageEmbed.Field> previousFields = cache.lastFields;
+        MessageEmbed embed = render(game, bot);
+        return cache.lastFields.equals(previousFields) ? null : embed;
+    }
+
+    /**
+     * Renders the embed for a game that has been stopped and forgets
+     * everything cached for it.
+     *
+     * @param game
+     * @param bot The bot's user, shown as the embed's author
+     * @return
+     */
+    public MessageEmbed renderStopped(GameManager game, User bot) {
+        caches.remove(game);
+        return build(game, bot, Color.RED, List.of(stoppedMessage));
+    }
+
+    /**
+     * Forgets everything cached for the given game. Called when a game is
+     * deleted, whether or not it still has a display, and when an edit of the
+     * display did not go through.
+     *
+     * @param game
+     */
+    public void forget(GameManager game) {
+        caches.remove(game);
+    }
+
+    /**
+     * Adds the "Not Ready" and "Ready" fields for the given game
+     *
+     * @param cache
+     * @param game
+     * @param fields
+     */
+    private void addReadyFields(RenderCache cache, GameManager game, List<MessageEmbed.Field> fields) {
+        List<User> usersNotReady = game.getPlayersWithoutRoles();
+        List<User> readyUsers = game.getAllPlayers();
+        readyUsers.removeAll(usersNotReady);
+        fields.add(cache.notReadyField(usersNotReady));
+        fields.add(cache.readyField(readyUsers));
+    }
+
+    /**
+     * Puts the embed together
+     *
+     * @param game
+     * @param bot
+     * @param color
+     * @param fields
+     * @return
+     */
+    private MessageEmbed build(GameManager game, User bot, Color color, List<MessageEmbed.Field> fields) {
+        EmbedBuilder eb = new EmbedBuilder();
+        eb.setColor(color);
+        eb.setTitle(title);
+        eb.setAuthor(authorName, authorUrl, bot.getAvatarUrl());
+        fields.forEach(eb::addField);
+        eb.setFooter(String.format("Game created by %s", game.getOwner().getAsTag()), game.getOwner().getAvatarUrl());
+        return eb.build();
+    }
+
+    /**
+     * Gives the formatted description of the given roles
+     *
+     * @param roles
+     * @return
+     */
+    private String roleSection(List<GameRole> roles) {
+        return roleSections.computeIfAbsent(new RoleSectionKey(roles), key -> {
+            StringBuilder sb = new StringBuilder();
+            for (GameRole role : roles) {
+                sb.append(String.format("> __%s__:\n> ```%s```\n", role.name, role.description));
+            }
+            return sb.toString();
+        });
+    }
+
+    /**
+     * Checks if both lists hold the very same role instances in the same
+     * order. GameRole.equals only compares IDs, which stay the same when a
+     * role's description is changed in a reloaded catalog.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    private static boolean sameRoles(List<GameRole> a, List<GameRole> b) {
+        if (a == null || b == null || a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A set of roles compared by instance rather than by ID
+     */
+    private static class RoleSectionKey {
+
+        private final List<GameRole> roles;
+        private final int hash;
+
+        RoleSectionKey(List<GameRole> roles) {
+            this.roles = new ArrayList<>(roles);
+            int h = 1;
+            for (GameRole role : roles) {
+                h = 31 * h + System.identityHashCode(role);
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RoleSectionKey && sameRoles(roles, ((RoleSectionKey) o).roles);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The fields last rendered for a single game and the inputs they were
+     * built from
+     */
+    private class RenderCache {
+
+        private final Map<User, String> mentions = new HashMap<>();
+
+        private List<GameRole> lastRoles;
+        private MessageEmbed.Field rolesField;
+        private List<User> lastPlayers;
+        private MessageEmbed.Field playersField;
+        private List<User> lastNotReady;
+        private MessageEmbed.Field notReadyField;
+        private List<User> lastReady;
+        private MessageEmbed.Field readyField;
+
+        /**
+         * Everything that can change between two embeds of the same game
+         */
+        private List<MessageEmbed.Field> lastFields;
+
+        MessageEmbed.Field rolesField(List<GameRole> roles) {
+            if (rolesField == null || !sameRoles(roles, lastRoles)) {
+                lastRoles = new ArrayList<>(roles);
+                rolesField = new MessageEmbed.Field("Roles:", roleSection(roles), true);
+            }
+            return rolesField;
+        }
+
+        MessageEmbed.Field playersField(List<User> players) {
+            if (playersField == null || !players.equals(lastPlayers)) {
+                lastPlayers = players;
+                playersField = new MessageEmbed.Field("Players", ">>> " + mentionList(players), true);
+            }
+            return playersField;
+        }
+
+        MessageEmbed.Field notReadyField(List<User> players) {
+            if (notReadyField == null || !players.equals(lastNotReady)) {
+                lastNotReady = players;
+                notReadyField = new MessageEmbed.Field("Not Ready", players.isEmpty() ? "" : ">>> " + mentionList(players), true);
+            }
+            return notReadyField;
+        }
+
+        MessageEmbed.Field readyField(List<User> players) {
+            if (readyField == null || !players.equals(lastReady)) {
+                lastReady = players;
+                readyField = new MessageEmbed.Field("Ready", players.isEmpty() ? "" : ">>> " + mentionList(players), true);
+            }
+            return readyField;
+        }
+
+        private String mentionList(List<User> players) {
+            StringBuilder sb = new StringBuilder();
+            for (User player : players) {
+                sb.append(mentions.computeIfAbsent(player, User::getAsMention)).append("\n");
+            }
+            return sb.toString();
+        }
+    }
+}
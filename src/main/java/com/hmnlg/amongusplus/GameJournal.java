@@ -0,0 +1,694 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.User;
+
+/**
+ * An append-only journal of every change made to every game, kept in a
+ * memory-mapped file so games survive a restart of the bot.
+ * <p>
+ * Changes are queued by the games and written by a single writer thread in
+ * batches, so recording a change never waits on the disk. The writer also
+ * applies every record to its own image of the games. When the file fills up,
+ * or enough records have been written since the last snapshot, the journal
+ * is compacted: the images are written to a new file as the shortest list of
+ * records that recreates them, and that file replaces the old one.
+ * <p>
+ * Every record has the same size. The type byte is written last, so a record
+ * that was cut off by a crash reads as the end of the journal.
+ *
+ * @author maikotui
+ */
+public class GameJournal {
+
+    private static final int magic = 0x41552B4A; // "AU+J"
+    private static final int formatVersion = 1;
+    private static final int headerSize = 8;
+
+    /**
+     * type (1) + owner ID (8) + two values (8 each)
+     */
+    private static final int recordSize = 25;
+
+    private static final int defaultInitialCapacity = 1 << 20;
+    private static final int defaultCompactEveryRecords = 20000;
+    private static final int maximumBatchSize = 256;
+
+    static final byte create = 1;
+    static final byte display = 2;
+    static final byte playerAdded = 3;
+    static final byte playerRemoved = 4;
+    static final byte roleAdded = 5;
+    static final byte roleRemoved = 6;
+    static final byte stateChanged = 7;
+    static final byte roleAssigned = 8;
+    static final byte rolesCleared = 9;
+    static final byte abilityUsed = 10;
+    static final byte removed = 11;
+
+    static final int veto = 0;
+    static final int execution = 1;
+    static final int detect = 2;
+
+    /**
+     * A journal that records nothing
+     */
+    private static final GameJournal none = new GameJournal();
+
+    /**
+     * Queued by close to stop the writer
+     */
+    private static final Record stop = new Record((byte) 0, 0, 0, 0);
+
+    private final Path file;
+    private final int initialCapacity;
+    private final int compactEveryRecords;
+    private final BlockingQueue<Record> queue;
+    private final Thread writer;
+
+    /**
+     * Owner ID -> image of the game, as of the last record written. Only used
+     * by the writer thread once the journal is open.
+     */
+    private final Map<Long, GameImage> images;
+
+    /**
+     * Copies of the images read from the file when the journal was opened
+     */
+    private final List<GameImage> recovered;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int recordsSinceSnapshot;
+    private volatile boolean closed;
+
+    /**
+     * Creates a journal that records nothing
+     */
+    private GameJournal() {
+        file = null;
+        initialCapacity = 0;
+        compactEveryRecords = 0;
+        queue = null;
+        writer = null;
+        images = null;
+        recovered = List.of();
+    }
+
+    /**
+     * Opens the journal at the given file and reads the games in it
+     *
+     * @param file
+     * @param initialCapacity The smallest size of the file in bytes
+     * @param compactEveryRecords How many records are written between
+     * snapshots
+     * @throws IOException
+     */
+    private GameJournal(Path file, int initialCapacity, int compactEveryRecords) throws IOException {
+        this.file = file;
+        this.initialCapacity = initialCapacity;
+        this.compactEveryRecords = compactEveryRecords;
+        this.queue = new LinkedBlockingQueue<>();
+        this.images = new LinkedHashMap<>();
+
+        if (Files.exists(file)) {
+            replay();
+        }
+        List<GameImage> copies = new ArrayList<>();
+        images.values().forEach(image -> copies.add(image.copy()));
+        recovered = List.copyOf(copies);
+
+        // Start from a compacted copy so the file only holds live games
+        compact(initialCapacity);
+
+        writer = new Thread(this::write, "GameJournal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Gives a journal that records nothing
+     *
+     * @return
+     */
+    public static GameJournal none() {
+        return none;
+    }
+
+    /**
+     * Opens the journal at the given file, replays it, and starts its writer.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static GameJournal open(Path file) throws IOException {
+        return open(file, defaultInitialCapacity, defaultCompactEveryRecords);
+    }
+
+    /**
+     * Opens the journal at the given file with the given sizes. Small sizes
+     * let tests reach compaction quickly.
+     *
+     * @param file
+     * @param initialCapacity The smallest size of the file in bytes
+     * @param compactEveryRecords How many records are written between
+     * snapshots
+     * @return
+     * @throws IOException
+     */
+    static GameJournal open(Path file, int initialCapacity, int compactEveryRecords) throws IOException {
+        if (file.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+        }
+        return new GameJournal(file, initialCapacity, compactEveryRecords);
+    }
+
+    /**
+     * Gives the games that were in the journal when it was opened
+     *
+     * @return
+     */
+    public List<GameImage> getRecoveredGames() {
+        return recovered;
+    }
+
+    // -- Recording --
+    /**
+     * Records that the given game was created, with the players and roles it
+     * was created with
+     *
+     * @param game
+     */
+    public void created(GameManager game) {
+        append(create, game, game.getGuildId(), 0);
+        game.getAllPlayers().forEach(player -> {
+            if (!player.equals(game.getOwner())) {
+                playerAdded(game, player);
+            }
+        });
+        game.playableRoles.forEach(role -> roleAdded(game, role));
+    }
+
+    /**
+     * Records the display message of the given game
+     *
+     * @param game
+     * @param message
+     */
+    public void displayed(GameManager game, Message message) {
+        append(display, game, message.getChannel().getIdLong(), message.getIdLong());
+    }
+
+    /**
+     * Records that the given player joined the given game
+     *
+     * @param game
+     * @param player
+     */
+    public void playerAdded(GameManager game, User player) {
+        append(playerAdded, game, player.getIdLong(), 0);
+    }
+
+    /**
+     * Records that the given player left the given game
+     *
+     * @param game
+     * @param player
+     */
+    public void playerRemoved(GameManager game, User player) {
+        append(playerRemoved, game, player.getIdLong(), 0);
+    }
+
+    /**
+     * Records that the given role can be played in the given game
+     *
+     * @param game
+     * @param role
+     */
+    public void roleAdded(GameManager game, GameRole role) {
+        append(roleAdded, game, role.id, 0);
+    }
+
+    /**
+     * Records that the given role can no longer be played in the given game
+     *
+     * @param game
+     * @param role
+     */
+    public void roleRemoved(GameManager game, GameRole role) {
+        append(roleRemoved, game, role.id, 0);
+    }
+
+    /**
+     * Records the state the given game moved to. Moving back to NEW clears
+     * all held roles and used abilities.
+     *
+     * @param game
+     * @param state
+     */
+    public void stateChanged(GameManager game, GameState state) {
+        append(stateChanged, game, state.ordinal(), 0);
+    }
+
+    /**
+     * Records that the given player was given the given role
+     *
+     * @param game
+     * @param player
+     * @param role
+     */
+    public void roleAssigned(GameManager game, User player, GameRole role) {
+        append(roleAssigned, game, player.getIdLong(), role.id);
+    }
+
+    /**
+     * Records that the given player no longer holds any roles
+     *
+     * @param game
+     * @param player
+     */
+    public void rolesCleared(GameManager game, User player) {
+        append(rolesCleared, game, player.getIdLong(), 0);
+    }
+
+    /**
+     * Records that an ability was used
+     *
+     * @param game
+     * @param ability veto, execution or detect
+     */
+    public void abilityUsed(GameManager game, int ability) {
+        append(abilityUsed, game, ability, 0);
+    }
+
+    /**
+     * Records that the given game was deleted
+     *
+     * @param game
+     */
+    public void removed(GameManager game) {
+        append(removed, game, 0, 0);
+    }
+
+    /**
+     * Records that the given recovered game could not be restored
+     *
+     * @param image
+     */
+    public void discard(GameImage image) {
+        append(removed, image.ownerId, 0, 0);
+    }
+
+    /**
+     * Queues a record for the writer
+     *
+     * @param type
+     * @param game
+     * @param a
+     * @param b
+     */
+    private void append(byte type, GameManager game, long a, long b) {
+        append(type, game.getOwner().getIdLong(), a, b);
+    }
+
+    /**
+     * Queues a record for the writer
+     *
+     * @param type
+     * @param owner
+     * @param a
+     * @param b
+     */
+    void append(byte type, long owner, long a, long b) {
+        if (queue != null && !closed) {
+            queue.add(new Record(type, owner, a, b));
+        }
+    }
+
+    /**
+     * Writes everything that is queued and stops the writer
+     */
+    public void close() {
+        if (writer == null || closed) {
+            return;
+        }
+        closed = true;
+        queue.add(stop);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // -- Writing --
+    /**
+     * Runs on the writer thread. Writes queued records in batches until
+     * closed.
+     */
+    private void write() {
+        List<Record> batch = new ArrayList<>(maximumBatchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                // Interrupting would close the file channel, so only close stops the writer
+                continue;
+            }
+            queue.drainTo(batch, maximumBatchSize - batch.size());
+
+            // Write anything that was queued while closing too
+            stopping = batch.removeIf(record -> record == stop);
+            if (stopping) {
+                queue.drainTo(batch);
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            try {
+                writeBatch(batch);
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(GameJournal.class.getName()).log(Level.SEVERE, "Could not write to the game journal", ex);
+            }
+            batch.clear();
+        }
+
+        try {
+            buffer.force();
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(GameJournal.class.getName()).log(Level.WARNING, ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Applies and writes the given records, compacting first if needed
+     *
+     * @param batch
+     * @throws IOException
+     */
+    private void writeBatch(List<Record> batch) throws IOException {
+        synchronized (this) {
+            batch.forEach(this::apply);
+        }
+
+        if (buffer.remaining() < (batch.size() + 1) * recordSize || recordsSinceSnapshot >= compactEveryRecords) {
+            // The images already include this batch
+            int needed = headerSize + (snapshotSize() + 1) * recordSize;
+            int capacity = initialCapacity;
+            while (capacity < needed * 2) {
+                capacity *= 2;
+            }
+            compact(capacity);
+            return;
+        }
+
+        for (Record record : batch) {
+            put(buffer, record.type, record.owner, record.a, record.b);
+        }
+        recordsSinceSnapshot += batch.size();
+        buffer.force();
+    }
+
+    /**
+     * Writes one record. The type goes in last so a partly written record
+     * still reads as the end of the journal.
+     *
+     * @param buffer
+     * @param type
+     * @param owner
+     * @param a
+     * @param b
+     */
+    private static void put(MappedByteBuffer buffer, byte type, long owner, long a, long b) {
+        int start = buffer.position();
+        buffer.putLong(start + 1, owner);
+        buffer.putLong(start + 9, a);
+        buffer.putLong(start + 17, b);
+        buffer.put(start, type);
+        buffer.position(start + recordSize);
+    }
+
+    /**
+     * Replaces the journal with one that only holds the records needed to
+     * recreate the current images.
+     *
+     * @param capacity The size of the new file
+     * @throws IOException
+     */
+    private synchronized void compact(int capacity) throws IOException {
+        int needed = headerSize + (snapshotSize() + 1) * recordSize;
+        capacity = Math.max(capacity, needed);
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try ( FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer tempBuffer = tempChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            tempBuffer.putInt(magic);
+            tempBuffer.putInt(formatVersion);
+            for (GameImage image : images.values()) {
+                for (long[] record : image.toRecords()) {
+                    put(tempBuffer, (byte) record[0], image.ownerId, record[1], record[2]);
+                }
+            }
+            tempBuffer.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        buffer.position(needed - recordSize);
+        recordsSinceSnapshot = 0;
+    }
+
+    /**
+     * Gives the number of records a snapshot of the current images takes
+     *
+     * @return
+     */
+    private int snapshotSize() {
+        int size = 0;
+        for (GameImage image : images.values()) {
+            size += image.toRecords().size();
+        }
+        return size;
+    }
+
+    // -- Reading --
+    /**
+     * Reads every record in the journal file into the images
+     *
+     * @throws IOException
+     */
+    private void replay() throws IOException {
+        try ( FileChannel replayChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (replayChannel.size() < headerSize) {
+                return;
+            }
+            MappedByteBuffer replayBuffer = replayChannel.map(FileChannel.MapMode.READ_ONLY, 0, replayChannel.size());
+            if (replayBuffer.getInt() != magic || replayBuffer.getInt() != formatVersion) {
+                throw new IOException(String.format("%s is not a game journal of version %d.", file, formatVersion));
+            }
+
+            while (replayBuffer.remaining() >= recordSize) {
+                byte type = replayBuffer.get();
+                if (type == 0) {
+                    break;
+                }
+                apply(new Record(type, replayBuffer.getLong(), replayBuffer.getLong(), replayBuffer.getLong()));
+            }
+        }
+    }
+
+    /**
+     * Applies the given record to the images
+     *
+     * @param record
+     */
+    private void apply(Record record) {
+        if (record.type == create) {
+            images.put(record.owner, new GameImage(record.owner, record.a));
+            return;
+        } else if (record.type == removed) {
+            images.remove(record.owner);
+            return;
+        }
+
+        GameImage image = images.get(record.owner);
+        if (image != null) {
+            image.apply(record.type, record.a, record.b);
+        }
+    }
+
+    /**
+     * A single change to a game
+     */
+    private static class Record {
+
+        private final byte type;
+        private final long owner;
+        private final long a;
+        private final long b;
+
+        Record(byte type, long owner, long a, long b) {
+            this.type = type;
+            this.owner = owner;
+            this.a = a;
+            this.b = b;
+        }
+    }
+}
+
+/**
+ * A game as recorded in the journal, by IDs only
+ *
+ * @author maikotui
+ */
+class GameImage {
+
+    final long ownerId;
+    final long guildId;
+    long channelId;
+    long messageId;
+    final Set<Long> players = new LinkedHashSet<>();
+    final Set<Integer> roles = new LinkedHashSet<>();
+    GameState state = GameState.NEW;
+    final Map<Long, List<Integer>> heldRoles = new LinkedHashMap<>();
+    final boolean[] abilitiesUsed = new boolean[3];
+
+    GameImage(long ownerId, long guildId) {
+        this.ownerId = ownerId;
+        this.guildId = guildId;
+        players.add(ownerId);
+    }
+
+    /**
+     * Applies a change recorded for this game
+     *
+     * @param type
+     * @param a
+     * @param b
+     */
+    void apply(byte type, long a, long b) {
+        switch (type) {
+            case GameJournal.display -> {
+                channelId = a;
+                messageId = b;
+            }
+            case GameJournal.playerAdded ->
+                players.add(a);
+            case GameJournal.playerRemoved -> {
+                players.remove(a);
+                heldRoles.remove(a);
+            }
+            case GameJournal.roleAdded ->
+                roles.add((int) a);
+            case GameJournal.roleRemoved ->
+                roles.remove((int) a);
+            case GameJournal.stateChanged -> {
+                state = GameState.values()[(int) a];
+                if (state == GameState.NEW) {
+                    heldRoles.clear();
+                    Arrays.fill(abilitiesUsed, false);
+                }
+            }
+            case GameJournal.roleAssigned ->
+                heldRoles.computeIfAbsent(a, player -> new ArrayList<>()).add((int) b);
+            case GameJournal.rolesCleared ->
+                heldRoles.remove(a);
+            case GameJournal.abilityUsed -> {
+                if (a >= 0 && a < abilitiesUsed.length) {
+                    abilitiesUsed[(int) a] = true;
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Gives an independent copy of this image
+     *
+     * @return
+     */
+    GameImage copy() {
+        GameImage copy = new GameImage(ownerId, guildId);
+        toRecords().stream().skip(1).forEach(record -> copy.apply((byte) record[0], record[1], record[2]));
+        return copy;
+    }
+
+    /**
+     * Gives the records that recreate this image, each as {type, a, b}
+     *
+     * @return
+     */
+    List<long[]> toRecords() {
+        List<long[]> records = new ArrayList<>();
+        records.add(new long[]{GameJournal.create, guildId, 0});
+        if (messageId != 0) {
+            records.add(new long[]{GameJournal.display, channelId, messageId});
+        }
+        players.stream().filter(player -> player != ownerId).forEach(player -> records.add(new long[]{GameJournal.playerAdded, player, 0}));
+        roles.forEach(role -> records.add(new long[]{GameJournal.roleAdded, role, 0}));
+        if (state != GameState.NEW) {
+            records.add(new long[]{GameJournal.stateChanged, state.ordinal(), 0});
+            heldRoles.forEach((player, held) -> held.forEach(role -> records.add(new long[]{GameJournal.roleAssigned, player, role})));
+            for (int ability = 0; ability < abilitiesUsed.length; ability++) {
+                if (abilitiesUsed[ability]) {
+                    records.add(new long[]{GameJournal.abilityUsed, ability, 0});
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Gives every held role ID of the given player
+     *
+     * @param player
+     * @return
+     */
+    Collection<Integer> getHeldRoles(long player) {
+        return heldRoles.getOrDefault(player, List.of());
+    }
+}
@@ -16,31 +16,46 @@
  */
 package com.hmnlg.amongusplus;
 
-import java.awt.Color;
+import java.io.IOException;
+import java.time.Clock;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.dv8tion.jda.core.EmbedBuilder;
+import java.util.stream.Collectors;
+import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.entities.Guild;
 import net.dv8tion.jda.core.entities.Member;
 import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.entities.MessageEmbed;
+import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.entities.VoiceChannel;
+import net.dv8tion.jda.core.events.ReadyEvent;
+import net.dv8tion.jda.core.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberLeaveEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberNickChangeEvent;
 import net.dv8tion.jda.core.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.core.events.message.priv.PrivateMessageReceivedEvent;
 import net.dv8tion.jda.core.events.message.react.MessageReactionAddEvent;
+import net.dv8tion.jda.core.events.user.update.UserUpdateNameEvent;
 import net.dv8tion.jda.core.hooks.ListenerAdapter;
 import org.apache.commons.text.similarity.LevenshteinDistance;
-import org.joda.time.Instant;
-import org.joda.time.Interval;
 
 /**
  * A ListenerAdapter for a JDA object that listens for game commands.
@@ -55,25 +70,117 @@ public class GameListener extends ListenerAdapter {
     private final String prefix = "au+";
 
     /**
-     * A list of all the roles that this GameListener will listen for
+     * Commands that can be used in guild text channels
      */
-    private final List<GameRole> allRoles;
+    private final CommandRegistry<MessageReceivedEvent> guildCommands = new CommandRegistry<>(prefix);
 
     /**
-     * Role for the crewmates
+     * Commands that can be used in private messages with the bot
      */
-    private GameRole crewRole = new GameRole();
+    private final CommandRegistry<PrivateMessageReceivedEvent> privateCommands = new CommandRegistry<>("");
 
     /**
-     * Role for the imposters
+     * Gives the latest roles that this GameListener will listen for. Each game
+     * keeps the catalog it was created with.
      */
-    private GameRole imposterRole = new GameRole();
+    private final Supplier<RoleCatalog> roles;
 
     /**
      * The database of all created games. This will be purged periodically (see
      * purgeIntervalInMinutes)
      */
-    private final Map<User, GameManager> gameDB;
+    private final GameRegistry gameDB;
+
+    /**
+     * Index of every game's display message ID to its game. Used to resolve
+     * reactions without fetching the message they were added to.
+     */
+    private final Map<Long, GameManager> displayMessageIndex;
+
+    /**
+     * Throws away reactions that can't be on a display message before the
+     * index is looked up. Kept in step with the display message index.
+     */
+    private final ReactionFilter reactionFilter;
+
+    /**
+     * A fuzzy index of member names for every guild a player was searched in.
+     * Filled the first time a guild is searched, kept up to date by member
+     * events and dropped when the bot leaves the guild.
+     */
+    private final Map<Long, MemberNameIndex> memberNameIndexes;
+
+    /**
+     * The most edits a name can be away from a search and still be found
+     */
+    private final int maximumNameDistance = 3;
+
+    /**
+     * Shared by every search of player names, it holds no state
+     */
+    private static final LevenshteinDistance nameDistance = LevenshteinDistance.getDefaultInstance();
+
+    /**
+     * The shared thread pool that every game's mailbox runs on
+     */
+    private final ExecutorService gameExecutor;
+
+    /**
+     * Builds the embeds for every game's display message
+     */
+    private final GameEmbedRenderer renderer;
+
+    /**
+     * Coalesces the edits of every game's display message
+     */
+    private final DisplayUpdater displayUpdater;
+
+    /**
+     * Sends private messages to players and caches their private channels
+     */
+    private final DirectMessenger messenger;
+
+    /**
+     * The maximum number of private channels kept open
+     */
+    private final int maximumCachedPrivateChannels = 1000;
+
+    /**
+     * Records every change to every game so they can be restored after a
+     * restart
+     */
+    private final GameJournal journal;
+
+    /**
+     * The bot's internal metrics, served by the MetricsServer if enabled
+     */
+    private final Metrics metrics;
+
+    /**
+     * The reaction duration histogram of every game state, looked up once so
+     * reactions don't have to
+     */
+    private final Map<GameState, Metrics.Histogram> reactionDurations = new EnumMap<>(GameState.class);
+
+    /**
+     * Makes every request to Discord and counts them by route
+     */
+    private final RestGateway rest;
+
+    /**
+     * The listeners of every shard, shared with the other shards
+     */
+    private final GameShards shards;
+
+    /**
+     * The shard this listener handles the events of
+     */
+    private final int shardId;
+
+    /**
+     * Whether the games in the journal have been restored yet
+     */
+    private final AtomicBoolean restoredGames = new AtomicBoolean();
 
     /**
      * The timer that will run the purge command
@@ -81,9 +188,10 @@ public class GameListener extends ListenerAdapter {
     private final Timer purgeTimer;
 
     /**
-     * The amount of time in minutes between each purge of the database
+     * The amount of time in minutes between each purge of the database. This
+     * is also how precisely inactive games are expired.
      */
-    private final int purgeIntervalInMinutes = 20;
+    private final int purgeIntervalInMinutes = 1;
 
     /**
      * The amount of time in minutes since a state change for a game to be
@@ -91,72 +199,276 @@ public class GameListener extends ListenerAdapter {
      */
     private final int maximumInactiveTimeInMinutes = 20;
 
+    /**
+     * The number of slots in the expiry wheel. One rotation covers more than
+     * the maximum inactive time so games never wait a full rotation.
+     */
+    private final int expiryWheelSlots = 64;
+
+    /**
+     * The clock used to decide when games have been inactive for too long
+     */
+    private final Clock clock;
+
+    /**
+     * Holds the inactivity deadline of every game. Re-armed each time a game's
+     * state changes.
+     */
+    private final ExpiryWheel<GameManager> expiryWheel;
+
     /**
      * Toggle for debug mode
      */
-    private boolean debug;
+    private volatile boolean debug;
+
+    /**
+     * Set once this listener has handed its games over and must ignore events
+     */
+    private volatile boolean frozen;
 
     /**
      * Initializes a new listener for game commands. This will also start the
      * listener's database purge timer.
      *
-     * @param allRoles A list of all the roles this GameListener accepts
+     * @param roles Gives the latest roles this GameListener accepts
+     * @param debug Whether to start the GameListener in debug mode or not
+     */
+    public GameListener(Supplier<RoleCatalog> roles, boolean debug) {
+        this(roles, debug, Clock.systemUTC());
+    }
+
+    /**
+     * Initializes a new listener for game commands that reads the time from
+     * the given clock. This will also start the listener's database purge
+     * timer.
+     *
+     * @param roles Gives the latest roles this GameListener accepts
+     * @param debug Whether to start the GameListener in debug mode or not
+     * @param clock The clock used to expire inactive games
+     */
+    public GameListener(Supplier<RoleCatalog> roles, boolean debug, Clock clock) {
+        this(roles, debug, clock, GameJournal.none());
+    }
+
+    /**
+     * Initializes a new listener for game commands that records every game in
+     * the given journal. Games recovered from the journal are restored once
+     * the bot is ready. This will also start the listener's database purge
+     * timer.
+     *
+     * @param roles Gives the latest roles this GameListener accepts
+     * @param debug Whether to start the GameListener in debug mode or not
+     * @param clock The clock used to expire inactive games
+     * @param journal The journal to record games in
+     */
+    public GameListener(Supplier<RoleCatalog> roles, boolean debug, Clock clock, GameJournal journal) {
+        this(roles, debug, clock, journal, new Metrics());
+    }
+
+    /**
+     * Initializes a new listener for game commands that records every game in
+     * the given journal and its internals in the given metrics. Games
+     * recovered from the journal are restored once the bot is ready. This will
+     * also start the listener's database purge timer.
+     *
+     * @param roles Gives the latest roles this GameListener accepts
+     * @param debug Whether to start the GameListener in debug mode or not
+     * @param clock The clock used to expire inactive games
+     * @param journal The journal to record games in
+     * @param metrics The metrics to record in
+     */
+    public GameListener(Supplier<RoleCatalog> roles, boolean debug, Clock clock, GameJournal journal, Metrics metrics) {
+        this(roles, debug, clock, journal, metrics, new GameShards(), 0);
+    }
+
+    /**
+     * Initializes a new listener for the games of one shard. Games recovered
+     * from the journal are restored once the shard is ready if their guild is
+     * on it. This will also start the listener's database purge timer.
+     *
+     * @param roles Gives the latest roles this GameListener accepts
+     * @param debug Whether to start the GameListener in debug mode or not
+     * @param clock The clock used to expire inactive games
+     * @param journal The journal to record games in, shared by every shard
+     * @param metrics The metrics to record in
+     * @param shards The listeners of every shard
+     * @param shardId The shard this listener handles the events of
+     */
+    public GameListener(Supplier<RoleCatalog> roles, boolean debug, Clock clock, GameJournal journal, Metrics metrics, GameShards shards, int shardId) {
+        this(roles, debug, clock, journal, metrics, shards.getRestGateway(metrics), shards, shardId);
+    }
+
+    /**
+     * Initializes a new listener for game commands that makes every request to
+     * Discord through the given gateway.
+     *
+     * @param roles Gives the latest roles this GameListener accepts
+     * @param debug Whether to start the GameListener in debug mode or not
+     * @param clock The clock used to expire inactive games
+     * @param journal The journal to record games in
+     * @param metrics The metrics to record in
+     * @param rest The gateway to make requests through
+     */
+    GameListener(Supplier<RoleCatalog> roles, boolean debug, Clock clock, GameJournal journal, Metrics metrics, RestGateway rest) {
+        this(roles, debug, clock, journal, metrics, rest, new GameShards(), 0);
+    }
+
+    /**
+     * Initializes a new listener for the games of one shard that makes every
+     * request to Discord through the given gateway.
+     *
+     * @param roles Gives the latest roles this GameListener accepts
      * @param debug Whether to start the GameListener in debug mode or not
+     * @param clock The clock used to expire inactive games
+     * @param journal The journal to record games in
+     * @param metrics The metrics to record in
+     * @param rest The gateway to make requests through
+     * @param shards The listeners of every shard
+     * @param shardId The shard this listener handles the events of
      */
-    public GameListener(List<GameRole> allRoles, boolean debug) {
+    GameListener(Supplier<RoleCatalog> roles, boolean debug, Clock clock, GameJournal journal, Metrics metrics, RestGateway rest, GameShards shards, int shardId) {
         super();
 
         // Assign from arguments
-        this.allRoles = allRoles;
-        for (GameRole role : this.allRoles) {
-            if (role.id == 1) {
-                crewRole = role;
-            }
-            if (role.id == 2) {
-                imposterRole = role;
-            }
-        }
+        this.roles = roles;
         this.debug = debug;
-
-        // Create a new database
-        gameDB = new HashMap<>();
+        this.clock = clock;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.rest = rest;
+        this.shards = shards;
+        this.shardId = shardId;
+        registerCommands();
+
+        // Create a new database, players are shared with the other shards
+        gameDB = new GameRegistry(shards.getPlayers());
+        displayMessageIndex = new ConcurrentHashMap<>();
+        reactionFilter = new ReactionFilter(metrics, shardId);
+        memberNameIndexes = new ConcurrentHashMap<>();
+
+        renderer = new GameEmbedRenderer();
+        displayUpdater = new DisplayUpdater(renderer, rest);
+        messenger = new DirectMessenger(maximumCachedPrivateChannels, rest);
+        registerMetrics();
+
+        // Create the pool that runs the games
+        gameExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "GameExecutor");
+            thread.setDaemon(true);
+            return thread;
+        });
 
         // Create a timer for purging the database of old 
+        expiryWheel = new ExpiryWheel<>(expiryWheelSlots, purgeIntervalInMinutes * 60000L, maximumInactiveTimeInMinutes * 60000L, clock, this::onGameExpired);
         purgeTimer = new Timer();
         purgeTimer.scheduleAtFixedRate(new PurgeTimerTask(this), purgeIntervalInMinutes * 60000L, purgeIntervalInMinutes * 60000L);
     }
 
     /**
-     * Creates a new GameListener with the same roles and debug state as the
-     * previous. The game database will be empty and a new timer for database
-     * purging will be created and started.
+     * Creates a new GameListener that takes over every game of the previous
+     * one. The game database, expiry schedule, display message bindings and
+     * display updater are handed over as they are, so edits that are still in
+     * flight or pending finish in order; the commands and purge timer are
+     * created fresh. The previous listener should be frozen first
+     * (see freeze) and must not be used afterwards.
      *
-     * @param gameListener The game listener to inherit values from
+     * @param gameListener The game listener to take over from
      */
     public GameListener(GameListener gameListener) {
         super();
 
         // Assign from arguments
-        this.allRoles = gameListener.allRoles;
-        for (GameRole role : this.allRoles) {
-            if (role.id == 1) {
-                crewRole = role;
-            }
-            if (role.id == 2) {
-                imposterRole = role;
+        this.roles = gameListener.roles;
+        this.debug = gameListener.debug;
+        this.clock = gameListener.clock;
+        this.journal = gameListener.journal;
+        this.metrics = gameListener.metrics;
+        this.rest = gameListener.rest;
+        this.shards = gameListener.shards;
+        this.shardId = gameListener.shardId;
+        registerCommands();
+        restoredGames.set(gameListener.restoredGames.get());
+
+        // Take over the games and everything that points at them
+        gameDB = gameListener.gameDB;
+        displayMessageIndex = gameListener.displayMessageIndex;
+        reactionFilter = gameListener.reactionFilter;
+        memberNameIndexes = gameListener.memberNameIndexes;
+
+        // Keep running games on the same pool
+        gameExecutor = gameListener.gameExecutor;
+
+        // Keep the edit state of every display so no two edits of one message are in flight
+        renderer = gameListener.renderer;
+        displayUpdater = gameListener.displayUpdater;
+        messenger = gameListener.messenger;
+        registerMetrics();
+
+        // Stop old timer from running, then take over its schedule
+        gameListener.purgeTimer.cancel();
+        expiryWheel = gameListener.expiryWheel;
+        expiryWheel.setOnExpire(this::onGameExpired);
+        purgeTimer = new Timer();
+        purgeTimer.scheduleAtFixedRate(new PurgeTimerTask(this), purgeIntervalInMinutes * 60000L, purgeIntervalInMinutes * 60000L);
+    }
+
+    /**
+     * Stops this listener from handling any more events and waits for every
+     * game to finish the work already queued for it.
+     *
+     * @param timeoutInMillis The longest time to wait
+     * @return True if every game finished. False if the timeout was reached.
+     */
+    public boolean freeze(long timeoutInMillis) {
+        frozen = true;
+        long deadline = System.nanoTime() + timeoutInMillis * 1000000L;
+        while (!gameDB.games().allMatch(GameManager::isIdle)) {
+            if (System.nanoTime() > deadline) {
+                return false;
             }
+            LockSupport.parkNanos(100000);
         }
-        this.debug = gameListener.debug;
+        return true;
+    }
+
+    /**
+     * Stops the purge timer and the pool that runs the games. Only for a
+     * listener that was not handed over, since the new listener keeps using
+     * the pool.
+     */
+    public void stop() {
+        frozen = true;
+        purgeTimer.cancel();
+        gameExecutor.shutdown();
+    }
 
-        // Create a new database
-        gameDB = new HashMap<>();
+    /**
+     * Gives the game the given user owns in the given guild
+     *
+     * @param guildId
+     * @param ownerId
+     * @return The game if found. Null otherwise.
+     */
+    GameManager getGame(long guildId, long ownerId) {
+        return gameDB.get(guildId, ownerId);
+    }
 
-        // Stop old timer from running
-        gameListener.purgeTimer.cancel();
+    /**
+     * Gives the shard this listener handles the events of
+     *
+     * @return
+     */
+    public int getShardId() {
+        return shardId;
+    }
 
-        // Create a timer for purging the database of old 
-        purgeTimer = new Timer();
-        purgeTimer.scheduleAtFixedRate(new PurgeTimerTask(this), purgeIntervalInMinutes * 60000L, purgeIntervalInMinutes * 60000L);
+    /**
+     * Gives the number of games currently running
+     *
+     * @return
+     */
+    public int getGameCount() {
+        return gameDB.size();
     }
 
     /**
@@ -169,6 +481,193 @@ public class GameListener extends ListenerAdapter {
         return debug;
     }
 
+    /**
+     * Registers every guild and private message command this GameListener
+     * responds to.
+     */
+    private void registerCommands() {
+        // ----- ALWAYS ACTIVE COMMANDS -----
+        guildCommands.register("ping", this::onPingCommand);
+        guildCommands.register("help", this::onHelpCommand, "?");
+        guildCommands.register("roles", this::onRolesCommand);
+
+        // ----- GAME COMMANDS ----
+        guildCommands.register("create", this::onCreateCommand);
+        guildCommands.register("info", this::onInfoCommand);
+        guildCommands.register("stop", this::onStopCommand);
+        guildCommands.register("padd", this::onAddPlayerCommand);
+        guildCommands.register("prem", this::onRemovePlayerCommand);
+        guildCommands.register("radd", this::onAddRoleCommand);
+        guildCommands.register("rrem", this::onRemoveRoleCommand);
+
+        // ----- ABILITY COMMANDS (private messages) -----
+        privateCommands.register("veto", this::onVetoCommand);
+        privateCommands.register("execute", this::onExecuteCommand);
+        privateCommands.register("detect", this::onDetectCommand);
+    }
+
+    /**
+     * Points the metrics at this listener's games and records every command
+     * this listener runs. Replaces the gauges of any previous listener.
+     */
+    private void registerMetrics() {
+        for (GameState state : GameState.values()) {
+            metrics.gauge("amongus_games", "Games in the database by shard and state", () -> gameDB.games().filter(game -> game.getState() == state).count(), "shard", Integer.toString(shardId), "state", state.name().toLowerCase());
+            reactionDurations.put(state, metrics.histogram("amongus_reaction_duration_seconds", "Time from receiving a reaction to a display message to handling it, by game state", "state", state.name().toLowerCase()));
+        }
+        metrics.counterFunction("amongus_private_channel_cache_requests_total", "Private channel lookups by whether the channel was cached", messenger::getCacheHits, "shard", Integer.toString(shardId), "result", "hit");
+        metrics.counterFunction("amongus_private_channel_cache_requests_total", "Private channel lookups by whether the channel was cached", messenger::getCacheMisses, "shard", Integer.toString(shardId), "result", "miss");
+        guildCommands.setObserver(this::recordCommand);
+        privateCommands.setObserver(this::recordCommand);
+    }
+
+    /**
+     * Records how long the given command took
+     *
+     * @param command
+     * @param nanos
+     */
+    private void recordCommand(String command, long nanos) {
+        metrics.histogram("amongus_command_duration_seconds", "Time from receiving each command until it was handled, including waiting for the game's mailbox", "command", command).observeNanos(nanos);
+    }
+
+    /**
+     * Queues the work of the command being dispatched on the given game's
+     * mailbox. The command counts as handled once the work ran.
+     *
+     * @param game
+     * @param task
+     */
+    private void submitCommand(GameManager game, Runnable task) {
+        CommandRegistry.Completion completion = CommandRegistry.defer();
+        game.submit(() -> {
+            try {
+                task.run();
+            } finally {
+                completion.done();
+            }
+        });
+    }
+
+    /**
+     * Gives the metrics this listener records in
+     *
+     * @return
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gives the gateway every request to Discord goes through
+     *
+     * @return
+     */
+    public RestGateway getRestGateway() {
+        return rest;
+    }
+
+    /**
+     * Gives a summary of how often each command ran and how long it took.
+     *
+     * @return
+     */
+    public String getCommandStats() {
+        return guildCommands.statsToString() + privateCommands.statsToString();
+    }
+
+    /**
+     * Ran once the shard has connected. Restores the games recovered from the
+     * journal whose guild is on this shard, now that their users and channels
+     * can be looked up.
+     *
+     * @param event
+     */
+    @Override
+    public void onReady(ReadyEvent event) {
+        if (restoredGames.compareAndSet(false, true)) {
+            List<GameImage> recovered = journal.getRecoveredGames().stream()
+                    .filter(image -> GameShards.shardOf(image.guildId, event.getJDA()) == shardId)
+                    .collect(Collectors.toList());
+            recovered.forEach(image -> restoreGame(event.getJDA(), image));
+
+            // Players of games that couldn't be restored may join games of other processes again
+            shards.retainPlayers(shardId, gameDB.games().flatMap(game -> game.getAllPlayers().stream()).map(User::getIdLong).collect(Collectors.toSet()));
+            if (!recovered.isEmpty()) {
+                Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Restored %d game(s) from the journal", gameDB.size()));
+            }
+        }
+    }
+
+    /**
+     * Recreates a game recovered from the journal and rebinds it to its
+     * display message. Players who can no longer be found are left out.
+     *
+     * @param jda
+     * @param image
+     */
+    private void restoreGame(JDA jda, GameImage image) {
+        User owner = jda.getUserById(image.ownerId);
+        if (owner == null) {
+            journal.discard(image);
+            return;
+        }
+
+        // Look everything up by ID with the latest roles
+        RoleCatalog catalog = roles.get();
+        Map<Long, User> players = new LinkedHashMap<>();
+        image.players.forEach(playerId -> {
+            User player = jda.getUserById(playerId);
+            if (player != null) {
+                players.put(playerId, player);
+            }
+        });
+        List<GameRole> playableRoles = new ArrayList<>();
+        image.roles.forEach(roleId -> {
+            GameRole role = catalog.getById(roleId);
+            if (role != null) {
+                playableRoles.add(role);
+            }
+        });
+        Map<User, List<GameRole>> heldRoles = new HashMap<>();
+        players.forEach((playerId, player) -> {
+            List<GameRole> held = new ArrayList<>();
+            image.getHeldRoles(playerId).forEach(roleId -> {
+                GameRole role = catalog.getById(roleId);
+                if (role != null) {
+                    held.add(role);
+                }
+            });
+            heldRoles.put(player, held);
+        });
+
+        GameManager game = new GameManager(owner, image.guildId, new ArrayList<>(players.values()), catalog, playableRoles, gameExecutor);
+        game.restore(image.state, heldRoles, image.abilitiesUsed[GameJournal.veto], image.abilitiesUsed[GameJournal.execution], image.abilitiesUsed[GameJournal.detect]);
+        if (gameDB.putIfAbsent(game) != null) {
+            journal.discard(image);
+            return;
+        }
+        shards.claimPlayer(owner.getIdLong(), shardId);
+        players.values().forEach(player -> {
+            gameDB.claimPlayer(player.getIdLong(), game);
+            shards.claimPlayer(player.getIdLong(), shardId);
+        });
+        game.setJournal(journal);
+        game.setStateChangeListener(expiryWheel::schedule);
+        expiryWheel.schedule(game);
+
+        // Rebind the display message so its reactions work again
+        TextChannel channel = jda.getTextChannelById(image.channelId);
+        if (channel != null) {
+            rest.queue(RestRoute.MESSAGE_FETCH, channel.getMessageById(image.messageId), message -> game.submit(() -> {
+                if (isRegistered(game)) {
+                    bindDisplayMessage(game, message);
+                    displayUpdater.requestUpdate(game);
+                }
+            }), err -> Logger.getLogger(GameListener.class.getName()).log(Level.WARNING, String.format("Display message of restored game %s is gone", game), err));
+        }
+    }
+
     /**
      * Ran every time a message is received (excludes private messages). This
      * will look for the GameListener prefix and if it is present, parse the
@@ -179,276 +678,397 @@ public class GameListener extends ListenerAdapter {
     @Override
     public void onMessageReceived(MessageReceivedEvent event) {
         // Ignore bots
-        if (event.getAuthor().isBot()) {
+        if (frozen || event.getAuthor().isBot()) {
             return;
         }
 
         // All Bot Commands
-        if (event.getMessage().getContentRaw().startsWith(prefix)) {
-
-            // Get and store message and text content (used to simplify calls
-            Message message = event.getMessage();
-            String content = message.getContentRaw();
-
-            // ----- ALWAYS ACTIVE COMMANDS -----
-            // Ping Pong
-            if (content.equals(prefix + "ping")) {
-                message.addReaction("\u2705").queue();
-                sendResponse(message, "Pong :)");
-                if (debug) {
-                    Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Responded to ping from %s", message.getAuthor().getName()));
-                }
-            }
-
-            // Help Command
-            if (content.equals(prefix + "help") || content.equals(prefix + "?")) {
-                String helpText = prefix + "ping - Ping Pong to make sure I'm awake.\n\n";
-                helpText += prefix + "roles - Gives a list of roles that you can use in game.\n\n";
-                helpText += prefix + "create - Creates a new game in the voice channel you are in. (Best in Among Us VC). Note: Everyone in that voice channel will be added. Use the role names or alias to add them into the game on creation.\n\n";
-                helpText += prefix + "info - Shows the information for the game you are hosting. If you need to move the message to another chat, this is the best way to do it.";
-                helpText += prefix + "padd/prem - Adds or removes a player from a game.";
-                helpText += prefix + "radd/rrem - Adds or removes a role from a game.";
-                helpText += prefix + "stop - If you are done playing among us, issue this command at any time to stop the current game.";
-                sendResponse(message, helpText);
-                if (debug) {
-                    Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Responded to help command from %s", message.getAuthor().getName()));
-                }
-            }
+        guildCommands.dispatch(event.getMessage().getContentRaw(), event);
+    }
 
-            // List Roles
-            if (content.equals(prefix + "roles")) {
-                String roleInfo = "";
-                roleInfo = allRoles.stream().map(role -> role.name + "\n" + Arrays.toString(role.aliases) + "\n" + role.description + "\n\n").reduce(roleInfo, String::concat);
-                message.addReaction("\u2705").queue();
-                sendResponse(message, roleInfo);
-                if (debug) {
-                    Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Responded to roles command from %s", message.getAuthor().getName()));
-                }
-            }
+    /**
+     * Ping Pong
+     *
+     * @param event
+     * @param args
+     */
+    private void onPingCommand(MessageReceivedEvent event, String args) {
+        Message message = event.getMessage();
+        rest.queue(RestRoute.REACTION_ADD, RestPriority.COSMETIC, message.addReaction("\u2705"));
+        sendResponse(message, "Pong :)");
+        if (debug) {
+            Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Responded to ping from %s", message.getAuthor().getName()));
+        }
+    }
 
-            // ----- GAME COMMANDS ----
-            // Create command
-            if (content.startsWith(prefix + "create")) {
-                createGame(event.getMessage());
-            }
+    /**
+     * Help Command
+     *
+     * @param event
+     * @param args
+     */
+    private void onHelpCommand(MessageReceivedEvent event, String args) {
+        Message message = event.getMessage();
+        String helpText = prefix + "ping - Ping Pong to make sure I'm awake.\n\n";
+        helpText += prefix + "roles - Gives a list of roles that you can use in game.\n\n";
+        helpText += prefix + "create - Creates a new game in the voice channel you are in. (Best in Among Us VC). Note: Everyone in that voice channel will be added. Use the role names or alias to add them into the game on creation.\n\n";
+        helpText += prefix + "info - Shows the information for the game you are hosting. If you need to move the message to another chat, this is the best way to do it.";
+        helpText += prefix + "padd/prem - Adds or removes a player from a game.";
+        helpText += prefix + "radd/rrem - Adds or removes a role from a game.";
+        helpText += prefix + "stop - If you are done playing among us, issue this command at any time to stop the current game.";
+        sendResponse(message, helpText);
+        if (debug) {
+            Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Responded to help command from %s", message.getAuthor().getName()));
+        }
+    }
 
-            // Info command
-            if (content.equals(prefix + "info")) {
-                GameManager game = gameDB.get(event.getAuthor());
-                if (game != null) {
-                    // Get the embedded message 
-                    List<MessageEmbed> embeds = game.displayMessge.getEmbeds();
-                    if (embeds.size() > 0) {
-                        // Clone the embedded message
-                        MessageEmbed embed = embeds.get(0);
-                        game.displayMessge.getChannel().sendMessage(embed).queue((newMessage) -> { // Send the message and then add the appropriate reactions
-                            switch (game.getState()) { // Add reactions based on the gamestate
-                                case NEW -> {
-                                    newMessage.addReaction("\u2705").queue(); // Checkmark
-                                }
-                                case PREGAME -> {
-                                    newMessage.addReaction("\uD83C\uDDE8").queue(); // C
-                                    newMessage.addReaction("\uD83C\uDDEE").queue(); // I
-                                }
-                                case ACTIVE -> {
-                                    newMessage.addReaction("\uD83D\uDD04").queue(); // Restart
-                                    newMessage.addReaction("\uD83D\uDED1").queue(); // Stop
-                                }
-                                default -> {
-                                }
-                            }
-
-                            // Delete old message and replace with new message
-                            game.displayMessge.delete().queue();
-                            game.displayMessge = newMessage;
-                        });
-                    }
-                }
-            }
+    /**
+     * List Roles
+     *
+     * @param event
+     * @param args
+     */
+    private void onRolesCommand(MessageReceivedEvent event, String args) {
+        Message message = event.getMessage();
+        String roleInfo = "";
+        roleInfo = roles.get().getRoles().stream().map(role -> role.name + "\n" + Arrays.toString(role.aliases) + "\n" + role.description + "\n\n").reduce(roleInfo, String::concat);
+        rest.queue(RestRoute.REACTION_ADD, RestPriority.COSMETIC, message.addReaction("\u2705"));
+        sendResponse(message, roleInfo);
+        if (debug) {
+            Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Responded to roles command from %s", message.getAuthor().getName()));
+        }
+    }
 
-            // Stop command
-            if (content.equals(prefix + "stop")) {
-                tryDeleteUsersGame(event.getAuthor());
-            }
+    /**
+     * Create command
+     *
+     * @param event
+     * @param args
+     */
+    private void onCreateCommand(MessageReceivedEvent event, String args) {
+        if (event.getGuild() == null) {
+            sendErrorResponse(event.getMessage(), "Games can only be created in a server.");
+            return;
+        }
+        createGame(event.getMessage(), args);
+    }
 
-            // Add player command
-            if (content.startsWith(prefix + "padd")) {
-                // Ensure there is a player name provided
-                if (content.length() < prefix.length() + 5) {
-                    sendErrorResponse(event.getMessage(), "Please specify a player to add.");
+    /**
+     * Info command
+     *
+     * @param event
+     * @param args
+     */
+    private void onInfoCommand(MessageReceivedEvent event, String args) {
+        GameManager game = getOwnedGame(event);
+        if (game != null) {
+            submitCommand(game, () -> {
+                if (!isDisplayed(game)) {
                     return;
                 }
 
-                // Get the game the author is the owner of
-                GameManager game = gameDB.get(event.getAuthor());
-                if (game != null) {
-                    // Parse the name provided
-                    String nameToAdd = content.substring(prefix.length() + 5);
-                    User user = findUserInGuild(event.getGuild(), nameToAdd);
-
-                    // Add the player
-                    if (user != null) {
-                        game.addPlayer(user);
-                        refreshNewGameMessage(game);
+                // Render the current embed and send it in a new message
+                MessageEmbed embed = renderer.render(game, event.getJDA().getSelfUser());
+                rest.queue(RestRoute.MESSAGE_SEND, RestPriority.CRITICAL, game.displayMessge.getChannel().sendMessage(embed), (newMessage) -> game.submit(() -> { // Send the message and then add the appropriate reactions
+                    if (!isDisplayed(game)) {
+                        // Stopped while the message was on its way
+                        rest.queue(RestRoute.MESSAGE_DELETE, newMessage.delete());
+                        return;
+                    }
+                    switch (game.getState()) { // Add reactions based on the gamestate
+                        case NEW -> {
+                            rest.queue(RestRoute.REACTION_ADD, newMessage.addReaction("\u2705")); // Checkmark
+                        }
+                        case PREGAME -> {
+                            rest.queue(RestRoute.REACTION_ADD, newMessage.addReaction("\uD83C\uDDE8")); // C
+                            rest.queue(RestRoute.REACTION_ADD, newMessage.addReaction("\uD83C\uDDEE")); // I
+                        }
+                        case ACTIVE -> {
+                            rest.queue(RestRoute.REACTION_ADD, newMessage.addReaction("\uD83D\uDD04")); // Restart
+                            rest.queue(RestRoute.REACTION_ADD, newMessage.addReaction("\uD83D\uDED1")); // Stop
+                        }
+                        default -> {
+                        }
                     }
-                } else {
-                    sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
-                }
-            }
 
-            if (content.startsWith(prefix + "prem")) {
-                // Ensure there is a player name provided
-                if (content.length() < prefix.length() + 5) {
-                    sendErrorResponse(event.getMessage(), "Please specify a player to remove.");
-                    return;
-                }
+                    // Delete old message and replace with new message
+                    rest.queue(RestRoute.MESSAGE_DELETE, game.displayMessge.delete());
+                    bindDisplayMessage(game, newMessage);
+                }));
+            });
+        }
+    }
 
-                // Get the game the author is the owner of
-                GameManager game = gameDB.get(event.getAuthor());
+    /**
+     * Stop command
+     *
+     * @param event
+     * @param args
+     */
+    private void onStopCommand(MessageReceivedEvent event, String args) {
+        GameManager game = getOwnedGame(event);
+        if (game != null) {
+            submitCommand(game, () -> tryDeleteGame(game));
+        }
+    }
 
-                if (game != null) {
-                    // Parse the name provided
-                    String playerToRemove = content.substring(prefix.length() + 5);
-                    User user = findUserInGuild(event.getGuild(), playerToRemove);
+    /**
+     * Add player command
+     *
+     * @param event
+     * @param args The name of the player to add
+     */
+    private void onAddPlayerCommand(MessageReceivedEvent event, String args) {
+        // Ensure there is a player name provided
+        if (args.isEmpty()) {
+            sendErrorResponse(event.getMessage(), "Please specify a player to add.");
+            return;
+        }
 
-                    // Remove the player
-                    if (user != null) {
-                        if (user.equals(event.getAuthor())) {
-                            sendErrorResponse(event.getMessage(), "You can't remove yourself from the game since you're the game leader.");
-                            return;
-                        }
+        // Get the game the author is the owner of
+        GameManager game = getOwnedGame(event);
+        if (game != null) {
+            // Find the user with the name provided
+            User user = findUserInGuild(event.getMessage(), event.getGuild(), args);
 
-                        if (game.removePlayer(user)) {
+            // Add the player unless they are already in a game
+            if (user != null) {
+                submitCommand(game, () -> {
+                    if (!isRegistered(game)) {
+                        return;
+                    }
+                    GameManager currentGame = gameDB.claimPlayer(user.getIdLong(), game);
+                    if (currentGame == null && !claimSharedPlayer(user.getIdLong(), game)) {
+                        sendErrorResponse(event.getMessage(), String.format("%s is already in another game.", user.getName()));
+                    } else if (currentGame == null) {
+                        if (game.addPlayer(user)) {
                             refreshNewGameMessage(game);
+                        } else {
+                            releasePlayer(user.getIdLong(), game);
                         }
+                    } else if (currentGame != game) {
+                        sendErrorResponse(event.getMessage(), String.format("%s is already in another game.", user.getName()));
                     }
-                } else {
-                    sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
-                }
+                });
             }
+        } else {
+            sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
+        }
+    }
+
+    /**
+     * Remove player command
+     *
+     * @param event
+     * @param args The name of the player to remove
+     */
+    private void onRemovePlayerCommand(MessageReceivedEvent event, String args) {
+        // Ensure there is a player name provided
+        if (args.isEmpty()) {
+            sendErrorResponse(event.getMessage(), "Please specify a player to remove.");
+            return;
+        }
+
+        // Get the game the author is the owner of
+        GameManager game = getOwnedGame(event);
 
-            if (content.startsWith(prefix + "radd")) {
-                if (content.length() < prefix.length() + 5) {
-                    sendErrorResponse(event.getMessage(), "Please specify a role to add.");
+        if (game != null) {
+            // Find the user with the name provided
+            User user = findUserInGuild(event.getMessage(), event.getGuild(), args);
+
+            // Remove the player
+            if (user != null) {
+                if (user.equals(event.getAuthor())) {
+                    sendErrorResponse(event.getMessage(), "You can't remove yourself from the game since you're the game leader.");
                     return;
                 }
 
-                // Get the game the author is the owner of
-                GameManager game = gameDB.get(event.getAuthor());
-                if (game != null) {
-                    // Parse the role provided
-                    String roleToAdd = content.substring(prefix.length() + 5);
-                    GameRole role = findRoleFromString(roleToAdd);
+                submitCommand(game, () -> {
+                    if (isRegistered(game) && game.removePlayer(user)) {
+                        releasePlayer(user.getIdLong(), game);
+                        refreshNewGameMessage(game);
+                    }
+                });
+            }
+        } else {
+            sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
+        }
+    }
+
+    /**
+     * Add role command
+     *
+     * @param event
+     * @param args The name or alias of the role to add
+     */
+    private void onAddRoleCommand(MessageReceivedEvent event, String args) {
+        if (args.isEmpty()) {
+            sendErrorResponse(event.getMessage(), "Please specify a role to add.");
+            return;
+        }
+
+        // Get the game the author is the owner of
+        GameManager game = getOwnedGame(event);
+        if (game != null) {
+            // Parse the role provided
+            GameRole role = game.getRoleCatalog().find(args);
 
-                    // Add the role
-                    if (role != null) {
+            // Add the role
+            if (role != null) {
+                submitCommand(game, () -> {
+                    if (isRegistered(game)) {
                         game.addRole(role);
                         refreshNewGameMessage(game);
                     }
-
-                } else {
-                    sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
-                }
+                });
             }
 
-            if (content.startsWith(prefix + "rrem")) {
-                if (content.length() < prefix.length() + 5) {
-                    sendErrorResponse(event.getMessage(), "Please specify a role to add.");
-                    return;
-                }
+        } else {
+            sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
+        }
+    }
+
+    /**
+     * Remove role command
+     *
+     * @param event
+     * @param args The name or alias of the role to remove
+     */
+    private void onRemoveRoleCommand(MessageReceivedEvent event, String args) {
+        if (args.isEmpty()) {
+            sendErrorResponse(event.getMessage(), "Please specify a role to remove.");
+            return;
+        }
 
-                // Get the game the author is the owner of
-                GameManager game = gameDB.get(event.getAuthor());
-                if (game != null) {
-                    // Parse the role provided
-                    String roleToRemove = content.substring(prefix.length() + 5);
-                    GameRole role = findRoleFromString(roleToRemove);
+        // Get the game the author is the owner of
+        GameManager game = getOwnedGame(event);
+        if (game != null) {
+            // Parse the role provided
+            GameRole role = game.getRoleCatalog().find(args);
 
-                    // Add the role
-                    if (role != null) {
-                        if (game.removeRole(role)) {
-                            refreshNewGameMessage(game);
-                        }
+            // Remove the role
+            if (role != null) {
+                submitCommand(game, () -> {
+                    if (isRegistered(game) && game.removeRole(role)) {
+                        refreshNewGameMessage(game);
                     }
+                });
+            }
 
-                } else {
-                    sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
+        } else {
+            sendErrorResponse(event.getMessage(), "You are not the owner of any active games.");
+        }
+    }
+
+    /**
+     * Triggered when a new reaction is added in a Guild that the Bot is in.
+     * Used to interact with chat.
+     *
+     * @param event
+     */
+    @Override
+    public void onMessageReactionAdd(MessageReactionAddEvent event) {
+        // Ignore other emoji, other messages and reactions from this bot
+        if (frozen || !reactionFilter.test(event)) {
+            return;
+        }
+
+        // Check if this message is a game display message
+        GameManager game = displayMessageIndex.get(event.getMessageIdLong());
+        if (game == null) {
+            reactionFilter.countFalsePositive();
+            return;
+        }
+
+        User reactor = event.getUser();
+
+        long received = System.nanoTime();
+        String reactionText = event.getReactionEmote().getName();
+        rest.queue(RestRoute.REACTION_REMOVE, event.getReaction().removeReaction(reactor));
+        game.submit(() -> {
+            // Includes the time spent waiting for the game's mailbox
+            GameState state = game.getState();
+            onDisplayMessageUpdate(reactor, reactionText, game);
+            reactionDurations.get(state).observeNanos(System.nanoTime() - received);
+        });
+    }
+
+    /**
+     * Ran every time a private message is received.
+     *
+     * @param event Information regarding the message received
+     */
+    @Override
+    public void onPrivateMessageReceived(PrivateMessageReceivedEvent event) {
+        if (frozen) {
+            return;
+        }
+
+        // Private messages all arrive on shard 0, hand them to the shard of the author's game
+        GameListener owner = shards.getListenerOfPlayer(event.getAuthor().getIdLong(), event.getJDA());
+        if (owner != null && owner != this) {
+            owner.onPrivateMessageReceived(event);
+            return;
+        }
+
+        // The game may be on a shard of another process
+        String content = event.getMessage().getContentRaw();
+        if (owner == null && !(event instanceof ForwardedPrivateMessageEvent) && privateCommands.matches(content)) {
+            try {
+                if (shards.forwardPrivateMessage(event)) {
+                    return;
                 }
+            } catch (IOException ex) {
+                Logger.getLogger(GameListener.class.getName()).log(Level.WARNING, String.format("Could not forward a private message of %d: %s", event.getAuthor().getIdLong(), ex.getMessage()), ex);
+                sendErrorResponse(event.getMessage(), "Your game can't be reached right now. Try again in a moment.");
+                return;
             }
         }
+        privateCommands.dispatch(content, event);
+    }
+
+    /**
+     * Veto command
+     *
+     * @param event
+     * @param args
+     */
+    private void onVetoCommand(PrivateMessageReceivedEvent event, String args) {
+        GameManager game = gameDB.getByPlayer(event.getAuthor().getIdLong());
+        if (game != null) {
+            submitCommand(game, () -> useVeto(event.getMessage(), game));
+        } else {
+            sendErrorResponse(event.getMessage(), "Could not find a game you are a member of.");
+        }
     }
 
     /**
-     * Triggered when a new reaction is added in a Guild that the Bot is in.
-     * Used to interact with chat.
+     * Execute command
      *
      * @param event
+     * @param args The player to execute
      */
-    @Override
-    public void onMessageReactionAdd(MessageReactionAddEvent event) {
-        event.getChannel().getMessageById(event.getMessageId()).queue(message -> {
-            if (message.getAuthor().equals(event.getJDA().getSelfUser()) && !event.getUser().equals(event.getJDA().getSelfUser())) { // If message is from this bot and a user other than this bot reacted to a message
-                User reactor = event.getUser();
-                String reactionText = event.getReactionEmote().getName();
-                event.getReaction().removeReaction(event.getUser()).queue();
-
-                // Check if this message is a game display message
-                for (GameManager game : gameDB.values()) {
-                    if (game.displayMessge.getId() == null ? message.getId() == null : game.displayMessge.getId().equals(message.getId())) { // Message is a game message
-                        onDisplayMessageUpdate(reactor, reactionText, game);
-                        return;
-                    }
-                }
-            }
-        });
+    private void onExecuteCommand(PrivateMessageReceivedEvent event, String args) {
+        GameManager game = gameDB.getByPlayer(event.getAuthor().getIdLong());
+        if (game != null) {
+            submitCommand(game, () -> useExecute(event.getMessage(), args, game));
+        } else {
+            sendErrorResponse(event.getMessage(), "Could not find a game you are a member of.");
+        }
     }
 
     /**
-     * Ran every time a private message is received.
+     * Detective command
      *
-     * @param event Information regarding the message received
+     * @param event
+     * @param args The player and the suspected role
      */
-    @Override
-    public void onPrivateMessageReceived(PrivateMessageReceivedEvent event) {
-        // Ready up moved to embed reaction
-//        // Ready up message
-//        if (event.getMessage().getContentRaw().startsWith("ready")) {
-//            GameManager game = findGameForUser(event.getAuthor());
-//            if (game != null) {
-//                readyUp(event.getMessage(), game);
-//            } else {
-//                sendErrorResponse(event.getMessage(), "Could not find a game you are a member of.");
-//            }
-//        }
-
-        // Veto command
-        if (event.getMessage().getContentRaw().startsWith("veto")) {
-            GameManager game = gameDB.get(event.getAuthor());
-            if (game != null) {
-                useVeto(event.getMessage(), game);
-            } else {
-                sendErrorResponse(event.getMessage(), "Could not find a game you are a member of.");
-            }
-        }
-
-        // Execute command
-        if (event.getMessage().getContentRaw().startsWith("execute")) {
-            GameManager game = gameDB.get(event.getAuthor());
-            if (game != null) {
-                useExecute(event.getMessage(), game);
-            } else {
-                sendErrorResponse(event.getMessage(), "Could not find a game you are a member of.");
-            }
-        }
-
-        // Detective command
-        if (event.getMessage().getContentRaw().startsWith("detect")) {
-            GameManager game = gameDB.get(event.getAuthor());
-            if (game != null) {
-                useDetect(event.getMessage(), game);
-            } else {
-                sendErrorResponse(event.getMessage(), "Could not find a game you are a member of.");
-            }
+    private void onDetectCommand(PrivateMessageReceivedEvent event, String args) {
+        GameManager game = gameDB.getByPlayer(event.getAuthor().getIdLong());
+        if (game != null) {
+            submitCommand(game, () -> useDetect(event.getMessage(), args, game));
+        } else {
+            sendErrorResponse(event.getMessage(), "Could not find a game you are a member of.");
         }
     }
 
@@ -460,27 +1080,32 @@ public class GameListener extends ListenerAdapter {
      * @param game
      */
     private void onDisplayMessageUpdate(User updater, String updateText, GameManager game) {
+        // The reaction may have been looked up before the game was deleted
+        if (!isDisplayed(game)) {
+            return;
+        }
+
         switch (game.getState()) {
             case NEW -> {
                 if (updateText.contains("\u2705")) { // Checkmark
-                    game.displayMessge.clearReactions().queue((obj) -> startGame(game));
+                    clearReactions(game.displayMessge, () -> game.submit(() -> startGame(game)));
                 }
             }
             case PREGAME -> {
                 GameRole chosenRole = null;
                 if (updateText.contains("\uD83C\uDDE8")) { // C
-                    chosenRole = this.crewRole;
+                    chosenRole = game.getRoleCatalog().getCrewRole();
                 } else if (updateText.contains("\uD83C\uDDEE")) { // I
-                    chosenRole = this.imposterRole;
+                    chosenRole = game.getRoleCatalog().getImposterRole();
                 }
 
                 readyUp(updater, chosenRole, game);
             }
             case ACTIVE -> {
                 if (updateText.contains("\uD83D\uDD04")) { // Restart command
-                    game.resetGame();
-                } else if (updateText.contains("\uD83D\uDED1")) { // Stop command
-                    tryDeleteUsersGame(updater);
+                    resetToNewGame(game);
+                } else if (updateText.contains("\uD83D\uDED1") && updater.equals(game.getOwner())) { // Stop command
+                    tryDeleteGame(game);
                 }
             }
             default -> {
@@ -489,115 +1114,151 @@ public class GameListener extends ListenerAdapter {
     }
 
     /**
-     * Refreshes the game message (only works for games with "New" state).
+     * Gets the game the author of the given guild message owns in that guild.
      *
-     * @param game
+     * @param event
+     * @return The game if found. Null otherwise.
      */
-    private void refreshNewGameMessage(GameManager game) {
-        if (game.displayMessge != null) {
-            List<MessageEmbed> gameMessageEmbeds = game.displayMessge.getEmbeds();
-            if (!gameMessageEmbeds.isEmpty()) {
-                MessageEmbed originalEmbed = gameMessageEmbeds.get(0);
-
-                EmbedBuilder eb = new EmbedBuilder();
-                eb.setColor(originalEmbed.getColor());
-                eb.setTitle(originalEmbed.getTitle());
-                eb.setAuthor(originalEmbed.getAuthor().getName(), originalEmbed.getAuthor().getUrl(), originalEmbed.getAuthor().getIconUrl());
-
-                StringBuilder sb = new StringBuilder();
-                for (GameRole role : game.playableRoles) {
-                    sb.append(String.format("> __%s__:\n> ```%s```\n", role.name, role.description));
-                }
-                eb.addField("Roles:", sb.toString(), true);
-
-                sb = new StringBuilder();
-                for (User user : game.getAllPlayers()) {
-                    sb.append(user.getAsMention());
-                    sb.append("\n");
-                }
-                eb.addField("Players", String.format(">>> %s", sb.toString()), true);
+    private GameManager getOwnedGame(MessageReceivedEvent event) {
+        if (event.getGuild() == null) {
+            return null;
+        }
+        return gameDB.get(event.getGuild().getIdLong(), event.getAuthor().getIdLong());
+    }
 
-                eb.addField("What Next?", "To add or remove players, use the ***padd*** or ***prem*** commands.\nTo add or remove roles, use the ***radd*** or ***rrem*** commands.\nTo start the game, click on the \u2705 emote.", false);
+    /**
+     * Checks if the given game is still in the database. Tasks on a game's
+     * mailbox can run after the game was deleted, so they check this before
+     * changing the game.
+     *
+     * @param game
+     * @return
+     */
+    private boolean isRegistered(GameManager game) {
+        return gameDB.get(game.getGuildId(), game.getOwner().getIdLong()) == game;
+    }
 
-                eb.setFooter(originalEmbed.getFooter().getText(), originalEmbed.getFooter().getIconUrl());
+    /**
+     * Checks if the given game is still in the database and still has its
+     * display message
+     *
+     * @param game
+     * @return
+     */
+    private boolean isDisplayed(GameManager game) {
+        return isRegistered(game) && game.displayMessge != null;
+    }
 
-                game.displayMessge.editMessage(eb.build()).queue();
-            }
+    /**
+     * Makes the given message the display message of the given game and
+     * replaces the game's previous display message in the index.
+     *
+     * @param game
+     * @param message
+     */
+    private void bindDisplayMessage(GameManager game, Message message) {
+        // Index first, so reactions work as soon as the message is visible on the game
+        Message previousMessage = game.displayMessge;
+        reactionFilter.addDisplayMessage(message.getIdLong());
+        if (displayMessageIndex.put(message.getIdLong(), game) != null) {
+            // Already indexed, the filter holds it once per indexed message
+            reactionFilter.removeDisplayMessage(message.getIdLong());
+        }
+        game.displayMessge = message;
+        journal.displayed(game, message);
+        if (previousMessage != null && previousMessage.getIdLong() != message.getIdLong()
+                && displayMessageIndex.remove(previousMessage.getIdLong(), game)) {
+            reactionFilter.removeDisplayMessage(previousMessage.getIdLong());
         }
     }
 
     /**
-     * Parses the create command. Creates a game for the user who sent the
-     * message using the audio channel they're in.
+     * Removes the display message of the given game from the index so
+     * reactions on it are ignored.
      *
-     * @param event Message received event that issued the command
+     * @param game
      */
-    private void createGame(Message sourceMessage) {
-        if (gameDB.containsKey(sourceMessage.getAuthor())) {
-            sendErrorResponse(sourceMessage, "You are already the creator of another game.");
-            return;
+    private void unbindDisplayMessage(GameManager game) {
+        if (game.displayMessge != null && displayMessageIndex.remove(game.displayMessge.getIdLong(), game)) {
+            reactionFilter.removeDisplayMessage(game.displayMessge.getIdLong());
         }
+    }
 
-        // Create the list of game members and add the author of the message as a member
-        ArrayList<User> gameMembers = new ArrayList<>();
-        gameMembers.add(sourceMessage.getAuthor());
+    /**
+     * Refreshes the game message (only works for games with "New" state).
+     *
+     * @param game
+     */
+    private void refreshNewGameMessage(GameManager game) {
+        displayUpdater.requestUpdate(game);
+    }
 
-        // Parse out the arguments given
+    /**
+     * Parses the create command. Creates a game for the user who sent the
+     * message using the audio channel they're in.
+     *
+     * @param sourceMessage Message that issued the command
+     * @param args The names or aliases of the roles to play with
+     */
+    private void createGame(Message sourceMessage, String args) {
+        // Parse out the arguments given with the latest roles, the game keeps using these
+        RoleCatalog catalog = roles.get();
         HashSet<GameRole> rolesForThisGame = new HashSet<>();
-        if (sourceMessage.getContentRaw().length() > (prefix + "create").length()) {
-            String[] postCommandArgs = sourceMessage.getContentRaw().substring((prefix + "create").length() + 1).split(" ");
+        if (!args.isEmpty()) {
+            String[] postCommandArgs = args.split(" ");
             for (String arg : postCommandArgs) {
-                GameRole role = findRoleFromString(arg);
+                GameRole role = catalog.find(arg);
                 if (role != null && !role.isDefault) {
                     rolesForThisGame.add(role);
                 }
             }
         }
 
-        // Add all users from voice chat except for the author to the game
-        VoiceChannel vc = sourceMessage.getMember().getVoiceState().getChannel();
-        if (vc != null) {
-            for (Member vcMember : vc.getMembers()) {
-                if (!vcMember.getUser().equals(sourceMessage.getAuthor())) {
-                    gameMembers.add(vcMember.getUser());
-                }
-            }
-        }
-
-        EmbedBuilder eb = new EmbedBuilder();
-        eb.setColor(Color.green);
-        eb.setTitle(String.format("Among Us+ Game", sourceMessage.getAuthor().getName()));
-        eb.setAuthor("Among Us+ Bot", "https://github.com/humanalog/among-us-plus/", sourceMessage.getJDA().getSelfUser().getAvatarUrl());
-
-        StringBuilder sb = new StringBuilder();
-        for (GameRole role : rolesForThisGame) {
-            sb.append(String.format("> __%s__:\n> ```%s```\n", role.name, role.description));
+        // Claim the game for the author before anything is sent
+        List<User> gameMembers = new ArrayList<>();
+        gameMembers.add(sourceMessage.getAuthor());
+        GameManager game = new GameManager(sourceMessage.getAuthor(), sourceMessage.getGuild().getIdLong(), gameMembers, catalog, new ArrayList<>(rolesForThisGame), gameExecutor);
+        if (gameDB.putIfAbsent(game) != null) {
+            sendErrorResponse(sourceMessage, "You are already in another game.");
+            return;
         }
-        eb.addField("Roles:", sb.toString(), true);
-
-        sb = new StringBuilder();
-        for (User user : gameMembers) {
-            sb.append(user.getAsMention());
-            sb.append("\n");
+        if (!shards.claimPlayer(sourceMessage.getAuthor().getIdLong(), shardId)) {
+            gameDB.remove(game);
+            sendErrorResponse(sourceMessage, "You are already in another game.");
+            return;
         }
-        eb.addField("Players", String.format(">>> %s", sb.toString()), true);
-
-        eb.addField("What Next?", "To add or remove players, use the ***padd*** or ***prem*** commands.\nTo add or remove roles, use the ***radd*** or ***rrem*** commands.\nTo start the game, click on the \u2705 emote.", false);
-
-        eb.setFooter(String.format("Game created by %s", sourceMessage.getAuthor().getAsTag()), sourceMessage.getAuthor().getAvatarUrl());
-
-        sourceMessage.getChannel().sendMessage(eb.build()).queue(message -> {
-            // Try to start game with given member list
-            GameManager game = new GameManager(gameMembers, new ArrayList<>(rolesForThisGame));
-            game.displayMessge = message;
+        game.setJournal(journal);
+        journal.created(game);
+        game.setStateChangeListener(expiryWheel::schedule);
+        expiryWheel.schedule(game);
+
+        submitCommand(game, () -> {
+            // Add all users from voice chat who aren't already in a game
+            VoiceChannel vc = sourceMessage.getMember().getVoiceState().getChannel();
+            if (vc != null) {
+                for (Member vcMember : vc.getMembers()) {
+                    User user = vcMember.getUser();
+                    if (!user.equals(sourceMessage.getAuthor()) && gameDB.claimPlayer(user.getIdLong(), game) == null && claimSharedPlayer(user.getIdLong(), game)) {
+                        game.addPlayer(user);
+                    }
+                }
+            }
 
-            gameDB.put(sourceMessage.getAuthor(), game);
+            MessageEmbed embed = renderer.render(game, sourceMessage.getJDA().getSelfUser());
+            rest.queue(RestRoute.MESSAGE_SEND, RestPriority.CRITICAL, sourceMessage.getChannel().sendMessage(embed), message -> game.submit(() -> {
+                if (!isRegistered(game)) {
+                    // Stopped while the message was on its way
+                    rest.queue(RestRoute.MESSAGE_DELETE, message.delete());
+                    return;
+                }
+                bindDisplayMessage(game, message);
 
-            message.addReaction("\u2705").queue(); //Checkmark
+                rest.queue(RestRoute.REACTION_ADD, message.addReaction("\u2705")); //Checkmark
+            }), err -> game.submit(() -> tryDeleteGame(game)));
         });
 
         // Send a message to let the user know the game was created
-        sourceMessage.addReaction("\u2705").queue();
+        rest.queue(RestRoute.REACTION_ADD, RestPriority.COSMETIC, sourceMessage.addReaction("\u2705"));
     }
 
     /**
@@ -606,53 +1267,19 @@ public class GameListener extends ListenerAdapter {
      * @param event
      */
     private void startGame(GameManager game) {
+        // The game may have been stopped while its reactions were cleared
+        if (!isDisplayed(game)) {
+            return;
+        }
+
         // Try to move to pregame.
         try {
             game.moveToPregame();
 
             // Update the game message
-            List<MessageEmbed> gameMessageEmbeds = game.displayMessge.getEmbeds();
-            if (!gameMessageEmbeds.isEmpty()) {
-                MessageEmbed originalEmbed = gameMessageEmbeds.get(0);
-                EmbedBuilder eb = new EmbedBuilder();
-                eb.setColor(Color.green);
-                eb.setTitle(originalEmbed.getTitle());
-                eb.setAuthor(originalEmbed.getAuthor().getName(), originalEmbed.getAuthor().getUrl(), originalEmbed.getAuthor().getIconUrl());
-
-                // Print not ready users
-                List<User> usersNotReady = game.getPlayersWithoutRoles();
-                StringBuilder sb = new StringBuilder();
-                if (!usersNotReady.isEmpty()) {
-                    sb.append(">>> ");
-                }
-                for (User user : usersNotReady) {
-                    sb.append(user.getAsMention()).append("\n");
-                }
-                eb.addField("Not Ready", sb.toString(), true);
-
-                // Get ready users
-                List<User> readyUsers = game.getAllPlayers();
-                readyUsers.removeAll(usersNotReady);
-
-                // Print out ready
-                sb = new StringBuilder();
-                if (!readyUsers.isEmpty()) {
-                    sb.append(">>> ");
-                }
-                for (User user : readyUsers) {
-                    sb.append(user.getAsMention()).append("\n");
-                }
-                eb.addField("Ready", sb.toString(), true);
-
-                eb.addField("Choose Your Role", "Choose \uD83C\uDDE8 for crewmate and \uD83C\uDDEE for imposter.", false);
-
-                eb.setFooter(originalEmbed.getFooter().getText(), originalEmbed.getFooter().getIconUrl());
-
-                game.displayMessge.editMessage(eb.build()).queue((message) -> {
-                    message.addReaction("\uD83C\uDDE8").queue(); // C
-                    message.addReaction("\uD83C\uDDEE").queue(); // I
-                });
-            }
+            displayUpdater.requestUpdate(game);
+            rest.queue(RestRoute.REACTION_ADD, game.displayMessge.addReaction("\uD83C\uDDE8")); // C
+            rest.queue(RestRoute.REACTION_ADD, game.displayMessge.addReaction("\uD83C\uDDEE")); // I
 
         } catch (GeneralGameException err) {
             // TODO: Do something if an error occurs
@@ -674,131 +1301,95 @@ public class GameListener extends ListenerAdapter {
 
                     Map<User, List<GameRole>> roleMap = game.distributeNonDefaultRoles();
 
-                    // Send role assignment message for non default roles and send everyone a game starting message
+                    // Send every player with non default roles one message with all of their assignments
+                    Map<User, String> assignments = new LinkedHashMap<>();
                     game.getAllPlayers().forEach(player -> {
-                        player.openPrivateChannel().queue((channel) -> {
-                            game.getRolesForPlayer(player).stream().filter(role -> (!role.isDefault)).forEachOrdered(role -> {
-                                channel.sendMessage(role.assignmentMessage).queue(); // TODO: Move to embed instead of messaging
-                            });
-                        });
+                        String assignment = game.getRolesForPlayer(player).stream()
+                                .filter(role -> (!role.isDefault))
+                                .map(role -> role.assignmentMessage)
+                                .collect(Collectors.joining("\n\n"));
+                        if (!assignment.isEmpty()) {
+                            assignments.put(player, assignment); // TODO: Move to embed instead of messaging
+                        }
                     });
+                    Message display = game.displayMessge;
+                    messenger.broadcast(assignments).thenAccept(result -> reportFailedDeliveries(result, display));
 
                     // Update the game message
-                    game.displayMessge.clearReactions().queue((obj) -> {
-                        List<MessageEmbed> gameMessageEmbeds = game.displayMessge.getEmbeds();
-                        if (!gameMessageEmbeds.isEmpty()) {
-                            MessageEmbed originalEmbed = gameMessageEmbeds.get(0);
-                            EmbedBuilder eb = new EmbedBuilder();
-                            eb.setColor(Color.green);
-                            eb.setTitle(originalEmbed.getTitle());
-                            eb.setAuthor(originalEmbed.getAuthor().getName(), originalEmbed.getAuthor().getUrl(), originalEmbed.getAuthor().getIconUrl());
-
-                            eb.addField(originalEmbed.getFields().get(0));
-                            eb.addField(originalEmbed.getFields().get(1));
-                            eb.addField("What's Next?", "Choose \uD83D\uDD04 to restart the game.\nChoose \uD83D\uDED1 to stop the game.", false);
-
-                            eb.setFooter(originalEmbed.getFooter().getText(), originalEmbed.getFooter().getIconUrl());
-
-                            game.displayMessge.editMessage(eb.build()).queue((message) -> {
-                                message.addReaction("\uD83D\uDD04").queue(); // Redo
-                                message.addReaction("\uD83D\uDED1").queue(); // Stop
-                            });
-                        }
+                    displayUpdater.requestUpdate(game);
+                    clearReactions(display, () -> {
+                        rest.queue(RestRoute.REACTION_ADD, display.addReaction("\uD83D\uDD04")); // Redo
+                        rest.queue(RestRoute.REACTION_ADD, display.addReaction("\uD83D\uDED1")); // Stop
                     });
                     // Send a debug message
                     if (debug) {
                         Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Game is starting. Rolemap: %s", roleMap));
                     }
                 } else {
-                    List<MessageEmbed> gameMessageEmbeds = game.displayMessge.getEmbeds();
-                    if (!gameMessageEmbeds.isEmpty()) {
-                        MessageEmbed originalEmbed = gameMessageEmbeds.get(0);
-                        EmbedBuilder eb = new EmbedBuilder();
-                        eb.setColor(Color.green);
-                        eb.setTitle(originalEmbed.getTitle());
-                        eb.setAuthor(originalEmbed.getAuthor().getName(), originalEmbed.getAuthor().getUrl(), originalEmbed.getAuthor().getIconUrl());
-
-                        // Print not ready users
-                        List<User> usersNotReady = game.getPlayersWithoutRoles();
-                        StringBuilder sb = new StringBuilder();
-                        if (!usersNotReady.isEmpty()) {
-                            sb.append(">>> ");
-                        }
-                        for (User notReadyUser : usersNotReady) {
-                            sb.append(notReadyUser.getAsMention()).append("\n");
-                        }
-                        eb.addField("Not Ready", sb.toString(), true);
-
-                        // Get ready users
-                        List<User> readyUsers = game.getAllPlayers();
-                        readyUsers.removeAll(usersNotReady);
-
-                        // Print out ready
-                        sb = new StringBuilder();
-                        if (!readyUsers.isEmpty()) {
-                            sb.append(">>> ");
-                        }
-                        for (User readyUser : readyUsers) {
-                            sb.append(readyUser.getAsMention()).append("\n");
-                        }
-                        eb.addField("Ready", sb.toString(), true);
-
-                        eb.addField("Choose Your Role", "Choose \uD83C\uDDE8 for crewmate and \uD83C\uDDEE for imposter.", false);
-
-                        eb.setFooter(originalEmbed.getFooter().getText(), originalEmbed.getFooter().getIconUrl());
-
-                        game.displayMessge.editMessage(eb.build()).queue((message) -> {
-                            message.addReaction("\uD83C\uDDE8").queue(); // C
-                            message.addReaction("\uD83C\uDDEE").queue(); // I
-                        });
-                    }
+                    // Only the ready list changed, so the reactions stay as they are
+                    displayUpdater.requestUpdate(game);
                 }
             } catch (GeneralGameException ex) {
-                Logger.getLogger(GameListener.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+                Logger.getLogger(GameListener.class.getName()).log(Level.WARNING, ex.getMessage(), ex);
                 if (game.displayMessge != null) {
-                    game.displayMessge.getChannel().sendMessage(ex.getMessage()).queue();
+                    rest.queue(RestRoute.MESSAGE_SEND, game.displayMessge.getChannel().sendMessage(ex.getMessage()));
+                }
+
+                // The roles could not be handed out, so let the owner change the game and start again
+                if (game.getState() == GameState.ACTIVE) {
+                    resetToNewGame(game);
+                    if (game.displayMessge != null) {
+                        sendResponse(game.displayMessge, "The game has been set back so the players or roles can be changed. Click on the \u2705 emote to try again.");
+                    }
                 }
-                this.tryDeleteUsersGame(user);
             }
         }
     }
 
     /**
-     * Attempts to delete a game for the given user.
+     * Takes the given game back to the NEW state and resets its display if it
+     * has one
      *
-     * @param user
-     * @return
+     * @param game
      */
-    private boolean tryDeleteUsersGame(User user) {
-        GameManager game = gameDB.get(user);
-        if (game == null) {
+    private void resetToNewGame(GameManager game) {
+        game.resetGame();
+        Message display = game.displayMessge;
+        if (display == null) {
+            return;
+        }
+        displayUpdater.requestUpdate(game);
+        clearReactions(display, () -> {
+            rest.queue(RestRoute.REACTION_ADD, display.addReaction("\u2705")); // Checkmark
+        });
+    }
+
+    /**
+     * Attempts to delete the given game.
+     *
+     * @param game
+     * @return True if the game was deleted. False if it was already deleted.
+     */
+    private boolean tryDeleteGame(GameManager game) {
+        // Remove game from database
+        if (!gameDB.remove(game)) {
             return false;
         }
+        shards.releasePlayer(game.getOwner().getIdLong(), shardId);
+        game.getAllPlayers().forEach(player -> shards.releasePlayer(player.getIdLong(), shardId));
+        journal.removed(game);
+        expiryWheel.cancel(game);
+        unbindDisplayMessage(game);
+        renderer.forget(game);
 
         // Update the display message if the game has it
-        if (game.displayMessge != null) {
-            game.displayMessge.clearReactions().queue((obj) -> {
-                List<MessageEmbed> gameMessageEmbeds = game.displayMessge.getEmbeds();
-                if (!gameMessageEmbeds.isEmpty()) {
-                    MessageEmbed originalEmbed = gameMessageEmbeds.get(0);
-
-                    EmbedBuilder eb = new EmbedBuilder();
-                    eb.setColor(Color.RED);
-                    eb.setTitle(originalEmbed.getTitle());
-                    eb.setAuthor(originalEmbed.getAuthor().getName(), originalEmbed.getAuthor().getUrl(), originalEmbed.getAuthor().getIconUrl());
-
-                    eb.addField("Game has been stopped.", "Thanks for playing!", false);
-
-                    eb.setFooter(originalEmbed.getFooter().getText(), originalEmbed.getFooter().getIconUrl());
-
-                    game.displayMessge.editMessage(eb.build()).queue();
-                }
-            });
+        Message display = game.displayMessge;
+        if (display != null) {
+            displayUpdater.requestStopped(game);
+            game.displayMessge = null;
+            rest.queue(RestRoute.REACTION_CLEAR, RestPriority.COSMETIC, display.clearReactions());
         }
 
-        // Remove game from database
-        gameDB.remove(user);
-
         return true;
     }
 
@@ -812,14 +1403,10 @@ public class GameListener extends ListenerAdapter {
     private void useVeto(Message sourceMessage, GameManager game) {
         game.getRolesForPlayer(sourceMessage.getAuthor()).stream().filter(role -> (role.id == 3)).forEachOrdered(_item -> {
             if (game.useVeto()) {
-                game.getAllPlayers().forEach(player -> {
-                    player.openPrivateChannel().queue((channel)
-                            -> {
-                        channel.sendMessage("VETO USED! SKIP VOTE IMMEDIATELY.").queue();
-                    });
-                });
+                messenger.broadcast(game.getAllPlayers(), "VETO USED! SKIP VOTE IMMEDIATELY.")
+                        .thenAccept(result -> reportFailedDeliveries(result, sourceMessage));
             } else {
-                sourceMessage.getChannel().sendMessage("You've already used a veto.").queue();
+                rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage("You've already used a veto."));
             }
         });
     }
@@ -829,19 +1416,16 @@ public class GameListener extends ListenerAdapter {
      * given game
      *
      * @param sourceMessage
+     * @param target The player everyone should vote for
      * @param game
      */
-    private void useExecute(Message sourceMessage, GameManager game) {
+    private void useExecute(Message sourceMessage, String target, GameManager game) {
         game.getRolesForPlayer(sourceMessage.getAuthor()).stream().filter(role -> (role.id == 4)).forEachOrdered(_item -> {
             if (game.useExecution()) {
-                game.getAllPlayers().forEach(player -> {
-                    player.openPrivateChannel().queue((channel)
-                            -> {
-                        channel.sendMessage("EXECUTE USED! Vote for " + sourceMessage.getContentRaw().substring(8)).queue();
-                    });
-                });
+                messenger.broadcast(game.getAllPlayers(), "EXECUTE USED! Vote for " + target)
+                        .thenAccept(result -> reportFailedDeliveries(result, sourceMessage));
             } else {
-                sourceMessage.getChannel().sendMessage("You've already used your execution.").queue();
+                rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage("You've already used your execution."));
             }
         });
     }
@@ -851,21 +1435,22 @@ public class GameListener extends ListenerAdapter {
      * game
      *
      * @param sourceMessage
+     * @param args The player and the suspected role
      * @param game
      */
-    private void useDetect(Message sourceMessage, GameManager game) {
-        String[] postCommandArgs = sourceMessage.getContentRaw().substring(("detect").length() + 1).split(" ");
+    private void useDetect(Message sourceMessage, String args, GameManager game) {
+        String[] postCommandArgs = args.split(" ");
 
         // Incorrect arguments
         if (postCommandArgs.length < 2) {
-            sourceMessage.getChannel().sendMessage("Invalid format. Command should be 'detect [discord user name] [suspected role]'.").queue();
+            rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage("Invalid format. Command should be 'detect [discord user name] [suspected role]'."));
             return;
         }
 
         // Parse given role
-        GameRole givenRole = findRoleFromString(postCommandArgs[1]);
+        GameRole givenRole = game.getRoleCatalog().find(postCommandArgs[1]);
         if (givenRole == null) {
-            sourceMessage.getChannel().sendMessage("Invalid role. Check role list.").queue();
+            rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage("Invalid role. Check role list."));
             return;
         }
 
@@ -877,45 +1462,71 @@ public class GameListener extends ListenerAdapter {
             if (role.id == 7) {
                 if (game.useDetect()) {
                     if (game.getRolesForPlayer(mostLikelyUser).contains(role)) {
-                        sourceMessage.getChannel().sendMessage(mostLikelyUser.getName() + " IS a(n) " + role.name).queue();
+                        rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage(mostLikelyUser.getName() + " IS a(n) " + role.name));
                     } else {
-                        sourceMessage.getChannel().sendMessage(mostLikelyUser.getName() + " IS NOT a(n) " + role.name).queue();
+                        rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage(mostLikelyUser.getName() + " IS NOT a(n) " + role.name));
                     }
                 } else {
-                    sourceMessage.getChannel().sendMessage("You've already used your detect.").queue();
+                    rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage("You've already used your detect."));
                 }
             } else {
-                sourceMessage.getChannel().sendMessage("You are not able to detect this game.").queue();
+                rest.queue(RestRoute.MESSAGE_SEND, sourceMessage.getChannel().sendMessage("You are not able to detect this game."));
             }
         });
     }
 
     /**
-     * Go through the database and remove any old games
+     * Tells the channel of the given message which players could not be sent
+     * a private message.
+     *
+     * @param result
+     * @param message
      */
-    private void purgeDatabase() {
-        Logger.getLogger(GameListener.class.getName()).log(Level.INFO, "Started automatic gameDB purge");
-
-        if (debug) {
-            Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format(String.format("DEBUG - Previous gameDB: %s", gameDB.toString())));
+    private void reportFailedDeliveries(DirectMessenger.BroadcastResult result, Message message) {
+        if (result.getFailed().isEmpty()) {
+            return;
         }
 
-        List<User> gameOwners = new ArrayList<>(gameDB.keySet());
-        gameOwners.forEach(gameOwner -> {
-            GameManager game = gameDB.get(gameOwner);
-            if (game.getState() != GameState.ACTIVE && new Interval(game.getLastGameStateChangeTime(), new Instant()).toDurationMillis() > maximumInactiveTimeInMinutes * 60000L) {
-                tryDeleteUsersGame(gameOwner);
-                gameOwner.openPrivateChannel().queue((channel) -> {
-                    channel.sendMessage("Your Among Us+ game has been inactive for longer than 20 minutes. It has been automatically stopped.").queue();
-                });
-            }
+        result.getFailed().forEach((user, err) -> {
+            Logger.getLogger(GameListener.class.getName()).log(Level.WARNING, String.format("Could not send a private message to %s", user.getAsTag()), err);
         });
+        if (message != null) {
+            String mentions = result.getFailed().keySet().stream().map(User::getAsMention).collect(Collectors.joining(", "));
+            rest.queue(RestRoute.MESSAGE_SEND, message.getChannel().sendMessage(String.format("Could not send a private message to %s. Check your privacy settings.", mentions)));
+        }
+    }
 
-        if (debug) {
-            Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format(String.format("DEBUG - New gameDB: %s", gameDB.toString())));
+    /**
+     * Advance the expiry wheel and remove any games that have been inactive for
+     * too long. Only the games that came due are looked at.
+     */
+    void purgeDatabase() {
+        long start = System.nanoTime();
+        int expired = expiryWheel.advance();
+        metrics.histogram("amongus_purge_duration_seconds", "Time spent advancing the expiry wheel").observeNanos(System.nanoTime() - start);
+
+        if (debug && expired > 0) {
+            Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("DEBUG - Purge expired %d game(s). gameDB: %s", expired, gameDB.toString()));
         }
     }
 
+    /**
+     * Ran when the given game has not changed state for the maximum inactive
+     * time. Active games are kept and re-armed, other games are stopped.
+     *
+     * @param game
+     */
+    private void onGameExpired(GameManager game) {
+        game.submit(() -> {
+            if (game.getState() == GameState.ACTIVE) {
+                expiryWheel.schedule(game);
+            } else if (tryDeleteGame(game)) {
+                Logger.getLogger(GameListener.class.getName()).log(Level.INFO, String.format("Purged inactive game %s", game.toString()));
+                messenger.send(game.getOwner(), "Your Among Us+ game has been inactive for longer than 20 minutes. It has been automatically stopped.");
+            }
+        });
+    }
+
     /**
      * Find a user in the given game whose name matches the given query
      *
@@ -923,13 +1534,11 @@ public class GameListener extends ListenerAdapter {
      * @param game
      * @return
      */
-    private User findUserInGame(String query, GameManager game) {
-        String playersName = query;
+    static User findUserInGame(String query, GameManager game) {
         int shortestDistance = Integer.MAX_VALUE;
         User mostLikelyUser = null;
-        LevenshteinDistance ld = new LevenshteinDistance();
         for (User user : game.getAllPlayers()) {
-            int newDistance = ld.apply(playersName, user.getName());
+            int newDistance = nameDistance.apply(query.toLowerCase(), user.getName().toLowerCase());
             if (shortestDistance > newDistance) {
                 mostLikelyUser = user;
                 shortestDistance = newDistance;
@@ -940,58 +1549,156 @@ public class GameListener extends ListenerAdapter {
     }
 
     /**
-     * Find a user in the given guild whose name matches the given query
+     * Find a member in the given guild whose name matches the given query. An
+     * exact (case insensitive) name is preferred, otherwise the closest name
+     * within maximumNameDistance edits is used. If there is no single best
+     * match, the author of the given message is told so.
      *
+     * @param sourceMessage The message that asked for the user
      * @param guild
      * @param query
-     * @return
+     * @return The user if found. Null otherwise.
      */
-    private User findUserInGuild(Guild guild, String query) {
+    private User findUserInGuild(Message sourceMessage, Guild guild, String query) {
+        MemberNameIndex index = getMemberNameIndex(guild);
+
+        List<ResolvedMatch> exact = resolveMembers(guild, index.search(query, 0), 0);
+        if (exact.size() == 1) {
+            return exact.get(0).member.getUser();
+        } else if (exact.size() > 1) {
+            sendErrorResponse(sourceMessage, String.format("More than one member goes by '%s'.", query));
+            return null;
+        }
 
-        List<Member> membersWithQueriedName = guild.getMembersByEffectiveName(query, true);
-        if (membersWithQueriedName.size() == 1) {
-            return membersWithQueriedName.get(0).getUser();
-        } else if (membersWithQueriedName.size() > 1) {
+        List<MemberNameIndex.Match> matches = index.search(query, Math.min(maximumNameDistance, query.length() / 2));
+        List<ResolvedMatch> candidates = resolveMembers(guild, matches, 5);
+        if (candidates.isEmpty()) {
+            sendErrorResponse(sourceMessage, String.format("Could not find a member named '%s'.", query));
             return null;
-        } else {
-            String playersName = query;
-            int shortestDistance = Integer.MAX_VALUE;
-            User mostLikelyUser = null;
-            LevenshteinDistance ld = new LevenshteinDistance();
-            for (Member member : membersWithQueriedName) {
-                int newDistance = ld.apply(playersName, member.getEffectiveName());
-                if (shortestDistance > newDistance) {
-                    mostLikelyUser = member.getUser();
-                    shortestDistance = newDistance;
-                }
-            }
-            return mostLikelyUser;
         }
+
+        // Only use the closest match if nobody else who is still a member is as close
+        if (candidates.size() == 1 || candidates.get(0).distance < candidates.get(1).distance) {
+            return candidates.get(0).member.getUser();
+        }
+        String names = candidates.stream().map(candidate -> candidate.member.getEffectiveName()).collect(Collectors.joining(", "));
+        sendErrorResponse(sourceMessage, String.format("Could not tell who '%s' is. Did you mean one of: %s?", query, names));
+        return null;
     }
 
     /**
-     * Get the GameRole from a string (uses the GameRole name or alias(es))
+     * Gets the members for the given search matches. Matches of users who are
+     * no longer members are skipped.
      *
-     * @param query String to use to search
-     * @return A GameRole with a name or alias matching the query if found. Null
-     * otherwise.
+     * @param guild
+     * @param matches
+     * @param limit The most members to give, or 0 for all of them
+     * @return Each member with the distance it was matched at, in the order
+     * of the matches
      */
-    private GameRole findRoleFromString(String query) {
-        for (GameRole role : allRoles) {
-            // Check if role name = query
-            if (query.equalsIgnoreCase(role.name)) {
-                return role;
-            } else {
-                // Check if any role aliases = query
-                for (String roleAlias : role.aliases) {
-                    if (query.equalsIgnoreCase(roleAlias)) {
-                        return role;
-                    }
+    private List<ResolvedMatch> resolveMembers(Guild guild, List<MemberNameIndex.Match> matches, int limit) {
+        List<ResolvedMatch> members = new ArrayList<>();
+        for (MemberNameIndex.Match match : matches) {
+            Member member = guild.getMemberById(match.getUserId());
+            if (member != null) {
+                members.add(new ResolvedMatch(member, match.getDistance()));
+                if (members.size() == limit) {
+                    break;
                 }
             }
         }
+        return members;
+    }
 
-        return null;
+    /**
+     * Gets the name index of the given guild, filling it with every member
+     * first if this is the first search in the guild. The empty index is
+     * published before the members are read, so member events that arrive
+     * during the fill wait for it and are applied afterwards.
+     *
+     * @param guild
+     * @return
+     */
+    private MemberNameIndex getMemberNameIndex(Guild guild) {
+        MemberNameIndex index = memberNameIndexes.computeIfAbsent(guild.getIdLong(), guildId -> new MemberNameIndex());
+        index.fillOnce(empty -> guild.getMembers().forEach(member -> empty.add(member.getEffectiveName(), member.getUser().getIdLong())));
+        return index;
+    }
+
+    /**
+     * Triggered when the bot leaves a guild or the guild is deleted. Drops the
+     * guild's name index.
+     *
+     * @param event
+     */
+    @Override
+    public void onGuildLeave(GuildLeaveEvent event) {
+        memberNameIndexes.remove(event.getGuild().getIdLong());
+    }
+
+    /**
+     * Triggered when a member joins a guild. Adds them to the guild's name
+     * index if it has been built.
+     *
+     * @param event
+     */
+    @Override
+    public void onGuildMemberJoin(GuildMemberJoinEvent event) {
+        MemberNameIndex index = memberNameIndexes.get(event.getGuild().getIdLong());
+        if (index != null) {
+            index.add(event.getMember().getEffectiveName(), event.getUser().getIdLong());
+        }
+    }
+
+    /**
+     * Triggered when a member leaves a guild. Removes them from the guild's
+     * name index if it has been built.
+     *
+     * @param event
+     */
+    @Override
+    public void onGuildMemberLeave(GuildMemberLeaveEvent event) {
+        MemberNameIndex index = memberNameIndexes.get(event.getGuild().getIdLong());
+        if (index != null) {
+            index.remove(event.getMember().getEffectiveName(), event.getUser().getIdLong());
+        }
+    }
+
+    /**
+     * Triggered when a member's nickname changes. Moves them to their new name
+     * in the guild's name index if it has been built.
+     *
+     * @param event
+     */
+    @Override
+    public void onGuildMemberNickChange(GuildMemberNickChangeEvent event) {
+        MemberNameIndex index = memberNameIndexes.get(event.getGuild().getIdLong());
+        if (index != null) {
+            // Without a nickname a member goes by their user name
+            String userName = event.getUser().getName();
+            index.remove(event.getPrevNick() != null ? event.getPrevNick() : userName, event.getUser().getIdLong());
+            index.add(event.getNewNick() != null ? event.getNewNick() : userName, event.getUser().getIdLong());
+        }
+    }
+
+    /**
+     * Triggered when a user changes their name. Moves them to their new name in
+     * the name index of every guild where they don't have a nickname.
+     *
+     * @param event
+     */
+    @Override
+    public void onUserUpdateName(UserUpdateNameEvent event) {
+        User user = event.getUser();
+        for (Guild guild : user.getMutualGuilds()) {
+            MemberNameIndex index = memberNameIndexes.get(guild.getIdLong());
+            Member member = guild.getMember(user);
+            // Members with a nickname still go by it
+            if (index != null && member != null && member.getNickname() == null) {
+                index.remove(event.getOldName(), user.getIdLong());
+                index.add(event.getNewName(), user.getIdLong());
+            }
+        }
     }
 
     // --------- HELPER METHODS ------------
@@ -1003,7 +1710,7 @@ public class GameListener extends ListenerAdapter {
      * @param message
      */
     private void sendResponse(Message receivedMessage, String message) {
-        receivedMessage.getChannel().sendMessage(message).queue();
+        rest.queue(RestRoute.MESSAGE_SEND, receivedMessage.getChannel().sendMessage(message));
     }
 
     /**
@@ -1013,8 +1720,68 @@ public class GameListener extends ListenerAdapter {
      * @param message
      */
     private void sendErrorResponse(Message receivedMessage, String message) {
-        receivedMessage.addReaction("⚠️").queue();
-        receivedMessage.getChannel().sendMessage(message).queue();
+        rest.queue(RestRoute.REACTION_ADD, RestPriority.COSMETIC, receivedMessage.addReaction("⚠️"));
+        rest.queue(RestRoute.MESSAGE_SEND, receivedMessage.getChannel().sendMessage(message));
+    }
+
+    /**
+     * Clears the reactions of the given display message, then runs the given
+     * task. The task also runs if the reactions could not be cleared, so the
+     * game doesn't get stuck on a missing permission.
+     *
+     * @param display
+     * @param then Ran on the thread that answered the request
+     */
+    private void clearReactions(Message display, Runnable then) {
+        rest.queue(RestRoute.REACTION_CLEAR, display.clearReactions(), (obj) -> then.run(), err -> {
+            Logger.getLogger(GameListener.class.getName()).log(Level.WARNING, String.format("Could not clear the reactions of %s: %s", display.getId(), err.getMessage()));
+            then.run();
+        });
+    }
+
+    // -- Player Helpers --
+    /**
+     * Records the given user, already claimed in this process's player
+     * index, for the other processes sharing the shards
+     *
+     * @param playerId
+     * @param game
+     * @return False if the user is in a game of another process, then they
+     * are released from the given game again
+     */
+    private boolean claimSharedPlayer(long playerId, GameManager game) {
+        if (shards.claimPlayer(playerId, shardId)) {
+            return true;
+        }
+        gameDB.releasePlayer(playerId, game);
+        return false;
+    }
+
+    /**
+     * Releases the given user from the given game in this process and for
+     * the other processes sharing the shards
+     *
+     * @param playerId
+     * @param game
+     */
+    private void releasePlayer(long playerId, GameManager game) {
+        gameDB.releasePlayer(playerId, game);
+        shards.releasePlayer(playerId, shardId);
+    }
+
+    /**
+     * A member found by a name search and how far their name was from the
+     * query
+     */
+    private static class ResolvedMatch {
+
+        private final Member member;
+        private final int distance;
+
+        ResolvedMatch(Member member, int distance) {
+            this.member = member;
+            this.distance = distance;
+        }
     }
 
     /**
@@ -18,15 +18,14 @@ package com.hmnlg.amongusplus;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.entities.User;
-import org.joda.time.Instant;
 
 /**
  * Used to manage and keep track of the status of an Among Us game
@@ -39,12 +38,33 @@ public class GameManager {
      * The message associated with this game that shows discord users a
      * responsive display
      */
-    public Message displayMessge;
+    public volatile Message displayMessge;
+
+    /**
+     * The user who created this game
+     */
+    private final User owner;
+
+    /**
+     * The ID of the guild this game was created in
+     */
+    private final long guildId;
+
+    /**
+     * Runs every command and reaction for this game in order, one at a time
+     */
+    private final SerialExecutor mailbox;
+
+    /**
+     * The roles this game was created with. Kept even if the roles are
+     * reloaded while the game is running.
+     */
+    private final RoleCatalog roleCatalog;
 
     /**
      * The main list of players and the roles that each player holds
      */
-    private final Map<User, List<GameRole>> playerRoles;
+    private final Map<User, HeldRoles> playerRoles;
 
     /**
      * A list of all roles that are usable for this game
@@ -57,9 +77,16 @@ public class GameManager {
     private GameState state = GameState.NEW;
 
     /**
-     * The last time the game's state changed
+     * Called every time the game's state changes. Used to re-arm the game's
+     * inactivity timeout.
      */
-    private Instant stateChangeTime;
+    private Consumer<GameManager> stateChangeListener = game -> {
+    };
+
+    /**
+     * Records every change made to this game
+     */
+    private GameJournal journal = GameJournal.none();
 
     // Flags to keep track of when an action is used (All of these have only has one use)
     private boolean vetoUsed = false;
@@ -69,21 +96,75 @@ public class GameManager {
     /**
      * Creates a new game with the given players and the given roles.
      *
+     * @param owner The discord user who created the game.
+     * @param guildId The ID of the guild the game was created in.
      * @param players A list of all discord users who will be playing.
+     * @param roleCatalog The roles this game is played with.
      * @param usableNondefaultRoles All roles that can be assigned during this
      * game.
+     * @param executor The shared executor this game's mailbox runs on.
      */
-    public GameManager(List<User> players, List<GameRole> usableNondefaultRoles) {
+    public GameManager(User owner, long guildId, List<User> players, RoleCatalog roleCatalog, List<GameRole> usableNondefaultRoles, Executor executor) {
+        this.owner = owner;
+        this.guildId = guildId;
+        this.roleCatalog = roleCatalog;
+        this.mailbox = new SerialExecutor(executor);
+
         // Instantiate all ArrayLists in map
         playerRoles = new HashMap<>();
         players.forEach(player -> {
-            playerRoles.put(player, new ArrayList<>());
+            playerRoles.put(player, new HeldRoles());
         });
 
         this.playableRoles = usableNondefaultRoles;
 
         state = GameState.NEW;
-        stateChangeTime = new Instant();
+    }
+
+    /**
+     * Gives the user who created this game
+     *
+     * @return
+     */
+    public User getOwner() {
+        return owner;
+    }
+
+    /**
+     * Gives the ID of the guild this game was created in
+     *
+     * @return
+     */
+    public long getGuildId() {
+        return guildId;
+    }
+
+    /**
+     * Gives the roles this game was created with
+     *
+     * @return
+     */
+    public RoleCatalog getRoleCatalog() {
+        return roleCatalog;
+    }
+
+    /**
+     * Queues the given task in this game's mailbox. All changes to the game
+     * should go through here so they never run at the same time.
+     *
+     * @param task
+     */
+    public void submit(Runnable task) {
+        mailbox.execute(task);
+    }
+
+    /**
+     * Checks whether this game has no queued or running tasks
+     *
+     * @return
+     */
+    public boolean isIdle() {
+        return mailbox.isIdle();
     }
 
     /**
@@ -96,12 +177,29 @@ public class GameManager {
     }
 
     /**
-     * Gives the last Instant that the game state was changed
+     * Sets the listener that is called every time the game's state changes.
      *
-     * @return
+     * @param stateChangeListener
      */
-    public Instant getLastGameStateChangeTime() {
-        return stateChangeTime;
+    public void setStateChangeListener(Consumer<GameManager> stateChangeListener) {
+        this.stateChangeListener = stateChangeListener;
+    }
+
+    /**
+     * Sets the journal every change to this game is recorded in.
+     *
+     * @param journal
+     */
+    public void setJournal(GameJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Records that the game's state changed
+     */
+    private void markStateChange() {
+        journal.stateChanged(this, state);
+        stateChangeListener.accept(this);
     }
 
     /**
@@ -117,7 +215,7 @@ public class GameManager {
         }
 
         state = GameState.PREGAME;
-        stateChangeTime = new Instant();
+        markStateChange();
     }
 
     /**
@@ -140,17 +238,19 @@ public class GameManager {
             // Replace the users last role with the new role.
             if (!playerRoles.get(user).isEmpty()) {
                 playerRoles.get(user).clear();
+                journal.rolesCleared(this, user);
             }
 
             playerRoles.get(user).add(roleToAssign);
+            journal.roleAssigned(this, user, roleToAssign);
 
             // Check if all players have assigned roles
-            if (!playerRoles.entrySet().stream().noneMatch(entry -> (entry.getValue().isEmpty()))) {
+            if (!playerRoles.values().stream().noneMatch(HeldRoles::isEmpty)) {
                 return false;
             }
 
             state = GameState.ACTIVE;
-            stateChangeTime = new Instant();
+            markStateChange();
             return true;
         }
         throw new GeneralGameException("I'm not expecting a role assignment from you.");
@@ -163,7 +263,7 @@ public class GameManager {
      */
     public List<User> getPlayersWithoutRoles() {
         List<User> list = new ArrayList<>();
-        for (Entry<User, List<GameRole>> entry : playerRoles.entrySet()) {
+        for (Entry<User, HeldRoles> entry : playerRoles.entrySet()) {
             if (entry.getValue().isEmpty()) {
                 list.add(entry.getKey());
             }
@@ -172,67 +272,54 @@ public class GameManager {
     }
 
     /**
-     * Distributes non-default roles to all available players.
+     * Distributes non-default roles to all available players. Each player is
+     * given at most one non-default role, and only roles they can hold
+     * together with the role they chose. Nothing is assigned if the roles
+     * can't all be handed out.
      *
      * @return
-     * @throws GeneralGameException
+     * @throws GeneralGameException If there is no valid way to hand out every
+     * role.
      */
     public Map<User, List<GameRole>> distributeNonDefaultRoles() throws GeneralGameException {
-        List<User> playersWithAssignableRoles = getAllPlayers();
-        for (GameRole assignableRole : playableRoles) {
-            if (!playersWithAssignableRoles.isEmpty()) {
-                User assignableUser = getUserWhoCanAcceptRole(playersWithAssignableRoles, assignableRole);
-                if (assignableUser != null) {
-                    playersWithAssignableRoles.remove(assignableUser);
-                    playerRoles.get(assignableUser).add(assignableRole);
-                } else {
-                    throw new GeneralGameException(String.format("Could not find a player to assign the role '%s'.", assignableRole.name));
-                }
-            } else {
-                throw new GeneralGameException(String.format("Could not find a player to assign '%s'.", assignableRole.name));
-            }
+        User[] players = playerRoles.keySet().toArray(new User[0]);
+        long[] heldRoleMasks = new long[players.length];
+        for (int i = 0; i < players.length; i++) {
+            heldRoleMasks[i] = playerRoles.get(players[i]).mask;
+        }
+
+        int[] chosenPlayers = RoleDistributor.distribute(playableRoles, heldRoleMasks, roleCatalog, ThreadLocalRandom.current());
+        for (int i = 0; i < chosenPlayers.length; i++) {
+            playerRoles.get(players[chosenPlayers[i]]).add(playableRoles.get(i));
+            journal.roleAssigned(this, players[chosenPlayers[i]], playableRoles.get(i));
         }
 
-        return new HashMap<>(playerRoles);
+        Map<User, List<GameRole>> roleMap = new HashMap<>();
+        playerRoles.forEach((player, held) -> roleMap.put(player, held.roles));
+        return roleMap;
     }
 
     /**
-     * Finds a User from the given list of players that can accept the given
-     * role.
+     * Puts the game back in the state it was recorded in. Nothing is recorded
+     * in the journal.
      *
-     * @param playerList
-     * @param targetRole
-     * @return
+     * @param state
+     * @param heldRoles The roles every player holds
+     * @param vetoUsed
+     * @param executionUsed
+     * @param detectUsed
      */
-    private User getUserWhoCanAcceptRole(List<User> playerList, GameRole targetRole) {
-        // For generating a random value to pick a random player
-        Random rand = new Random();
-
-        // The user that can accept the targetRole
-        User userToGiveRole = null;
-
-        // If an acceptable player has been found
-        boolean foundAcceptablePlayer;
-
-        do {
-            // Get a random player from the player list
-            // Remove them so we don't get any repeats
-            userToGiveRole = playerList.remove(rand.nextInt(playerList.size())); // Get a random user and remove them from the list (so they can't be picked again)
-
-            // Assume we found an acceptable player
-            foundAcceptablePlayer = true;
-
-            // Check if player is really acceptable
-            for (GameRole activeUserRole : playerRoles.get(userToGiveRole)) { // For each role the user already has
-                for (int unstackableRoleId : targetRole.unstackableRoleIds) { // For each unstackableRoleId
-                    if (activeUserRole.id == unstackableRoleId) { // If a role the player has is an unstackable role for this game role, retry
-                        foundAcceptablePlayer = false;
-                    }
-                }
+    void restore(GameState state, Map<User, List<GameRole>> heldRoles, boolean vetoUsed, boolean executionUsed, boolean detectUsed) {
+        this.state = state;
+        heldRoles.forEach((player, roles) -> {
+            HeldRoles held = playerRoles.get(player);
+            if (held != null) {
+                roles.forEach(held::add);
             }
-        } while (!playerList.isEmpty() && !foundAcceptablePlayer);
-
-        return userToGiveRole;
+        });
+        this.vetoUsed = vetoUsed;
+        this.executionUsed = executionUsed;
+        this.detectUsed = detectUsed;
     }
 
     /**
@@ -241,17 +328,13 @@ public class GameManager {
      */
     public void resetGame() {
         // Clear roles
-        Set<User> userSet = new HashSet<>(playerRoles.keySet());
-        playerRoles.clear();
-        userSet.forEach(player -> {
-            playerRoles.put(player, new ArrayList<>());
-        });
+        playerRoles.values().forEach(HeldRoles::clear);
 
         vetoUsed = false;
         executionUsed = false;
         detectUsed = false;
         state = GameState.NEW;
-        stateChangeTime = new Instant();
+        markStateChange();
     }
 
     /**
@@ -264,6 +347,7 @@ public class GameManager {
             return !vetoUsed;
         } else {
             vetoUsed = true;
+            journal.abilityUsed(this, GameJournal.veto);
             return vetoUsed;
         }
     }
@@ -278,6 +362,7 @@ public class GameManager {
             return !executionUsed;
         } else {
             executionUsed = true;
+            journal.abilityUsed(this, GameJournal.execution);
             return executionUsed;
         }
     }
@@ -292,6 +377,7 @@ public class GameManager {
             return !detectUsed;
         } else {
             detectUsed = true;
+            journal.abilityUsed(this, GameJournal.detect);
             return detectUsed;
         }
     }
@@ -309,11 +395,16 @@ public class GameManager {
      * Adds the given user as a player of this game
      *
      * @param player
+     * @return True if the player was added. False if they were already in the
+     * game or the game has started.
      */
-    public void addPlayer(User player) {
+    public boolean addPlayer(User player) {
         if (state == GameState.NEW && !playerRoles.containsKey(player)) {
-            playerRoles.put(player, new ArrayList<>());
+            playerRoles.put(player, new HeldRoles());
+            journal.playerAdded(this, player);
+            return true;
         }
+        return false;
     }
 
     /**
@@ -324,7 +415,11 @@ public class GameManager {
      * @return
      */
     public boolean removePlayer(User player) {
-        return state == GameState.NEW && playerRoles.remove(player) != null;
+        if (state == GameState.NEW && playerRoles.remove(player) != null) {
+            journal.playerRemoved(this, player);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -335,6 +430,7 @@ public class GameManager {
     public void addRole(GameRole role) {
         if (state == GameState.NEW && !playableRoles.contains(role) && !role.isDefault) {
             playableRoles.add(role);
+            journal.roleAdded(this, role);
         }
     }
 
@@ -346,7 +442,11 @@ public class GameManager {
      * @return
      */
     public boolean removeRole(GameRole role) {
-        return state == GameState.NEW && playableRoles.remove(role);
+        if (state == GameState.NEW && playableRoles.remove(role)) {
+            journal.roleRemoved(this, role);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -356,7 +456,19 @@ public class GameManager {
      * @return
      */
     public List<GameRole> getRolesForPlayer(User player) {
-        return playerRoles.get(player);
+        HeldRoles held = playerRoles.get(player);
+        return held == null ? null : held.roles;
+    }
+
+    /**
+     * Gets the mask of all roles held by a given player
+     *
+     * @param player
+     * @return
+     */
+    public long getRoleMaskForPlayer(User player) {
+        HeldRoles held = playerRoles.get(player);
+        return held == null ? 0 : held.mask;
     }
 
     /**
@@ -370,6 +482,36 @@ public class GameManager {
     }
 }
 
+/**
+ * The roles a single player holds, both as a list and as a mask of role bits
+ *
+ * @author maikotui
+ */
+class HeldRoles {
+
+    final List<GameRole> roles = new ArrayList<>();
+    long mask;
+
+    void add(GameRole role) {
+        roles.add(role);
+        mask |= role.getMask();
+    }
+
+    void clear() {
+        roles.clear();
+        mask = 0;
+    }
+
+    boolean isEmpty() {
+        return roles.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return roles.toString();
+    }
+}
+
 /**
  * Represents a state that a game can be at any given time.
  *
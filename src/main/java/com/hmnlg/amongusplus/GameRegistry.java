@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A thread-safe database of all created games. Games are partitioned by the
+ * guild they were created in and keyed by the ID of the user who owns them.
+ * Every partition is a concurrent map, so games in different guilds (and most
+ * games in the same guild) never contend with each other.
+ * <p>
+ * The registry also keeps an index of every player to the game they are in.
+ * A user can only be in one game at a time.
+ *
+ * @author maikotui
+ */
+public class GameRegistry {
+
+    /**
+     * Guild ID -> (owner ID -> game)
+     */
+    private final ConcurrentMap<Long, ConcurrentMap<Long, GameManager>> guilds;
+
+    /**
+     * Player ID -> the game they are in
+     */
+    private final ConcurrentMap<Long, GameManager> players;
+
+    /**
+     * Creates an empty registry
+     */
+    public GameRegistry() {
+        this(new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Creates an empty registry whose player index is shared with other
+     * registries, so a user can only be in one game across all of them.
+     *
+     * @param players Player ID -> the game they are in
+     */
+    public GameRegistry(ConcurrentMap<Long, GameManager> players) {
+        this.guilds = new ConcurrentHashMap<>();
+        this.players = players;
+    }
+
+    /**
+     * Gets the game the given user owns in the given guild.
+     *
+     * @param guildId
+     * @param ownerId
+     * @return The game if found. Null otherwise.
+     */
+    public GameManager get(long guildId, long ownerId) {
+        Map<Long, GameManager> games = guilds.get(guildId);
+        return games == null ? null : games.get(ownerId);
+    }
+
+    /**
+     * Gets the game the given user is playing in.
+     *
+     * @param playerId
+     * @return The game if found. Null otherwise.
+     */
+    public GameManager getByPlayer(long playerId) {
+        return players.get(playerId);
+    }
+
+    /**
+     * Atomically records the given user as a player of the given game unless
+     * they are already in a game.
+     *
+     * @param playerId
+     * @param game
+     * @return The game the user was already in, or null if they were added to
+     * the given game.
+     */
+    public GameManager claimPlayer(long playerId, GameManager game) {
+        return players.putIfAbsent(playerId, game);
+    }
+
+    /**
+     * Removes the given user from the player index if they are still recorded
+     * as a player of the given game.
+     *
+     * @param playerId
+     * @param game
+     */
+    public void releasePlayer(long playerId, GameManager game) {
+        players.remove(playerId, game);
+    }
+
+    /**
+     * Atomically adds the given game unless its owner is already in a game.
+     * The owner is claimed as a player of the new game. Other players must be
+     * claimed separately (see claimPlayer).
+     *
+     * @param game
+     * @return The game the owner is already in, or null if the given game was
+     * added.
+     */
+    public GameManager putIfAbsent(GameManager game) {
+        long ownerId = game.getOwner().getIdLong();
+        GameManager ownersGame = players.putIfAbsent(ownerId, game);
+        if (ownersGame != null) {
+            return ownersGame;
+        }
+
+        GameManager[] existing = new GameManager[1];
+        guilds.compute(game.getGuildId(), (guildId, games) -> {
+            if (games == null) {
+                games = new ConcurrentHashMap<>();
+            }
+            existing[0] = games.putIfAbsent(ownerId, game);
+            return games;
+        });
+        if (existing[0] != null) {
+            players.remove(ownerId, game);
+        }
+        return existing[0];
+    }
+
+    /**
+     * Atomically removes the given game if it is still the game registered for
+     * its owner. Its players are released and empty guild partitions are
+     * dropped.
+     *
+     * @param game
+     * @return True if the game was removed. False otherwise.
+     */
+    public boolean remove(GameManager game) {
+        boolean[] removed = new boolean[1];
+        guilds.computeIfPresent(game.getGuildId(), (guildId, games) -> {
+            removed[0] = games.remove(game.getOwner().getIdLong(), game);
+            return games.isEmpty() ? null : games;
+        });
+        if (removed[0]) {
+            players.remove(game.getOwner().getIdLong(), game);
+            game.getAllPlayers().forEach(player -> players.remove(player.getIdLong(), game));
+        }
+        return removed[0];
+    }
+
+    /**
+     * Gives every registered game. Iteration is weakly consistent: it never
+     * throws because of concurrent changes, but may or may not reflect games
+     * added or removed while iterating.
+     *
+     * @return
+     */
+    public Stream<GameManager> games() {
+        return guilds.values().stream().flatMap(games -> games.values().stream());
+    }
+
+    /**
+     * Gives the number of registered games
+     *
+     * @return
+     */
+    public int size() {
+        return guilds.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * Used for debugging
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return games().map(GameManager::toString).collect(Collectors.joining(", ", "{", "}"));
+    }
+}
@@ -38,6 +38,15 @@ public class GameRole {
     
     }
 
+    /**
+     * Gives the bit that stands for this role in a role mask
+     *
+     * @return
+     */
+    public long getMask() {
+        return 1L << id;
+    }
+
     /**
      * Makes toString more easily readable
      * @return 
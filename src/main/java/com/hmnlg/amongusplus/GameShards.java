@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.events.message.priv.PrivateMessageReceivedEvent;
+
+/**
+ * The GameListener of every shard the bot is connected with. Each shard's
+ * listener keeps its own games, so shards never contend with each other. The
+ * only thing they share is the index of players to the game they are in: a
+ * user can only be in one game across all shards, and Discord delivers every
+ * private message on shard 0, so ability commands have to be routed to the
+ * shard of the player's game.
+ * <p>
+ * When several processes share the shards (see ShardCoordinator), players
+ * are also recorded in the coordination store, so a user can only be in one
+ * game across every process, and private messages for a game of another
+ * process are forwarded to it through the store.
+ * <p>
+ * A bot that isn't sharded has a single shard 0.
+ *
+ * @author maikotui
+ */
+public class GameShards {
+
+    /**
+     * Shard ID -> the listener currently handling its events
+     */
+    private final NavigableMap<Integer, GameListener> listeners;
+
+    /**
+     * Shard ID -> runs a task while no other event of the shard is handled
+     */
+    private final Map<Integer, ExclusiveExecutor> exclusiveExecutors;
+
+    /**
+     * Player ID -> the game they are in, shared by every shard's registry
+     */
+    private final ConcurrentMap<Long, GameManager> players;
+
+    /**
+     * Gives the connection of each shard, once connected
+     */
+    private volatile IntFunction<JDA> connections;
+
+    /**
+     * The gateway every shard makes its requests through. Discord's global
+     * rate limit is per bot, so the shards share one budget.
+     */
+    private RestGateway rest;
+
+    /**
+     * Where the processes sharing the shards record their players, or null if
+     * this process runs every shard
+     */
+    private volatile CoordinationStore store;
+
+    /**
+     * Creates an empty set of shards
+     */
+    public GameShards() {
+        listeners = new ConcurrentSkipListMap<>();
+        exclusiveExecutors = new ConcurrentHashMap<>();
+        players = new ConcurrentHashMap<>();
+        connections = shardId -> null;
+    }
+
+    /**
+     * Gives the ID of the shard that the given connection is
+     *
+     * @param jda
+     * @return 0 if the connection isn't sharded
+     */
+    public static int shardOf(JDA jda) {
+        JDA.ShardInfo shardInfo = jda.getShardInfo();
+        return shardInfo == null ? 0 : shardInfo.getShardId();
+    }
+
+    /**
+     * Gives the ID of the shard that Discord sends the events of the given
+     * guild on.
+     *
+     * @param guildId
+     * @param jda Any shard of the bot
+     * @return 0 if the connection isn't sharded
+     */
+    public static int shardOf(long guildId, JDA jda) {
+        JDA.ShardInfo shardInfo = jda.getShardInfo();
+        return shardInfo == null ? 0 : (int) ((guildId >> 22) % shardInfo.getShardTotal());
+    }
+
+    /**
+     * Gives the player index every shard's game registry shares
+     *
+     * @return
+     */
+    ConcurrentMap<Long, GameManager> getPlayers() {
+        return players;
+    }
+
+    /**
+     * Gives the gateway every shard makes its requests through, creating it
+     * the first time
+     *
+     * @param metrics The metrics the gateway records in
+     * @return
+     */
+    public synchronized RestGateway getRestGateway(Metrics metrics) {
+        if (rest == null) {
+            rest = new RestGateway(metrics);
+        }
+        return rest;
+    }
+
+    /**
+     * Makes this process record its players in, and forward private messages
+     * through, the given store
+     *
+     * @param store
+     */
+    public void setCoordinationStore(CoordinationStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Gives the store the processes sharing the shards coordinate through
+     *
+     * @return Null if this process runs every shard
+     */
+    public CoordinationStore getCoordinationStore() {
+        return store;
+    }
+
+    /**
+     * Records the given user as a player of a game on the given shard for the
+     * other processes. The process's own player index must be claimed first
+     * (see GameRegistry).
+     *
+     * @param playerId
+     * @param shardId
+     * @return False if the user is in a game on a shard of another process.
+     * True if they aren't, or if the store can't be reached.
+     */
+    public boolean claimPlayer(long playerId, int shardId) {
+        CoordinationStore current = store;
+        if (current == null) {
+            return true;
+        }
+        try {
+            return current.claimPlayer(playerId, shardId);
+        } catch (IOException ex) {
+            Logger.getLogger(GameShards.class.getName()).log(Level.WARNING, String.format("Could not record player %d, they may join games of other processes: %s", playerId, ex.getMessage()), ex);
+            return true;
+        }
+    }
+
+    /**
+     * Removes the given user's record for the other processes if it is on the
+     * given shard
+     *
+     * @param playerId
+     * @param shardId
+     */
+    public void releasePlayer(long playerId, int shardId) {
+        CoordinationStore current = store;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.releasePlayer(playerId, shardId);
+        } catch (IOException ex) {
+            Logger.getLogger(GameShards.class.getName()).log(Level.WARNING, String.format("Could not release player %d, they stay unable to join games of other processes until shard %d is restored: %s", playerId, shardId, ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Removes the records of every player of the given shard except the
+     * given ones
+     *
+     * @param shardId
+     * @param playerIds The players of the shard's games
+     */
+    public void retainPlayers(int shardId, Set<Long> playerIds) {
+        CoordinationStore current = store;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.retainPlayers(shardId, playerIds);
+        } catch (IOException ex) {
+            Logger.getLogger(GameShards.class.getName()).log(Level.WARNING, String.format("Could not drop the lost players of shard %d: %s", shardId, ex.getMessage()), ex);
+        }
+    }
+
+    /**
+     * Forwards the given private message to the process running the game of
+     * its author if that isn't this process
+     *
+     * @param event
+     * @return False if the author isn't in a game of another process
+     * @throws IOException If the store can't be reached
+     */
+    public boolean forwardPrivateMessage(PrivateMessageReceivedEvent event) throws IOException {
+        CoordinationStore current = store;
+        if (current == null) {
+            return false;
+        }
+        int shardId = current.getShardOfPlayer(event.getAuthor().getIdLong());
+        if (shardId < 0 || listeners.containsKey(shardId)) {
+            return false;
+        }
+        current.forward(new CoordinationStore.ForwardedMessage(shardId, event.getAuthor().getIdLong(), event.getMessageIdLong()));
+        return true;
+    }
+
+    /**
+     * Gives the listener of the given shard
+     *
+     * @param shardId
+     * @return Null if the shard has no listener yet
+     */
+    public GameListener getListener(int shardId) {
+        return listeners.get(shardId);
+    }
+
+    /**
+     * Gives the listener of the given shard, creating it if there is none.
+     * Used when a shard is (re)connected, so a reconnect keeps its games.
+     *
+     * @param shardId
+     * @param create Creates the shard's listener
+     * @return
+     */
+    public GameListener getOrCreateListener(int shardId, IntFunction<GameListener> create) {
+        return listeners.computeIfAbsent(shardId, create::apply);
+    }
+
+    /**
+     * Makes the given listener the one handling the given shard's events
+     *
+     * @param shardId
+     * @param listener
+     */
+    public void setListener(int shardId, GameListener listener) {
+        listeners.put(shardId, listener);
+    }
+
+    /**
+     * Gives the listener of every shard by shard ID
+     *
+     * @return
+     */
+    public NavigableMap<Integer, GameListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Gives the listener of the shard that the given player's game is on
+     *
+     * @param playerId
+     * @param jda Any shard of the bot
+     * @return Null if the player isn't in a game
+     */
+    public GameListener getListenerOfPlayer(long playerId, JDA jda) {
+        GameManager game = players.get(playerId);
+        return game == null ? null : listeners.get(shardOf(game.getGuildId(), jda));
+    }
+
+    /**
+     * Gives what runs a task while no other event of the given shard is
+     * handled.
+     *
+     * @param shardId
+     * @return Runs the task right away if none was set, which is only right
+     * when nothing else handles the shard's events at the same time. Main
+     * always sets one.
+     */
+    public ExclusiveExecutor getExclusiveExecutor(int shardId) {
+        return exclusiveExecutors.getOrDefault(shardId, Supplier::get);
+    }
+
+    /**
+     * Sets what runs a task while no other event of the given shard is
+     * handled (see PausableEventManager and VirtualThreadEventManager)
+     *
+     * @param shardId
+     * @param executor
+     */
+    public void setExclusiveExecutor(int shardId, ExclusiveExecutor executor) {
+        exclusiveExecutors.put(shardId, executor);
+    }
+
+    /**
+     * Gives the connection of the given shard
+     *
+     * @param shardId
+     * @return Null if the shard isn't connected
+     */
+    public JDA getConnection(int shardId) {
+        return connections.apply(shardId);
+    }
+
+    /**
+     * Sets where the connection of each shard is looked up
+     *
+     * @param connections Shard ID -> connection
+     */
+    public void setConnections(IntFunction<JDA> connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Runs a task while no other event of a shard is handled, and waits for
+     * it to finish
+     */
+    public interface ExclusiveExecutor {
+
+        /**
+         * Runs the given task once no other event of the shard is being
+         * handled. No other event is handled until it is done.
+         *
+         * @param <T>
+         * @param task
+         * @return What the task gave
+         */
+        <T> T call(Supplier<T> task);
+    }
+}
@@ -18,15 +18,24 @@ package com.hmnlg.amongusplus;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
+import java.time.Clock;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.security.auth.login.LoginException;
+import net.dv8tion.jda.bot.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.bot.sharding.ShardManager;
 import net.dv8tion.jda.core.AccountType;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.JDABuilder;
-import org.yaml.snakeyaml.Yaml;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.events.message.priv.PrivateMessageReceivedEvent;
 
 /**
  * Main class; starts the bot.
@@ -57,28 +66,337 @@ public class Main {
         }
 
         // Get the list of usable game roles
-        final Yaml yaml = new Yaml();
-        final List<GameRole> roles;
-        try ( InputStream in = Main.class.getClassLoader().getResourceAsStream("roles.yml")) {
-            Map<Object, List<GameRole>> temp = yaml.load(in);
-            roles = temp.get("roles");
+        final Supplier<RoleCatalog> roles;
+        try {
+            roles = loadRoles();
         } catch (IOException ex) {
             Logger.getLogger(Main.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
             return;
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Invalid roles: " + ex.getMessage(), ex);
+            return;
+        }
+
+        // Open the game journal if there is somewhere to keep it. Processes that share the shards keep one per shard instead.
+        final GameJournal journal;
+        try {
+            journal = System.getenv("JOURNAL_FILE") == null || System.getenv("COORDINATION_FILE") != null ? GameJournal.none() : GameJournal.open(Paths.get(System.getenv("JOURNAL_FILE")));
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Could not open the game journal: " + ex.getMessage(), ex);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "GameJournalShutdown"));
+
+        // Serve metrics on the loopback interface if a port was given
+        Metrics metrics = new Metrics();
+        metrics.registerJvmMetrics();
+        if (System.getenv("METRICS_PORT") != null) {
+            try {
+                MetricsServer.start(Integer.parseInt(System.getenv("METRICS_PORT")), metrics);
+            } catch (IOException | NumberFormatException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Metrics are disabled, could not serve them: " + ex.getMessage(), ex);
+            }
+        }
+
+        // Handle events on virtual threads if a concurrency cap was given
+        int eventConcurrency = 0;
+        if (System.getenv("EVENT_CONCURRENCY") != null) {
+            try {
+                eventConcurrency = Integer.parseInt(System.getenv("EVENT_CONCURRENCY"));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Events are handled on one thread, invalid EVENT_CONCURRENCY: " + ex.getMessage(), ex);
+            }
         }
 
-        // Build the API
+        // Build the API, sharded if a shard count was given and sharing the shards with other processes if a coordination file was given
+        GameShards shards = new GameShards();
+        try {
+            if (System.getenv("COORDINATION_FILE") != null) {
+                connectCoordinated(token, parseFixedShardCount(System.getenv("SHARD_COUNT")), roles, metrics, eventConcurrency, shards);
+            } else if (System.getenv("SHARD_COUNT") == null) {
+                connect(token, roles, journal, metrics, eventConcurrency, shards);
+            } else {
+                connectSharded(token, parseShardCount(System.getenv("SHARD_COUNT")), roles, journal, metrics, eventConcurrency, shards);
+            }
+        } catch (LoginException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Could not reach the coordination store: " + ex.getMessage(), ex);
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, "Could not connect: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Connects the bot with a single connection.
+     *
+     * @param token
+     * @param roles
+     * @param journal
+     * @param metrics
+     * @param eventConcurrency The most events handled at once on virtual
+     * threads, or 0 to handle them on JDA's event thread
+     * @param shards Filled in with the only shard
+     * @throws LoginException
+     */
+    private static void connect(String token, Supplier<RoleCatalog> roles, GameJournal journal, Metrics metrics, int eventConcurrency, GameShards shards) throws LoginException {
         JDABuilder builder = new JDABuilder(AccountType.BOT);
         builder.setToken(token);
-        GameListener gameListener = new GameListener(roles, false);
+        GameListener gameListener = new GameListener(roles, false, Clock.systemUTC(), journal, metrics, shards, 0);
+        shards.setListener(0, gameListener);
         builder.addEventListener(gameListener);
-        
-        final JDA api;
+        if (eventConcurrency > 0) {
+            VirtualThreadEventManager eventManager = new VirtualThreadEventManager(eventConcurrency, metrics);
+            builder.setEventManager(eventManager);
+            shards.setExclusiveExecutor(0, eventManager::runExclusively);
+        } else {
+            // Restarts run off the event thread, so they have to pause it
+            PausableEventManager eventManager = new PausableEventManager();
+            builder.setEventManager(eventManager);
+            shards.setExclusiveExecutor(0, eventManager::runExclusively);
+        }
+
+        final JDA api = builder.build();
+        shards.setConnections(shardId -> shardId == 0 ? api : null);
+        api.addEventListener(new AdminListener(shards));
+    }
+
+    /**
+     * Connects the bot with the given number of shards. Every shard gets its
+     * own GameListener and event manager, so shards never wait on each other.
+     *
+     * @param token
+     * @param shardCount The number of shards, or -1 for as many as Discord
+     * recommends
+     * @param roles
+     * @param journal
+     * @param metrics
+     * @param eventConcurrency The most events handled at once on virtual
+     * threads by each shard, or 0 to handle them on each shard's event thread
+     * @param shards Filled in with every shard as it is started
+     * @throws LoginException
+     */
+    private static void connectSharded(String token, int shardCount, Supplier<RoleCatalog> roles, GameJournal journal, Metrics metrics, int eventConcurrency, GameShards shards) throws LoginException {
+        DefaultShardManagerBuilder builder = shardManagerBuilder(token, shardCount, metrics, eventConcurrency, shards, new AdminListener(shards));
+
+        // A shard that is restarted keeps its games
+        builder.addEventListenerProvider(shardId -> shards.getOrCreateListener(shardId, id -> new GameListener(roles, false, Clock.systemUTC(), journal, metrics, shards, id)));
+
+        ShardManager shardManager = builder.build();
+        shards.setConnections(shardManager::getShardById);
+    }
+
+    /**
+     * Connects the bot with the shards this process claims in the
+     * COORDINATION_FILE, at most SHARDS_PER_PROCESS of them. Waits until at
+     * least one shard is free. Shards freed by other processes later are
+     * started as they are claimed. Every shard keeps its games in its own
+     * journal, JOURNAL_FILE followed by the shard ID, so whichever process
+     * owns the shard next restores them. Players are recorded in the store,
+     * so a user can only be in one game across every process, and private
+     * messages about games of other processes are forwarded to them. On
+     * shutdown every shard is stopped, its journal closed and its lease
+     * released.
+     *
+     * @param token
+     * @param shardCount The number of shards of the bot across every process
+     * @param roles
+     * @param metrics
+     * @param eventConcurrency The most events handled at once on virtual
+     * threads by each shard, or 0 to handle them on each shard's event thread
+     * @param shards Filled in with every shard as it is started
+     * @throws LoginException
+     * @throws IOException If the coordination store can't be reached
+     */
+    private static void connectCoordinated(String token, int shardCount, Supplier<RoleCatalog> roles, Metrics metrics, int eventConcurrency, GameShards shards) throws LoginException, IOException {
+        int maximumShards = System.getenv("SHARDS_PER_PROCESS") == null ? shardCount : Integer.parseInt(System.getenv("SHARDS_PER_PROCESS"));
+        CoordinationStore store = new FileCoordinationStore(Paths.get(System.getenv("COORDINATION_FILE")), Clock.systemUTC());
+        ShardCoordinator coordinator = new ShardCoordinator(store, ShardCoordinator.defaultProcessId(), shardCount, maximumShards, Clock.systemUTC());
+        Set<Integer> claimedShards = coordinator.awaitShards();
+        Logger.getLogger(Main.class.getName()).log(Level.INFO, String.format("Running shards %s of %d", claimedShards, shardCount));
+
+        shards.setCoordinationStore(store);
+        AdminListener adminListener = new AdminListener(shards);
+        DefaultShardManagerBuilder builder = shardManagerBuilder(token, shardCount, metrics, eventConcurrency, shards, adminListener);
+        builder.setShards(claimedShards);
+        Map<Integer, GameJournal> journals = new ConcurrentHashMap<>();
+        builder.addEventListenerProvider(shardId -> shards.getOrCreateListener(shardId,
+                id -> new GameListener(roles, false, Clock.systemUTC(), journals.computeIfAbsent(id, Main::openShardJournal), metrics, shards, id)));
+
+        ShardManager shardManager = builder.build();
+        shards.setConnections(shardManager::getShardById);
+        coordinator.start(shardManager::start, forwarded -> deliverForwarded(forwarded, shards, adminListener));
+
+        // Hand every shard over so the next owner finds all of its games in the journal
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> coordinator.stop(shardId -> {
+            shardManager.shutdown(shardId);
+            GameListener gameListener = shards.getListener(shardId);
+            if (gameListener != null) {
+                gameListener.freeze(5000);
+            }
+            GameJournal journal = journals.remove(shardId);
+            if (journal != null) {
+                journal.close();
+            }
+        }), "ShardHandover"));
+    }
+
+    /**
+     * Creates a builder for a sharded connection. Every shard gets its own
+     * event manager that can be paused for admin commands.
+     *
+     * @param token
+     * @param shardCount The number of shards, or -1 for as many as Discord
+     * recommends
+     * @param metrics
+     * @param eventConcurrency The most events handled at once on virtual
+     * threads by each shard, or 0 to handle them on each shard's event thread
+     * @param shards
+     * @param adminListener Added to every shard
+     * @return
+     */
+    private static DefaultShardManagerBuilder shardManagerBuilder(String token, int shardCount, Metrics metrics, int eventConcurrency, GameShards shards, AdminListener adminListener) {
+        DefaultShardManagerBuilder builder = new DefaultShardManagerBuilder();
+        builder.setToken(token);
+        builder.setShardsTotal(shardCount);
+        builder.setEventManagerProvider(shardId -> {
+            if (eventConcurrency > 0) {
+                VirtualThreadEventManager eventManager = new VirtualThreadEventManager(eventConcurrency, metrics, shardId);
+                shards.setExclusiveExecutor(shardId, eventManager::runExclusively);
+                return eventManager;
+            }
+            PausableEventManager eventManager = new PausableEventManager();
+            shards.setExclusiveExecutor(shardId, eventManager::runExclusively);
+            return eventManager;
+        });
+        builder.addEventListeners(adminListener);
+        return builder;
+    }
+
+    /**
+     * Hands a private message another process forwarded to the listeners of
+     * its shard. The message is fetched through the shard's own connection,
+     * so it is answered from this process.
+     *
+     * @param forwarded
+     * @param shards
+     * @param adminListener
+     */
+    private static void deliverForwarded(CoordinationStore.ForwardedMessage forwarded, GameShards shards, AdminListener adminListener) {
+        JDA jda = shards.getConnection(forwarded.shardId);
+        GameListener gameListener = shards.getListener(forwarded.shardId);
+        if (jda == null || gameListener == null) {
+            Logger.getLogger(Main.class.getName()).log(Level.WARNING, String.format("Dropped a private message forwarded to shard %d, it isn't running", forwarded.shardId));
+            return;
+        }
+
+        RestGateway rest = gameListener.getRestGateway();
+        Consumer<User> fetch = author -> rest.queue(RestRoute.PRIVATE_CHANNEL_OPEN, author.openPrivateChannel(),
+                channel -> rest.queue(RestRoute.MESSAGE_FETCH, RestPriority.CRITICAL, channel.getMessageById(forwarded.messageId), message -> {
+                    PrivateMessageReceivedEvent event = new ForwardedPrivateMessageEvent(jda, message);
+                    shards.getListener(forwarded.shardId).onPrivateMessageReceived(event);
+                    adminListener.onPrivateMessageReceived(event);
+                }));
+        User author = jda.getUserById(forwarded.authorId);
+        if (author != null) {
+            fetch.accept(author);
+        } else {
+            rest.queue(RestRoute.USER_FETCH, jda.retrieveUserById(forwarded.authorId), fetch);
+        }
+    }
+
+    /**
+     * Opens the journal of the given shard if there is somewhere to keep it
+     *
+     * @param shardId
+     * @return The journal, or one that records nothing if it can't be opened
+     */
+    private static GameJournal openShardJournal(int shardId) {
+        if (System.getenv("JOURNAL_FILE") == null) {
+            return GameJournal.none();
+        }
         try {
-            api = builder.build();
-            api.addEventListener(new AdminListener(api, gameListener));
-        } catch (LoginException ex) {
-            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+            return GameJournal.open(Paths.get(System.getenv("JOURNAL_FILE") + "." + shardId));
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE, String.format("Could not open the journal of shard %d, its games won't be kept: %s", shardId, ex.getMessage()), ex);
+            return GameJournal.none();
+        }
+    }
+
+    /**
+     * Parses the number of shards to connect with
+     *
+     * @param shardCount A positive number, or auto for as many as Discord
+     * recommends
+     * @return The number of shards, or -1 for auto
+     * @throws IllegalArgumentException If the count is invalid
+     */
+    private static int parseShardCount(String shardCount) {
+        if (shardCount.equalsIgnoreCase("auto")) {
+            return -1;
+        }
+        int count = Integer.parseInt(shardCount);
+        if (count < 1) {
+            throw new IllegalArgumentException("SHARD_COUNT must be at least 1 or auto.");
+        }
+        return count;
+    }
+
+    /**
+     * Parses the number of shards shared by every process
+     *
+     * @param shardCount A positive number
+     * @return
+     * @throws IllegalArgumentException If the count is missing or invalid
+     */
+    private static int parseFixedShardCount(String shardCount) {
+        if (shardCount == null || shardCount.equalsIgnoreCase("auto")) {
+            throw new IllegalArgumentException("Processes can only share the shards if SHARD_COUNT is a fixed number.");
+        }
+        return parseShardCount(shardCount);
+    }
+
+    /**
+     * Loads the roles. If ROLES_FILE is set, that file is loaded and reloaded
+     * whenever it changes. Otherwise the bundled roles are used.
+     *
+     * @return
+     * @throws IOException If the roles can't be read
+     */
+    private static Supplier<RoleCatalog> loadRoles() throws IOException {
+        String rolesFile = System.getenv("ROLES_FILE");
+        if (rolesFile != null) {
+            return RoleCatalogWatcher.start(Paths.get(rolesFile));
+        }
+
+        RoleCatalog catalog = new RoleCatalog(loadBundledRoles());
+        return () -> catalog;
+    }
+
+    /**
+     * Loads the roles compiled by the build. Falls back to parsing and
+     * validating roles.yml if they are missing or can't be read.
+     *
+     * @return
+     * @throws IOException If roles.yml can't be read either
+     */
+    private static List<GameRole> loadBundledRoles() throws IOException {
+        try ( InputStream in = Main.class.getClassLoader().getResourceAsStream(CompiledRoles.resourceName)) {
+            if (in != null) {
+                return CompiledRoles.read(in);
+            }
+            Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Compiled roles not found, loading roles.yml instead.");
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.WARNING, "Could not read compiled roles, loading roles.yml instead.", ex);
+        }
+
+        try ( InputStream in = Main.class.getClassLoader().getResourceAsStream("roles.yml")) {
+            if (in == null) {
+                throw new IOException("roles.yml not found.");
+            }
+            List<GameRole> roles = CompiledRoles.loadYaml(in);
+            CompiledRoles.validate(roles);
+            return roles;
         }
     }
 }
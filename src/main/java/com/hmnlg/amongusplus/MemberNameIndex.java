@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.apache.commons.text.similarity.LevenshteinDistance;
+
+/**
+ * A fuzzy index of the member names of a single guild. Names are case-folded
+ * and stored in a BK-tree, so a search only computes the edit distance to the
+ * few names that can be within the allowed distance instead of to every
+ * member. Members are added and removed as they join, leave or get renamed.
+ * <p>
+ * Removed names stay in the tree as empty nodes (other names hang off them)
+ * until enough have piled up, then the tree is rebuilt.
+ * <p>
+ * An index can be handed to member events before it is filled. Events that
+ * arrive while it is being filled wait for the fill and are applied on top of
+ * it, so none of them are lost.
+ *
+ * @author maikotui
+ */
+public class MemberNameIndex {
+
+    /**
+     * Shared by every index, it holds no state
+     */
+    private static final LevenshteinDistance distance = LevenshteinDistance.getDefaultInstance();
+
+    /**
+     * The number of empty nodes always tolerated before rebuilding
+     */
+    private static final int minimumEmptyNodesBeforeRebuild = 64;
+
+    private Node root;
+
+    /**
+     * Folded name -> its node, for adding and removing without a search
+     */
+    private final Map<String, Node> nodesByName = new HashMap<>();
+
+    private int emptyNodes;
+
+    /**
+     * Whether the index has been filled with the guild's members
+     */
+    private boolean filled;
+
+    /**
+     * Fills the index with the given filler unless it has already been
+     * filled. Every other use of the index waits until the filler is done.
+     *
+     * @param filler Adds every current member to the index
+     */
+    public synchronized void fillOnce(Consumer<MemberNameIndex> filler) {
+        if (!filled) {
+            filler.accept(this);
+            filled = true;
+        }
+    }
+
+    /**
+     * Records that the member with the given user ID goes by the given name
+     *
+     * @param name
+     * @param userId
+     */
+    public synchronized void add(String name, long userId) {
+        String key = fold(name);
+        Node node = nodesByName.get(key);
+        if (node == null) {
+            node = new Node(key);
+            nodesByName.put(key, node);
+            insert(node);
+        } else if (node.userIds.isEmpty()) {
+            emptyNodes--;
+        }
+        node.userIds.add(userId);
+    }
+
+    /**
+     * Records that the member with the given user ID no longer goes by the
+     * given name
+     *
+     * @param name
+     * @param userId
+     */
+    public synchronized void remove(String name, long userId) {
+        Node node = nodesByName.get(fold(name));
+        if (node == null || !node.userIds.remove(userId) || !node.userIds.isEmpty()) {
+            return;
+        }
+
+        emptyNodes++;
+        if (emptyNodes > minimumEmptyNodesBeforeRebuild && emptyNodes > nodesByName.size() / 2) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Finds every member whose name is within the given edit distance of the
+     * query, ignoring case.
+     *
+     * @param query
+     * @param maximumDistance
+     * @return The matches, closest first.
+     */
+    public synchronized List<Match> search(String query, int maximumDistance) {
+        List<Match> matches = new ArrayList<>();
+        if (root == null) {
+            return matches;
+        }
+
+        String key = fold(query);
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            int d = distance.apply(key, node.name);
+            if (d <= maximumDistance) {
+                for (long userId : node.userIds) {
+                    matches.add(new Match(userId, d));
+                }
+            }
+
+            // By the triangle inequality only children at these distances can match
+            for (Map.Entry<Integer, Node> child : node.children.entrySet()) {
+                if (Math.abs(child.getKey() - d) <= maximumDistance) {
+                    pending.push(child.getValue());
+                }
+            }
+        }
+
+        matches.sort(Comparator.comparingInt(Match::getDistance));
+        return matches;
+    }
+
+    /**
+     * Gives the number of distinct names in the index
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return nodesByName.size() - emptyNodes;
+    }
+
+    /**
+     * Hangs the given node off the tree
+     *
+     * @param node
+     */
+    private void insert(Node node) {
+        if (root == null) {
+            root = node;
+            return;
+        }
+
+        Node parent = root;
+        while (true) {
+            int d = distance.apply(node.name, parent.name);
+            Node child = parent.children.get(d);
+            if (child == null) {
+                parent.children.put(d, node);
+                return;
+            }
+            parent = child;
+        }
+    }
+
+    /**
+     * Rebuilds the tree from the names that are still in use
+     */
+    private void rebuild() {
+        List<Node> live = new ArrayList<>();
+        nodesByName.values().forEach(node -> {
+            if (!node.userIds.isEmpty()) {
+                live.add(node);
+            }
+        });
+
+        root = null;
+        nodesByName.clear();
+        emptyNodes = 0;
+        for (Node old : live) {
+            Node node = new Node(old.name);
+            node.userIds.addAll(old.userIds);
+            nodesByName.put(node.name, node);
+            insert(node);
+        }
+    }
+
+    /**
+     * Gives the form of the given name that is indexed
+     *
+     * @param name
+     * @return
+     */
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A member found by a search
+     */
+    public static class Match {
+
+        private final long userId;
+        private final int distance;
+
+        Match(long userId, int distance) {
+            this.userId = userId;
+            this.distance = distance;
+        }
+
+        /**
+         * Gives the ID of the member's user
+         *
+         * @return
+         */
+        public long getUserId() {
+            return userId;
+        }
+
+        /**
+         * Gives the number of edits between the query and the member's name
+         *
+         * @return
+         */
+        public int getDistance() {
+            return distance;
+        }
+    }
+
+    /**
+     * A name in the tree and every member that goes by it
+     */
+    private static class Node {
+
+        private final String name;
+        private final Set<Long> userIds = new HashSet<>(2);
+        private final Map<Integer, Node> children = new HashMap<>(4);
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+}
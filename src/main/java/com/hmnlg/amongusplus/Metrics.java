@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.math.BigDecimal;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A small registry of counters, gauges and histograms that can be written out
+ * in the Prometheus text exposition format. Metrics are grouped in families
+ * by name; each family holds one metric per set of label values.
+ * <p>
+ * Recording is lock-free. Gauges are read when the metrics are written.
+ *
+ * @author maikotui
+ */
+public class Metrics {
+
+    /**
+     * Upper bounds of the latency histogram buckets, in seconds
+     */
+    private static final double[] latencyBuckets = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5};
+
+    /**
+     * Family name -> family, in name order
+     */
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * Gets the counter with the given name and label values, creating it if
+     * needed.
+     *
+     * @param name
+     * @param help
+     * @param labels Label names and values, alternating
+     * @return
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").children.computeIfAbsent(labelString(labels), key -> new Counter());
+    }
+
+    /**
+     * Gets the latency histogram with the given name and label values,
+     * creating it if needed.
+     *
+     * @param name
+     * @param help
+     * @param labels Label names and values, alternating
+     * @return
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").children.computeIfAbsent(labelString(labels), key -> new Histogram(latencyBuckets));
+    }
+
+    /**
+     * Registers a gauge that is read from the given supplier. Replaces any
+     * gauge with the same name and label values.
+     *
+     * @param name
+     * @param help
+     * @param value
+     * @param labels Label names and values, alternating
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").children.put(labelString(labels), new Gauge(value));
+    }
+
+    /**
+     * Registers a counter whose total is kept elsewhere and read from the
+     * given supplier. Replaces any counter with the same name and label
+     * values.
+     *
+     * @param name
+     * @param help
+     * @param value
+     * @param labels Label names and values, alternating
+     */
+    public void counterFunction(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "counter").children.put(labelString(labels), new Gauge(value));
+    }
+
+    /**
+     * Registers gauges for the heap and the garbage collectors of this JVM
+     */
+    public void registerJvmMetrics() {
+        gauge("jvm_memory_heap_used_bytes", "Heap memory in use", () -> heap().getUsed());
+        gauge("jvm_memory_heap_committed_bytes", "Heap memory committed by the JVM", () -> heap().getCommitted());
+        gauge("jvm_memory_heap_max_bytes", "Largest the heap can grow to", () -> heap().getMax());
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counterFunction("jvm_gc_collections_total", "Number of garbage collections", gc::getCollectionCount, "gc", gc.getName());
+            counterFunction("jvm_gc_collection_seconds_total", "Time spent in garbage collection", () -> gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+        }
+    }
+
+    private static MemoryUsage heap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format
+     *
+     * @return
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+        families.forEach((name, family) -> {
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.children.forEach((labels, metric) -> metric.writeTo(sb, name, labels));
+        });
+        return sb.toString();
+    }
+
+    /**
+     * Gets the family with the given name, creating it if needed
+     *
+     * @param name
+     * @param help
+     * @param type
+     * @return
+     */
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(String.format("Metric %s is a %s, not a %s.", name, family.type, type));
+        }
+        return family;
+    }
+
+    /**
+     * Formats the given label names and values, e.g. {a="1",b="2"}
+     *
+     * @param labels
+     * @return
+     */
+    private static String labelString(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Adds a label to the given label string
+     *
+     * @param labels
+     * @param name
+     * @param value
+     * @return
+     */
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    /**
+     * Formats the given value without an exponent
+     *
+     * @param value
+     * @return
+     */
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).toPlainString();
+    }
+
+    /**
+     * Every metric with the same name
+     */
+    private static class Family {
+
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> children = new ConcurrentHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A single metric
+     */
+    private interface Metric {
+
+        void writeTo(StringBuilder sb, String name, String labels);
+    }
+
+    /**
+     * A total that only goes up
+     */
+    public static class Counter implements Metric {
+
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void writeTo(StringBuilder sb, String name, String labels) {
+            sb.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    /**
+     * A value that is read when written out
+     */
+    private static class Gauge implements Metric {
+
+        private final DoubleSupplier value;
+
+        Gauge(DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void writeTo(StringBuilder sb, String name, String labels) {
+            sb.append(name).append(labels).append(' ').append(format(value.getAsDouble())).append('\n');
+        }
+    }
+
+    /**
+     * Counts durations into buckets by upper bound
+     */
+    public static class Histogram implements Metric {
+
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a duration
+         *
+         * @param nanos
+         */
+        public void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < bounds.length; i++) {
+                if (seconds <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Gives the number of durations recorded
+         *
+         * @return
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public void writeTo(StringBuilder sb, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                sb.append(name).append("_bucket").append(withLabel(labels, "le", format(bounds[i]))).append(' ').append(cumulative).append('\n');
+            }
+            long total = count.sum();
+            sb.append(name).append("_bucket").append(withLabel(labels, "le", "+Inf")).append(' ').append(total).append('\n');
+            sb.append(name).append("_sum").append(labels).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(total).append('\n');
+        }
+    }
+}
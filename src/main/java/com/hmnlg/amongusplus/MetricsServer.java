@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the bot's metrics at /metrics for a Prometheus scraper. Only listens
+ * on the loopback address, so the metrics are never exposed outside of the
+ * machine the bot runs on.
+ *
+ * @author maikotui
+ */
+public class MetricsServer {
+
+    private final HttpServer server;
+
+    /**
+     * Starts serving the given metrics on the given loopback port.
+     *
+     * @param port
+     * @param metrics
+     * @return
+     * @throws IOException If the port can't be bound
+     */
+    public static MetricsServer start(int port, Metrics metrics) throws IOException {
+        MetricsServer metricsServer = new MetricsServer(port, metrics);
+        metricsServer.server.start();
+        return metricsServer;
+    }
+
+    /**
+     * Binds the server without starting it
+     *
+     * @param port
+     * @param metrics
+     * @throws IOException
+     */
+    private MetricsServer(int port, Metrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, metrics));
+
+        // A single thread is plenty for one scraper
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MetricsServer");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Writes the metrics to the given exchange
+     *
+     * @param exchange
+     * @param metrics
+     * @throws IOException
+     */
+    private static void respond(HttpExchange exchange, Metrics metrics) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try ( OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stops serving the metrics
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
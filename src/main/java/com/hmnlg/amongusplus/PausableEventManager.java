@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import net.dv8tion.jda.core.events.Event;
+import net.dv8tion.jda.core.hooks.InterfacedEventManager;
+
+/**
+ * JDA's own event manager, handling events on the shard's event thread, that
+ * can be paused from another thread. Used when events are handled on the
+ * event threads, so admin restarts, which run on their own thread, can hand
+ * over the listener of any shard.
+ *
+ * @author maikotui
+ */
+public class PausableEventManager extends InterfacedEventManager {
+
+    /**
+     * Held for reading while an event is handled and for writing while paused
+     */
+    private final ReentrantReadWriteLock pause = new ReentrantReadWriteLock();
+
+    @Override
+    public void handle(Event event) {
+        pause.readLock().lock();
+        try {
+            super.handle(event);
+        } finally {
+            pause.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs the given task once the event being handled is done. No other event
+     * is handled until the task is done.
+     *
+     * @param <T>
+     * @param task
+     * @return What the task gave
+     */
+    public <T> T runExclusively(Supplier<T> task) {
+        // Called from this shard's own event thread, nothing else can be running
+        if (pause.getReadHoldCount() > 0) {
+            return task.get();
+        }
+
+        pause.writeLock().lock();
+        try {
+            return task.get();
+        } finally {
+            pause.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.Set;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.events.message.react.MessageReactionAddEvent;
+
+/**
+ * Throws away reactions that can't be meant for a game before anything is
+ * looked up, allocated or sent. Most reactions the bot sees are on messages
+ * that have nothing to do with games. Checked in order:
+ * <ol>
+ * <li>the emoji must be one the display messages use,</li>
+ * <li>the message must be in a Bloom filter of the live display messages,</li>
+ * <li>the reaction must not be the bot's own.</li>
+ * </ol>
+ * Reactions that pass still have to be found in the display message index;
+ * the filter only gets it wrong in that direction. Every drop is counted by
+ * reason.
+ *
+ * @author maikotui
+ */
+public class ReactionFilter {
+
+    /**
+     * The reactions the display messages offer: checkmark, C, I, restart and
+     * stop
+     */
+    private static final Set<String> gameEmoji = Set.of("\u2705", "\uD83C\uDDE8", "\uD83C\uDDEE", "\uD83D\uDD04", "\uD83D\uDED1");
+
+    /**
+     * The display messages of every live game
+     */
+    private final CountingBloomFilter displayMessages = new CountingBloomFilter(1 << 16, 3);
+
+    private final Metrics.Counter droppedForEmoji;
+    private final Metrics.Counter droppedForMessage;
+    private final Metrics.Counter droppedForSelf;
+    private final Metrics.Counter falsePositives;
+
+    /**
+     * Creates a filter that lets no message through until display messages
+     * are added.
+     *
+     * @param metrics The metrics to count drops in
+     * @param shardId The shard whose reactions are filtered, used as a label
+     */
+    public ReactionFilter(Metrics metrics, int shardId) {
+        String shard = Integer.toString(shardId);
+        String help = "Reactions thrown away before being handled, by shard and reason";
+        droppedForEmoji = metrics.counter("amongus_reactions_dropped_total", help, "shard", shard, "reason", "emoji");
+        droppedForMessage = metrics.counter("amongus_reactions_dropped_total", help, "shard", shard, "reason", "not_display_message");
+        droppedForSelf = metrics.counter("amongus_reactions_dropped_total", help, "shard", shard, "reason", "self");
+        falsePositives = metrics.counter("amongus_reaction_filter_false_positives_total", "Reactions that passed the filter but were not on a display message, by shard", "shard", shard);
+    }
+
+    /**
+     * Lets reactions to the given display message through
+     *
+     * @param messageId
+     */
+    public void addDisplayMessage(long messageId) {
+        displayMessages.add(messageId);
+    }
+
+    /**
+     * Stops letting reactions to the given display message through. Must
+     * only be called once for each time it was added.
+     *
+     * @param messageId
+     */
+    public void removeDisplayMessage(long messageId) {
+        displayMessages.remove(messageId);
+    }
+
+    /**
+     * Checks whether the given reaction may be for a game.
+     *
+     * @param event
+     * @return False if the reaction certainly isn't for a game
+     */
+    public boolean test(MessageReactionAddEvent event) {
+        if (!gameEmoji.contains(event.getReactionEmote().getName())) {
+            droppedForEmoji.increment();
+            return false;
+        }
+        if (!displayMessages.mightContain(event.getMessageIdLong())) {
+            droppedForMessage.increment();
+            return false;
+        }
+        User reactor = event.getUser();
+        if (reactor == null || reactor.getIdLong() == event.getJDA().getSelfUser().getIdLong()) {
+            droppedForSelf.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts a reaction that passed the filter but wasn't on a display
+     * message
+     */
+    public void countFalsePositive() {
+        falsePositives.increment();
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.dv8tion.jda.core.requests.RestAction;
+
+/**
+ * Every request the bot makes to Discord goes through here so they can be
+ * counted by route and sent in order of priority. A request is counted as
+ * queued when it is handed to the gateway and as succeeded or failed once JDA
+ * hears back.
+ * <p>
+ * Only a limited number of requests are handed to JDA at once, in total and
+ * per route. When Discord rate limits the bot, JDA holds on to the requests
+ * it was given, so they stay in flight and the budgets run out. Everything
+ * after that waits here instead of in JDA's queue, where critical requests
+ * (role messages, game displays) overtake cosmetic ones (checkmarks on
+ * commands). Cosmetic requests that wait too long, or that find too many
+ * others waiting, are shed. An edit that is still waiting can be replaced by
+ * a newer one (see replaceWaiting), so a superseded edit is never sent.
+ * <p>
+ * The route budgets are per kind of request, not per Discord rate limit
+ * bucket, which JDA doesn't expose before sending. A channel that is rate
+ * limited on its own can therefore hold a whole route's budget and hold up
+ * the same kind of request in other guilds until its limit resets.
+ *
+ * @author maikotui
+ */
+public class RestGateway {
+
+    /**
+     * The most requests handed to JDA at once. Discord allows a bot 50
+     * requests a second across all routes.
+     */
+    private static final int maximumRequestsInFlight = 50;
+
+    /**
+     * The most cosmetic requests waiting at once, more are shed
+     */
+    private static final int maximumCosmeticWaiting = 256;
+
+    /**
+     * The longest a cosmetic request waits before it is shed
+     */
+    private static final long maximumCosmeticWaitInMillis = 5000;
+
+    /**
+     * Route -> queued, succeeded, failed, shed and superseded counters
+     */
+    private final Map<RestRoute, Metrics.Counter[]> counters = new EnumMap<>(RestRoute.class);
+
+    /**
+     * Priority -> the time requests waited before being handed to JDA
+     */
+    private final Map<RestPriority, Metrics.Histogram> waitTimes = new EnumMap<>(RestPriority.class);
+
+    /**
+     * Priority -> route -> the requests waiting for a budget, oldest first
+     */
+    private final Map<RestPriority, Map<RestRoute, ArrayDeque<Request<?>>>> waiting = new EnumMap<>(RestPriority.class);
+
+    /**
+     * Key -> the waiting request that can still be replaced
+     */
+    private final Map<Object, Request<?>> waitingByKey = new HashMap<>();
+
+    /**
+     * Priority -> the number of requests waiting
+     */
+    private final Map<RestPriority, int[]> waitingCounts = new EnumMap<>(RestPriority.class);
+
+    /**
+     * Route -> the number of requests handed to JDA and not answered yet
+     */
+    private final Map<RestRoute, long[]> routesInFlight = new EnumMap<>(RestRoute.class);
+
+    private final long maximumInFlight;
+
+    private final ToIntFunction<RestRoute> routeBudgets;
+
+    private long inFlight;
+
+    /**
+     * Gives every request a place in line across routes
+     */
+    private long nextSequence;
+
+    /**
+     * Creates a gateway that counts its requests in the given metrics.
+     *
+     * @param metrics
+     */
+    public RestGateway(Metrics metrics) {
+        this(metrics, maximumRequestsInFlight, RestRoute::getBudget);
+    }
+
+    /**
+     * Creates a gateway with the given budgets. Used by benchmarks and the
+     * simulator.
+     *
+     * @param metrics
+     * @param maximumInFlight The most requests handed to JDA at once
+     * @param routeBudgets The most requests of each route handed to JDA at
+     * once
+     */
+    protected RestGateway(Metrics metrics, long maximumInFlight, ToIntFunction<RestRoute> routeBudgets) {
+        this.maximumInFlight = maximumInFlight;
+        this.routeBudgets = routeBudgets;
+        for (RestRoute route : RestRoute.values()) {
+            counters.put(route, new Metrics.Counter[]{
+                metrics.counter("discord_rest_requests_total", "Requests made to Discord by route and outcome", "route", route.getName(), "outcome", "queued"),
+                metrics.counter("discord_rest_requests_total", "Requests made to Discord by route and outcome", "route", route.getName(), "outcome", "succeeded"),
+                metrics.counter("discord_rest_requests_total", "Requests made to Discord by route and outcome", "route", route.getName(), "outcome", "failed"),
+                metrics.counter("discord_rest_requests_total", "Requests made to Discord by route and outcome", "route", route.getName(), "outcome", "shed"),
+                metrics.counter("discord_rest_requests_total", "Requests made to Discord by route and outcome", "route", route.getName(), "outcome", "superseded")
+            });
+            routesInFlight.put(route, new long[1]);
+        }
+        for (RestPriority priority : RestPriority.values()) {
+            Map<RestRoute, ArrayDeque<Request<?>>> routes = new EnumMap<>(RestRoute.class);
+            for (RestRoute route : RestRoute.values()) {
+                routes.put(route, new ArrayDeque<>());
+            }
+            waiting.put(priority, routes);
+            int[] count = new int[1];
+            waitingCounts.put(priority, count);
+            waitTimes.put(priority, metrics.histogram("discord_rest_wait_seconds", "Time requests waited for a budget before being handed to JDA, by priority", "priority", priority.getName()));
+            metrics.gauge("discord_rest_requests_waiting", "Requests waiting for a budget by priority", () -> waitingCount(count), "priority", priority.getName());
+        }
+        metrics.gauge("discord_rest_requests_in_flight", "Requests handed to JDA and not answered yet", this::inFlightCount);
+    }
+
+    /**
+     * Queues the given request at its route's priority. Failures are logged.
+     *
+     * @param <T>
+     * @param route
+     * @param action
+     */
+    public <T> void queue(RestRoute route, RestAction<T> action) {
+        queue(route, route.getPriority(), action, null, null);
+    }
+
+    /**
+     * Queues the given request at the given priority. Failures are logged.
+     *
+     * @param <T>
+     * @param route
+     * @param priority
+     * @param action
+     */
+    public <T> void queue(RestRoute route, RestPriority priority, RestAction<T> action) {
+        queue(route, priority, action, null, null);
+    }
+
+    /**
+     * Queues the given request at its route's priority and runs the given
+     * callback when it succeeds. Failures are logged.
+     *
+     * @param <T>
+     * @param route
+     * @param action
+     * @param success
+     */
+    public <T> void queue(RestRoute route, RestAction<T> action, Consumer<? super T> success) {
+        queue(route, route.getPriority(), action, success, null);
+    }
+
+    /**
+     * Queues the given request at the given priority and runs the given
+     * callback when it succeeds. Failures are logged.
+     *
+     * @param <T>
+     * @param route
+     * @param priority
+     * @param action
+     * @param success
+     */
+    public <T> void queue(RestRoute route, RestPriority priority, RestAction<T> action, Consumer<? super T> success) {
+        queue(route, priority, action, success, null);
+    }
+
+    /**
+     * Queues the given request at its route's priority and runs one of the
+     * given callbacks when it finishes.
+     *
+     * @param <T>
+     * @param route
+     * @param action
+     * @param success Ran with the result. Can be null.
+     * @param failure Ran with the error. Can be null, then the error is
+     * logged.
+     */
+    public <T> void queue(RestRoute route, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+        queue(route, route.getPriority(), action, success, failure);
+    }
+
+    /**
+     * Queues the given request at the given priority and runs one of the given
+     * callbacks when it finishes. A cosmetic request that is shed fails with a
+     * CancellationException.
+     *
+     * @param <T>
+     * @param route
+     * @param priority
+     * @param action
+     * @param success Ran with the result. Can be null.
+     * @param failure Ran with the error. Can be null, then the error is
+     * logged.
+     */
+    public <T> void queue(RestRoute route, RestPriority priority, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+        queue(route, priority, null, action, success, failure);
+    }
+
+    /**
+     * Queues the given request like queue, and lets it be replaced with
+     * replaceWaiting for as long as it waits.
+     *
+     * @param <T>
+     * @param route
+     * @param priority
+     * @param key Identifies the request, only one request per key can wait
+     * @param action
+     * @param success Ran with the result of whichever request was sent. Can
+     * be null.
+     * @param failure Ran with the error. Can be null, then the error is
+     * logged.
+     */
+    public <T> void queue(RestRoute route, RestPriority priority, Object key, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+        counters.get(route)[0].increment();
+        Request<T> request = new Request<>(route, key, action, success, failure);
+        Request<?> shed = null;
+        synchronized (this) {
+            request.sequence = nextSequence++;
+            if (priority == RestPriority.COSMETIC && waitingCounts.get(priority)[0] >= maximumCosmeticWaiting) {
+                shed = request;
+            } else {
+                waiting.get(priority).get(route).addLast(request);
+                waitingCounts.get(priority)[0]++;
+                if (key != null) {
+                    waitingByKey.put(key, request);
+                }
+            }
+        }
+        if (shed != null) {
+            shed.shed();
+        }
+        drain();
+    }
+
+    /**
+     * Replaces the action of the request with the given key if it hasn't been
+     * handed to JDA yet. The request keeps its place in line and its
+     * callbacks.
+     *
+     * @param key
+     * @param action Gives the new action, or null to keep the waiting one.
+     * Called without the gateway locked, and only if a request is waiting.
+     * @return False if no request with the given key is waiting, or if it was
+     * handed to JDA while the new action was made.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean replaceWaiting(Object key, Supplier<? extends RestAction<?>> action) {
+        Request<Object> request;
+        synchronized (this) {
+            request = (Request<Object>) waitingByKey.get(key);
+            if (request == null) {
+                return false;
+            }
+        }
+
+        // Making the action can take a while (rendering an embed), so other requests aren't held up meanwhile
+        RestAction<Object> replacement = (RestAction<Object>) action.get();
+        synchronized (this) {
+            if (waitingByKey.get(key) != request) {
+                return false;
+            }
+            if (replacement != null) {
+                request.action = replacement;
+                counters.get(request.route)[4].increment();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands waiting requests to JDA while the budgets allow, most important
+     * first and oldest first within a priority. Sheds cosmetic requests that
+     * waited too long.
+     */
+    private void drain() {
+        List<Request<?>> ready = new ArrayList<>();
+        List<Request<?>> shed = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (RestPriority priority : RestPriority.values()) {
+                Map<RestRoute, ArrayDeque<Request<?>>> routes = waiting.get(priority);
+                int[] count = waitingCounts.get(priority);
+                if (priority == RestPriority.COSMETIC) {
+                    for (ArrayDeque<Request<?>> requests : routes.values()) {
+                        while (!requests.isEmpty() && now - requests.peekFirst().queued > maximumCosmeticWaitInMillis * 1000000L) {
+                            shed.add(take(requests, count));
+                        }
+                    }
+                }
+
+                // Oldest first across the routes that have budget left
+                while (count[0] > 0 && inFlight < maximumInFlight) {
+                    ArrayDeque<Request<?>> oldest = null;
+                    for (Map.Entry<RestRoute, ArrayDeque<Request<?>>> entry : routes.entrySet()) {
+                        ArrayDeque<Request<?>> requests = entry.getValue();
+                        if (!requests.isEmpty() && routesInFlight.get(entry.getKey())[0] < routeBudgets.applyAsInt(entry.getKey())
+                                && (oldest == null || requests.peekFirst().sequence < oldest.peekFirst().sequence)) {
+                            oldest = requests;
+                        }
+                    }
+                    if (oldest == null) {
+                        break;
+                    }
+
+                    Request<?> request = take(oldest, count);
+                    routesInFlight.get(request.route)[0]++;
+                    inFlight++;
+                    waitTimes.get(priority).observeNanos(now - request.queued);
+                    ready.add(request);
+                }
+            }
+        }
+        shed.forEach(Request::shed);
+        for (Request<?> request : ready) {
+            try {
+                request.send();
+            } catch (RuntimeException ex) {
+                // Only a failure callback can throw here, the rest still have to be sent
+                Logger.getLogger(RestGateway.class.getName()).log(Level.WARNING, String.format("Failure callback of %s failed", request.route.getName()), ex);
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest request off the given line. Must hold the lock.
+     *
+     * @param requests
+     * @param count The number of waiting requests of the line's priority
+     * @return
+     */
+    private Request<?> take(ArrayDeque<Request<?>> requests, int[] count) {
+        Request<?> request = requests.pollFirst();
+        count[0]--;
+        if (request.key != null) {
+            waitingByKey.remove(request.key, request);
+        }
+        return request;
+    }
+
+    /**
+     * Frees the budget of an answered request and hands over the next ones
+     *
+     * @param route
+     */
+    private void finished(RestRoute route) {
+        synchronized (this) {
+            routesInFlight.get(route)[0]--;
+            inFlight--;
+        }
+        drain();
+    }
+
+    private synchronized int waitingCount(int[] count) {
+        return count[0];
+    }
+
+    private synchronized long inFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * Hands the given request to JDA. Overridden by benchmarks and the
+     * simulator to run the bot without a connection to Discord.
+     *
+     * @param <T>
+     * @param route
+     * @param action
+     * @param success
+     * @param failure
+     */
+    protected <T> void execute(RestRoute route, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+        action.queue(success, failure);
+    }
+
+    /**
+     * A request waiting for a budget
+     *
+     * @param <T>
+     */
+    private class Request<T> {
+
+        private final RestRoute route;
+        private final Object key;
+        private final Consumer<? super T> success;
+        private final Consumer<? super Throwable> failure;
+        private final long queued = System.nanoTime();
+        private RestAction<T> action;
+        private long sequence;
+
+        Request(RestRoute route, Object key, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+            this.route = route;
+            this.key = key;
+            this.action = action;
+            this.success = success;
+            this.failure = failure;
+        }
+
+        /**
+         * Hands the request to JDA. Must not hold the lock. A request JDA
+         * refuses, like one made after its shard was shut down, fails and
+         * gives its budget back; only the failure callback can throw.
+         */
+        private void send() {
+            Metrics.Counter[] routeCounters = counters.get(route);
+            AtomicBoolean answered = new AtomicBoolean();
+            Consumer<Throwable> fail = err -> {
+                if (!answered.compareAndSet(false, true)) {
+                    return;
+                }
+                routeCounters[2].increment();
+                finished(route);
+                if (failure != null) {
+                    failure.accept(err);
+                } else {
+                    Logger.getLogger(RestGateway.class.getName()).log(Level.WARNING, String.format("Request %s failed: %s", route.getName(), err.getMessage()), err);
+                }
+            };
+            try {
+                execute(route, action, result -> {
+                    if (!answered.compareAndSet(false, true)) {
+                        return;
+                    }
+                    routeCounters[1].increment();
+                    finished(route);
+                    if (success != null) {
+                        success.accept(result);
+                    }
+                }, fail);
+            } catch (RuntimeException ex) {
+                if (answered.get()) {
+                    // Answered right away and the callback threw
+                    Logger.getLogger(RestGateway.class.getName()).log(Level.WARNING, String.format("Callback of %s failed", route.getName()), ex);
+                } else {
+                    fail.accept(ex);
+                }
+            }
+        }
+
+        /**
+         * Drops the request without sending it. Must not hold the lock.
+         */
+        private void shed() {
+            counters.get(route)[3].increment();
+            if (failure != null) {
+                failure.accept(new CancellationException(String.format("Request %s was shed after waiting too long", route.getName())));
+            }
+        }
+    }
+}
+
+/**
+ * How urgently a request is sent when the bot is being rate limited
+ *
+ * @author maikotui
+ */
+enum RestPriority {
+    /**
+     * What players are waiting on: role messages and game displays
+     */
+    CRITICAL("critical"),
+    /**
+     * Everything else that has to arrive eventually
+     */
+    NORMAL("normal"),
+    /**
+     * Decoration that can be dropped, like the checkmark on a command
+     */
+    COSMETIC("cosmetic");
+
+    private final String name;
+
+    RestPriority(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gives the name the priority is reported under
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+}
+
+/**
+ * The kinds of requests the bot makes to Discord, with the priority they are
+ * sent at unless told otherwise and the most of them handed to JDA at once
+ *
+ * @author maikotui
+ */
+enum RestRoute {
+    MESSAGE_SEND("message_send", RestPriority.NORMAL, 20),
+    MESSAGE_EDIT("message_edit", RestPriority.CRITICAL, 20),
+    MESSAGE_DELETE("message_delete", RestPriority.NORMAL, 10),
+    MESSAGE_FETCH("message_fetch", RestPriority.NORMAL, 10),
+    REACTION_ADD("reaction_add", RestPriority.NORMAL, 10),
+    REACTION_REMOVE("reaction_remove", RestPriority.COSMETIC, 5),
+    REACTION_CLEAR("reaction_clear", RestPriority.NORMAL, 10),
+    PRIVATE_CHANNEL_OPEN("private_channel_open", RestPriority.CRITICAL, 20),
+    PRIVATE_MESSAGE_SEND("private_message_send", RestPriority.CRITICAL, 20),
+    USER_FETCH("user_fetch", RestPriority.NORMAL, 10);
+
+    private final String name;
+
+    private final RestPriority priority;
+
+    private final int budget;
+
+    RestRoute(String name, RestPriority priority, int budget) {
+        this.name = name;
+        this.priority = priority;
+        this.budget = budget;
+    }
+
+    /**
+     * Gives the name the route is reported under
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gives the priority requests of this route are sent at unless told
+     * otherwise
+     *
+     * @return
+     */
+    public RestPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Gives the most requests of this route handed to JDA at once
+     *
+     * @return
+     */
+    public int getBudget() {
+        return budget;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable set of game roles with a lookup by name or alias. Names and
+ * aliases are case-folded once when the catalog is built, so a lookup is a
+ * single hash map access. A query that isn't a full name or alias still finds
+ * a role if it is the start of names or aliases of only that role.
+ *
+ * @author maikotui
+ */
+public class RoleCatalog {
+
+    /**
+     * The ID of the default crewmate role
+     */
+    public static final int crewRoleId = 1;
+
+    /**
+     * The ID of the default imposter role
+     */
+    public static final int imposterRoleId = 2;
+
+    /**
+     * All roles in the order they were given
+     */
+    private final List<GameRole> roles;
+
+    /**
+     * Role ID -> role
+     */
+    private final Map<Integer, GameRole> rolesById;
+
+    /**
+     * Case-folded name or alias -> role
+     */
+    private final Map<String, GameRole> rolesByKey;
+
+    /**
+     * The same keys in order, for looking up abbreviations
+     */
+    private final NavigableMap<String, GameRole> sortedKeys;
+
+    /**
+     * Role ID -> the mask of every role that can't be held together with it,
+     * built from the unstackable role IDs. The roles themselves are never
+     * changed.
+     */
+    private final long[] incompatibleMasks;
+
+    private final GameRole crewRole;
+    private final GameRole imposterRole;
+
+    /**
+     * Builds a catalog of the given roles and their compatibility masks.
+     *
+     * @param roles
+     * @throws IllegalArgumentException If two roles share an ID, a name or
+     * alias is used by more than one role, the crewmate or imposter role is
+     * missing, a role ID is outside 0-63, or an unstackable role ID does not
+     * belong to any role.
+     */
+    public RoleCatalog(List<GameRole> roles) {
+        this.roles = Collections.unmodifiableList(new ArrayList<>(roles));
+
+        Map<Integer, GameRole> byId = new HashMap<>();
+        Map<String, GameRole> byKey = new HashMap<>();
+        for (GameRole role : this.roles) {
+            if (role.id < 0 || role.id >= Long.SIZE) {
+                throw new IllegalArgumentException(String.format("Role '%s' has ID %d. Role IDs must be between 0 and %d.", role.name, role.id, Long.SIZE - 1));
+            }
+            GameRole sameId = byId.putIfAbsent(role.id, role);
+            if (sameId != null) {
+                throw new IllegalArgumentException(String.format("Roles '%s' and '%s' both have ID %d.", sameId.name, role.name, role.id));
+            }
+
+            addKey(byKey, role.name, role);
+            if (role.aliases != null) {
+                for (String alias : role.aliases) {
+                    addKey(byKey, alias, role);
+                }
+            }
+        }
+
+        this.rolesById = Collections.unmodifiableMap(byId);
+        this.incompatibleMasks = compileIncompatibilities(this.roles, byId);
+        this.rolesByKey = Collections.unmodifiableMap(byKey);
+        this.sortedKeys = Collections.unmodifiableNavigableMap(new TreeMap<>(byKey));
+
+        crewRole = rolesById.get(crewRoleId);
+        imposterRole = rolesById.get(imposterRoleId);
+        if (crewRole == null || imposterRole == null) {
+            throw new IllegalArgumentException(String.format("Roles with IDs %d (crewmate) and %d (imposter) are required.", crewRoleId, imposterRoleId));
+        }
+    }
+
+    /**
+     * Builds the mask of roles each role can't be held together with. Only
+     * the role's own list counts; CompiledRoles.validate makes sure every
+     * role lists the other side too.
+     *
+     * @param roles
+     * @param rolesById
+     * @return Role ID -> incompatible role mask
+     * @throws IllegalArgumentException If an unstackable role ID does not
+     * belong to any role
+     */
+    private static long[] compileIncompatibilities(List<GameRole> roles, Map<Integer, GameRole> rolesById) {
+        long[] masks = new long[Long.SIZE];
+        for (GameRole role : roles) {
+            if (role.unstackableRoleIds == null) {
+                continue;
+            }
+            for (int unstackableRoleId : role.unstackableRoleIds) {
+                GameRole other = rolesById.get(unstackableRoleId);
+                if (other == null) {
+                    throw new IllegalArgumentException(String.format("Role '%s' lists unknown unstackable role ID %d.", role.name, unstackableRoleId));
+                }
+                masks[role.id] |= other.getMask();
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * Adds the given name or alias of the given role to the index
+     *
+     * @param byKey
+     * @param key
+     * @param role
+     */
+    private static void addKey(Map<String, GameRole> byKey, String key, GameRole role) {
+        if (key == null || key.isBlank()) {
+            return;
+        }
+
+        GameRole existing = byKey.putIfAbsent(fold(key), role);
+        if (existing != null && !existing.equals(role)) {
+            throw new IllegalArgumentException(String.format("'%s' is used by both '%s' and '%s'.", key, existing.name, role.name));
+        }
+    }
+
+    /**
+     * Gives the form of the given name that is used as a key
+     *
+     * @param name
+     * @return
+     */
+    private static String fold(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Gets the role with the given name or alias. If there is none, gets the
+     * only role that has a name or alias starting with the query.
+     *
+     * @param query
+     * @return The role if found. Null if no role or more than one role
+     * matches.
+     */
+    public GameRole find(String query) {
+        String key = fold(query);
+        if (key.isEmpty()) {
+            return null;
+        }
+
+        GameRole role = rolesByKey.get(key);
+        if (role != null) {
+            return role;
+        }
+
+        // Every key starting with the query sorts between the query and the query followed by the highest character
+        GameRole match = null;
+        for (GameRole candidate : sortedKeys.subMap(key, true, key + Character.MAX_VALUE, true).values()) {
+            if (match == null) {
+                match = candidate;
+            } else if (!match.equals(candidate)) {
+                return null;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * Gets the role with the given ID
+     *
+     * @param id
+     * @return The role if found. Null otherwise.
+     */
+    public GameRole getById(int id) {
+        return rolesById.get(id);
+    }
+
+    /**
+     * Gives the mask of every role that can't be held together with the given
+     * role
+     *
+     * @param role A role of this catalog
+     * @return
+     */
+    public long getIncompatibleMask(GameRole role) {
+        return incompatibleMasks[role.id];
+    }
+
+    /**
+     * Checks whether the given role can be given to a player who holds the
+     * roles in the given mask.
+     *
+     * @param role A role of this catalog
+     * @param heldRoleMask
+     * @return
+     */
+    public boolean isCompatible(GameRole role, long heldRoleMask) {
+        return (incompatibleMasks[role.id] & heldRoleMask) == 0;
+    }
+
+    /**
+     * Gives every role in the catalog
+     *
+     * @return
+     */
+    public List<GameRole> getRoles() {
+        return roles;
+    }
+
+    /**
+     * Gives the default crewmate role
+     *
+     * @return
+     */
+    public GameRole getCrewRole() {
+        return crewRole;
+    }
+
+    /**
+     * Gives the default imposter role
+     *
+     * @return
+     */
+    public GameRole getImposterRole() {
+        return imposterRole;
+    }
+
+    /**
+     * Used for debugging
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return roles.toString();
+    }
+}
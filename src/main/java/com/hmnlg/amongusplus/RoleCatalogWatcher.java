@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the role catalog in sync with a roles.yml file outside of the jar.
+ * The file is watched on its own thread; when it changes it is parsed and
+ * validated there and, if valid, swapped in as the new catalog. An invalid
+ * file is logged and the previous catalog stays in use.
+ * <p>
+ * A catalog and its roles are never changed once built (the catalog keeps
+ * what it derives from the roles, such as incompatibilities, to itself), so
+ * games hold on to the catalog they were created with no matter how many
+ * times the file is reloaded.
+ *
+ * @author maikotui
+ */
+public class RoleCatalogWatcher implements Supplier<RoleCatalog> {
+
+    /**
+     * How long to wait for an editor to finish writing before reloading
+     */
+    private static final long settleTimeInMillis = 250;
+
+    private final Path file;
+    private final AtomicReference<RoleCatalog> current;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Loads the given roles file and starts watching it for changes.
+     *
+     * @param file
+     * @return
+     * @throws IOException If the file can't be read or watched
+     * @throws IllegalArgumentException If the file is not a valid roles file
+     */
+    public static RoleCatalogWatcher start(Path file) throws IOException {
+        RoleCatalogWatcher watcher = new RoleCatalogWatcher(file.toAbsolutePath(), load(file));
+        watcher.thread.start();
+        return watcher;
+    }
+
+    /**
+     * Creates a watcher for the given file that starts with the given catalog
+     *
+     * @param file
+     * @param initial
+     * @throws IOException
+     */
+    private RoleCatalogWatcher(Path file, RoleCatalog initial) throws IOException {
+        this.file = file;
+        this.current = new AtomicReference<>(initial);
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        // Watch the directory so editors that replace the file are noticed too
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this::watch, "RoleCatalogWatcher");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Gives the latest valid catalog
+     *
+     * @return
+     */
+    @Override
+    public RoleCatalog get() {
+        return current.get();
+    }
+
+    /**
+     * Reads and validates the file now and swaps it in if valid.
+     *
+     * @return True if the new catalog is in use. False if it was not valid.
+     */
+    public boolean reload() {
+        try {
+            RoleCatalog catalog = load(file);
+            current.set(catalog);
+            Logger.getLogger(RoleCatalogWatcher.class.getName()).log(Level.INFO, String.format("Reloaded %d roles from %s", catalog.getRoles().size(), file));
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            Logger.getLogger(RoleCatalogWatcher.class.getName()).log(Level.WARNING, String.format("Kept the current roles, %s is not valid: %s", file, ex.getMessage()), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Stops watching the file
+     */
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            Logger.getLogger(RoleCatalogWatcher.class.getName()).log(Level.WARNING, ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads and validates the given roles file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static RoleCatalog load(Path file) throws IOException {
+        List<GameRole> roles = CompiledRoles.loadYaml(file);
+        CompiledRoles.validate(roles);
+        return new RoleCatalog(roles);
+    }
+
+    /**
+     * Waits for changes to the file until stopped
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = drain(key);
+
+                // Editors often write a file in several steps, so wait for them to settle
+                WatchKey next;
+                while ((next = watchService.poll(settleTimeInMillis, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(next);
+                }
+
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Checks the events of the given key for the watched file and re-arms it
+     *
+     * @param key
+     * @return True if the watched file changed.
+     */
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path && file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Hands out non-default roles so that every role goes to a different player
+ * who can hold it. This is solved as a bipartite matching between roles and
+ * players (Kuhn's augmenting path algorithm), so an assignment is always found
+ * when one exists. Roles and candidate players are shuffled first, which picks
+ * a random assignment out of the valid ones.
+ *
+ * @author maikotui
+ */
+public class RoleDistributor {
+
+    /**
+     * Intentionally empty
+     */
+    private RoleDistributor() {
+
+    }
+
+    /**
+     * Finds a player for every given role.
+     *
+     * @param roles The roles to hand out
+     * @param heldRoleMasks The mask of the roles every player already holds
+     * @param catalog The catalog the roles are from, which knows which roles
+     * can be held together
+     * @param rand
+     * @return The index of the player chosen for each role, in the same order
+     * as the given roles.
+     * @throws GeneralGameException If there is no way to give every role to a
+     * different player who can hold it.
+     */
+    public static int[] distribute(List<GameRole> roles, long[] heldRoleMasks, RoleCatalog catalog, Random rand) throws GeneralGameException {
+        int roleCount = roles.size();
+        int playerCount = heldRoleMasks.length;
+        if (roleCount > playerCount) {
+            throw new GeneralGameException(String.format("There are %d extra roles but only %d players. Each player can only be given one extra role.", roleCount, playerCount));
+        }
+
+        // Every player who can hold each role, in a random order
+        int[][] candidates = new int[roleCount][];
+        for (int role = 0; role < roleCount; role++) {
+            GameRole gameRole = roles.get(role);
+            int[] compatible = new int[playerCount];
+            int count = 0;
+            for (int player = 0; player < playerCount; player++) {
+                if (catalog.isCompatible(gameRole, heldRoleMasks[player])) {
+                    compatible[count++] = player;
+                }
+            }
+            if (count == 0) {
+                throw new GeneralGameException(String.format("No player can be given the role '%s' with the role they chose.", gameRole.name));
+            }
+            shuffle(compatible, count, rand);
+            candidates[role] = Arrays.copyOf(compatible, count);
+        }
+
+        int[] roleOrder = new int[roleCount];
+        for (int role = 0; role < roleCount; role++) {
+            roleOrder[role] = role;
+        }
+        shuffle(roleOrder, roleCount, rand);
+
+        // Match roles one at a time, moving earlier picks along augmenting paths when needed
+        int[] playerMatch = new int[playerCount];
+        Arrays.fill(playerMatch, -1);
+        boolean[] visited = new boolean[playerCount];
+        for (int role : roleOrder) {
+            Arrays.fill(visited, false);
+            if (!augment(role, candidates, playerMatch, visited)) {
+                throw new GeneralGameException(blockedReason(role, roles, playerMatch, visited));
+            }
+        }
+
+        int[] roleMatch = new int[roleCount];
+        for (int player = 0; player < playerCount; player++) {
+            if (playerMatch[player] >= 0) {
+                roleMatch[playerMatch[player]] = player;
+            }
+        }
+        return roleMatch;
+    }
+
+    /**
+     * Tries to find a player for the given role, reassigning other roles to
+     * free one up if needed.
+     *
+     * @param role
+     * @param candidates
+     * @param playerMatch
+     * @param visited
+     * @return True if the role was matched.
+     */
+    private static boolean augment(int role, int[][] candidates, int[] playerMatch, boolean[] visited) {
+        for (int player : candidates[role]) {
+            if (visited[player]) {
+                continue;
+            }
+            visited[player] = true;
+            if (playerMatch[player] < 0 || augment(playerMatch[player], candidates, playerMatch, visited)) {
+                playerMatch[player] = role;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Explains why the given role could not be matched. Every player reached
+     * while searching is already needed by another role, so those roles and
+     * the blocked one have fewer players between them than there are roles.
+     *
+     * @param role
+     * @param roles
+     * @param playerMatch
+     * @param visited
+     * @return
+     */
+    private static String blockedReason(int role, List<GameRole> roles, int[] playerMatch, boolean[] visited) {
+        List<GameRole> blocked = new ArrayList<>();
+        blocked.add(roles.get(role));
+        int players = 0;
+        for (int player = 0; player < visited.length; player++) {
+            if (visited[player]) {
+                players++;
+                blocked.add(roles.get(playerMatch[player]));
+            }
+        }
+        String names = blocked.stream().map(blockedRole -> "'" + blockedRole.name + "'").collect(Collectors.joining(", "));
+        return String.format("Could not hand out every role. The roles %s can only be given to %d player(s) between them.", names, players);
+    }
+
+    /**
+     * Shuffles the first count values of the given array
+     *
+     * @param values
+     * @param count
+     * @param rand
+     */
+    private static void shuffle(int[] values, int count, Random rand) {
+        for (int i = count - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int temp = values[i];
+            values[i] = values[j];
+            values[j] = temp;
+        }
+    }
+}
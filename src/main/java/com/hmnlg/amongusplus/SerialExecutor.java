@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A mailbox that runs its tasks one at a time, in the order they were
+ * submitted, on a shared backing executor. Tasks of different mailboxes run in
+ * parallel while tasks of the same mailbox never overlap.
+ *
+ * @author maikotui
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * The most tasks run in one go before the backing thread is handed back, so
+     * one busy mailbox can't starve the others
+     */
+    private static final int maximumBatchSize = 32;
+
+    /**
+     * Tasks waiting to be run
+     */
+    private final Queue<Runnable> tasks;
+
+    /**
+     * Whether a drain of this mailbox is scheduled or running on the backing
+     * executor
+     */
+    private final AtomicBoolean scheduled;
+
+    /**
+     * The executor that the tasks are actually run on
+     */
+    private final Executor backingExecutor;
+
+    /**
+     * Creates an empty mailbox that runs on the given executor.
+     *
+     * @param backingExecutor
+     */
+    public SerialExecutor(Executor backingExecutor) {
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean(false);
+        this.backingExecutor = backingExecutor;
+    }
+
+    /**
+     * Adds the given task to the end of the mailbox.
+     *
+     * @param task
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        scheduleDrain();
+    }
+
+    /**
+     * Schedules a drain of the mailbox unless one is already scheduled.
+     */
+    private void scheduleDrain() {
+        if (scheduled.compareAndSet(false, true)) {
+            backingExecutor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Runs queued tasks. A task that is added after the queue was seen empty
+     * but before the scheduled flag was cleared triggers a new drain.
+     */
+    private void drain() {
+        try {
+            Runnable task;
+            for (int ran = 0; ran < maximumBatchSize && (task = tasks.poll()) != null; ran++) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(SerialExecutor.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            if (!tasks.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Checks whether there are no tasks waiting or running in this mailbox.
+     *
+     * @return
+     */
+    public boolean isIdle() {
+        return !scheduled.get() && tasks.isEmpty();
+    }
+}
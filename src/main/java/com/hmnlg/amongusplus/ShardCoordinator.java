@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which shards this process runs when several bot processes share a
+ * token. Shards are claimed through a CoordinationStore, up to a maximum per
+ * process, and their leases are renewed on a heartbeat. Shards whose owner
+ * stopped renewing are picked up by any process with room for them.
+ * <p>
+ * A process that loses a lease halts at once: another process may already be
+ * handling the shard's events and writing its journal, and two owners would
+ * corrupt both. Shutting down normally hands every shard over instead (see
+ * stop).
+ * <p>
+ * Private messages other processes forward to the owned shards are picked up
+ * from the store twice a second.
+ *
+ * @author maikotui
+ */
+public class ShardCoordinator {
+
+    /**
+     * How long a lease lasts without being renewed
+     */
+    private final long leaseInMillis = 30000;
+
+    /**
+     * How often leases are renewed and free shards are looked for
+     */
+    private final long heartbeatIntervalInMillis = 10000;
+
+    /**
+     * How often forwarded private messages are picked up
+     */
+    private final long inboxPollIntervalInMillis = 500;
+
+    private final CoordinationStore store;
+
+    /**
+     * Identifies this process in the store
+     */
+    private final String processId;
+
+    private final int shardsTotal;
+
+    /**
+     * The most shards this process runs
+     */
+    private final int maximumShards;
+
+    private final Clock clock;
+
+    /**
+     * The shards this process holds the lease of
+     */
+    private final Set<Integer> ownedShards;
+
+    /**
+     * When the leases of the owned shards run out unless renewed
+     */
+    private volatile long leasesValidUntil;
+
+    private final ScheduledExecutorService heartbeats;
+
+    /**
+     * Creates a coordinator that has no shards yet.
+     *
+     * @param store
+     * @param processId Identifies this process, without whitespace
+     * @param shardsTotal The number of shards of the bot
+     * @param maximumShards The most shards this process runs
+     * @param clock
+     */
+    public ShardCoordinator(CoordinationStore store, String processId, int shardsTotal, int maximumShards, Clock clock) {
+        if (maximumShards < 1) {
+            throw new IllegalArgumentException("A process must be able to run at least one shard.");
+        }
+        this.store = store;
+        this.processId = processId;
+        this.shardsTotal = shardsTotal;
+        this.maximumShards = maximumShards;
+        this.clock = clock;
+        this.ownedShards = new ConcurrentSkipListSet<>();
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ShardCoordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gives an ID for this process that is unique on the machine and readable
+     * in the store
+     *
+     * @return
+     */
+    public static String defaultProcessId() {
+        return ManagementFactory.getRuntimeMXBean().getName().replaceAll("\\s", "_");
+    }
+
+    /**
+     * Claims as many free shards as this process may run, waiting until at
+     * least one is free.
+     *
+     * @return The shards claimed
+     * @throws IOException If the store can't be reached
+     */
+    public Set<Integer> awaitShards() throws IOException {
+        List<Integer> claimed = claimShards();
+        while (claimed.isEmpty()) {
+            Logger.getLogger(ShardCoordinator.class.getName()).log(Level.INFO, "Every shard is taken, waiting for one to be free");
+            try {
+                Thread.sleep(heartbeatIntervalInMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a shard.");
+            }
+            claimed = claimShards();
+        }
+        return new TreeSet<>(claimed);
+    }
+
+    /**
+     * Starts renewing the leases of the owned shards. Free shards claimed
+     * later are given to the given callback, which should start them.
+     * Private messages forwarded to the owned shards are given to the other
+     * callback.
+     *
+     * @param onClaimed
+     * @param onForwarded
+     */
+    public void start(IntConsumer onClaimed, Consumer<CoordinationStore.ForwardedMessage> onForwarded) {
+        heartbeats.scheduleWithFixedDelay(() -> heartbeat(onClaimed), heartbeatIntervalInMillis, heartbeatIntervalInMillis, TimeUnit.MILLISECONDS);
+        heartbeats.scheduleWithFixedDelay(() -> pollInbox(onForwarded), inboxPollIntervalInMillis, inboxPollIntervalInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the heartbeat, then hands over every owned shard: the given
+     * callback stops the shard and saves its games, then its lease is
+     * released so another process can take it right away.
+     *
+     * @param handOver Called with each owned shard
+     */
+    public void stop(IntConsumer handOver) {
+        heartbeats.shutdownNow();
+        try {
+            heartbeats.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (int shardId : ownedShards) {
+            try {
+                handOver.accept(shardId);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ShardCoordinator.class.getName()).log(Level.SEVERE, String.format("Could not hand over shard %d", shardId), ex);
+            }
+            try {
+                store.release(shardId, processId);
+            } catch (IOException ex) {
+                Logger.getLogger(ShardCoordinator.class.getName()).log(Level.WARNING, String.format("Could not release shard %d, it is free once its lease expires", shardId), ex);
+            }
+            ownedShards.remove(shardId);
+        }
+    }
+
+    /**
+     * Gives the shards this process holds the lease of
+     *
+     * @return
+     */
+    public Set<Integer> getOwnedShards() {
+        return Set.copyOf(ownedShards);
+    }
+
+    /**
+     * Renews every owned lease, then claims free shards if there is room.
+     * Halts the process if a lease was lost or can't be renewed in time.
+     *
+     * @param onClaimed
+     */
+    private void heartbeat(IntConsumer onClaimed) {
+        try {
+            long renewedAt = clock.millis();
+            for (int shardId : ownedShards) {
+                if (!store.renew(shardId, processId, leaseInMillis)) {
+                    failFast(String.format("Lost the lease of shard %d to another process", shardId), null);
+                }
+            }
+            leasesValidUntil = renewedAt + leaseInMillis;
+
+            for (int shardId : claimShards()) {
+                try {
+                    onClaimed.accept(shardId);
+                } catch (RuntimeException ex) {
+                    Logger.getLogger(ShardCoordinator.class.getName()).log(Level.SEVERE, String.format("Could not start shard %d, releasing it", shardId), ex);
+                    ownedShards.remove(shardId);
+                    store.release(shardId, processId);
+                }
+            }
+        } catch (IOException ex) {
+            if (clock.millis() + heartbeatIntervalInMillis >= leasesValidUntil) {
+                failFast("Could not renew the leases before they expire", ex);
+            }
+            Logger.getLogger(ShardCoordinator.class.getName()).log(Level.WARNING, "Could not reach the coordination store, retrying", ex);
+        }
+    }
+
+    /**
+     * Takes the private messages forwarded to every owned shard
+     *
+     * @param onForwarded
+     */
+    private void pollInbox(Consumer<CoordinationStore.ForwardedMessage> onForwarded) {
+        for (int shardId : ownedShards) {
+            try {
+                for (CoordinationStore.ForwardedMessage message : store.takeForwarded(shardId)) {
+                    onForwarded.accept(message);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(ShardCoordinator.class.getName()).log(Level.WARNING, String.format("Could not pick up the private messages of shard %d, retrying", shardId), ex);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ShardCoordinator.class.getName()).log(Level.SEVERE, String.format("Could not deliver a private message to shard %d", shardId), ex);
+            }
+        }
+    }
+
+    /**
+     * Claims free shards in order until this process runs its maximum
+     *
+     * @return The shards claimed
+     * @throws IOException
+     */
+    private List<Integer> claimShards() throws IOException {
+        List<Integer> claimed = new ArrayList<>();
+        long claimedAt = clock.millis();
+        for (int shardId = 0; shardId < shardsTotal && ownedShards.size() < maximumShards; shardId++) {
+            if (!ownedShards.contains(shardId) && store.acquire(shardId, processId, leaseInMillis)) {
+                ownedShards.add(shardId);
+                claimed.add(shardId);
+            }
+        }
+        if (!claimed.isEmpty() && claimed.size() == ownedShards.size()) {
+            leasesValidUntil = claimedAt + leaseInMillis;
+        }
+        return claimed;
+    }
+
+    /**
+     * Halts the process without running the shutdown hooks, which would hand
+     * over shards that may already be someone else's.
+     *
+     * @param reason
+     * @param cause
+     */
+    private void failFast(String reason, Throwable cause) {
+        Logger.getLogger(ShardCoordinator.class.getName()).log(Level.SEVERE, reason + ", halting", cause);
+        Runtime.getRuntime().halt(1);
+    }
+}
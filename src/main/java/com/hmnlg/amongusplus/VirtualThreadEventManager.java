@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.events.Event;
+import net.dv8tion.jda.core.events.guild.GenericGuildEvent;
+import net.dv8tion.jda.core.events.message.GenericMessageEvent;
+import net.dv8tion.jda.core.events.message.priv.GenericPrivateMessageEvent;
+import net.dv8tion.jda.core.events.user.GenericUserEvent;
+import net.dv8tion.jda.core.hooks.InterfacedEventManager;
+
+/**
+ * An event manager that hands every event to the listeners on a virtual
+ * thread instead of JDA's event thread, so one slow handler only holds up the
+ * guild it belongs to.
+ * <p>
+ * Events are ordered by guild, or by private channel or user for events
+ * outside of guilds. Each ordering key maps to one of a fixed number of
+ * mailboxes (see SerialExecutor), so events of the same guild, and therefore
+ * of the same game, are handled one at a time in the order JDA received them.
+ * Unrelated guilds that share a mailbox are ordered too, which is harmless.
+ * At most the given number of handlers run at once; the rest wait in their
+ * mailboxes.
+ *
+ * @author maikotui
+ */
+public class VirtualThreadEventManager extends InterfacedEventManager {
+
+    /**
+     * The number of mailboxes the ordering keys are spread over
+     */
+    private static final int mailboxCount = 4096;
+
+    /**
+     * The most handlers running at once
+     */
+    private final int maximumConcurrentEvents;
+
+    /**
+     * One permit for each handler that may run
+     */
+    private final Semaphore permits;
+
+    private final SerialExecutor[] mailboxes;
+
+    /**
+     * Whether the current thread is running one of this manager's handlers
+     */
+    private final ThreadLocal<Boolean> handling = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * The number of events waiting in a mailbox
+     */
+    private final LongAdder queuedEvents = new LongAdder();
+
+    /**
+     * The time from JDA handing over an event until its handler starts
+     */
+    private final Metrics.Histogram queueTime;
+
+    /**
+     * Creates an event manager that runs at most the given number of handlers
+     * at once.
+     *
+     * @param maximumConcurrentEvents At least 1
+     * @param metrics The metrics to record in
+     */
+    public VirtualThreadEventManager(int maximumConcurrentEvents, Metrics metrics) {
+        this(maximumConcurrentEvents, metrics, 0);
+    }
+
+    /**
+     * Creates an event manager for the given shard that runs at most the given
+     * number of handlers at once.
+     *
+     * @param maximumConcurrentEvents At least 1
+     * @param metrics The metrics to record in
+     * @param shardId The shard whose events are handled, used as a label
+     */
+    public VirtualThreadEventManager(int maximumConcurrentEvents, Metrics metrics, int shardId) {
+        super();
+        if (maximumConcurrentEvents < 1) {
+            throw new IllegalArgumentException("At least one event must be able to run.");
+        }
+        this.maximumConcurrentEvents = maximumConcurrentEvents;
+        this.permits = new Semaphore(maximumConcurrentEvents, true);
+
+        // Every drain of a mailbox gets a new virtual thread
+        Executor virtualThreads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("GameEvent", 0).factory());
+        mailboxes = new SerialExecutor[mailboxCount];
+        for (int i = 0; i < mailboxCount; i++) {
+            mailboxes[i] = new SerialExecutor(virtualThreads);
+        }
+
+        String shard = Integer.toString(shardId);
+        queueTime = metrics.histogram("amongus_event_queue_seconds", "Time from an event being received until its handler starts", "shard", shard);
+        metrics.gauge("amongus_events_queued", "Events waiting for an earlier event of their guild or for a free handler", queuedEvents::sum, "shard", shard);
+        metrics.gauge("amongus_events_running", "Event handlers currently running", () -> maximumConcurrentEvents - permits.availablePermits(), "shard", shard);
+    }
+
+    /**
+     * Queues the given event in the mailbox of its guild, private channel or
+     * user. Returns right away.
+     *
+     * @param event
+     */
+    @Override
+    public void handle(Event event) {
+        long received = System.nanoTime();
+        queuedEvents.increment();
+        mailboxes[mailboxOf(orderingKey(event))].execute(() -> {
+            permits.acquireUninterruptibly();
+            queuedEvents.decrement();
+            queueTime.observeNanos(System.nanoTime() - received);
+            handling.set(true);
+            try {
+                super.handle(event);
+            } finally {
+                handling.set(false);
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Runs the given task once no other event handler is running. No other
+     * handler starts until it is done.
+     *
+     * @param <T>
+     * @param task
+     * @return What the task gave
+     */
+    public <T> T runExclusively(Supplier<T> task) {
+        // A handler gives up its own permit first, so two handlers asking at once each wait for all of them in turn
+        boolean handler = handling.get();
+        if (handler) {
+            permits.release();
+        }
+        permits.acquireUninterruptibly(maximumConcurrentEvents);
+        try {
+            return task.get();
+        } finally {
+            permits.release(maximumConcurrentEvents);
+            if (handler) {
+                permits.acquireUninterruptibly();
+            }
+        }
+    }
+
+    /**
+     * Gives the key that the given event is ordered by: its guild, otherwise
+     * its private channel, otherwise its user. Every other event shares the
+     * key 0.
+     *
+     * @param event
+     * @return
+     */
+    private static long orderingKey(Event event) {
+        if (event instanceof GenericGuildEvent) {
+            return ((GenericGuildEvent) event).getGuild().getIdLong();
+        } else if (event instanceof GenericMessageEvent) {
+            GenericMessageEvent messageEvent = (GenericMessageEvent) event;
+            Guild guild = messageEvent.getGuild();
+            return guild != null ? guild.getIdLong() : messageEvent.getChannel().getIdLong();
+        } else if (event instanceof GenericPrivateMessageEvent) {
+            return ((GenericPrivateMessageEvent) event).getChannel().getIdLong();
+        } else if (event instanceof GenericUserEvent) {
+            return ((GenericUserEvent) event).getUser().getIdLong();
+        }
+        return 0;
+    }
+
+    /**
+     * Spreads the given key over the mailboxes. Snowflake IDs are mixed first
+     * since their low bits are a per-process counter.
+     *
+     * @param key
+     * @return
+     */
+    private static int mailboxOf(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) & (mailboxCount - 1);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for CountingBloomFilter. The small filters here put many IDs on the
+ * same counters on purpose.
+ *
+ * @author maikotui
+ */
+public class CountingBloomFilterTest {
+
+    @Test
+    public void neverMissesAnAddedId() {
+        CountingBloomFilter filter = new CountingBloomFilter(1 << 10, 3);
+        for (long id = 0; id < 500; id++) {
+            filter.add(id * 7919);
+        }
+        for (long id = 0; id < 500; id++) {
+            assertTrue(filter.mightContain(id * 7919));
+        }
+    }
+
+    @Test
+    public void removedIdsAreGone() {
+        CountingBloomFilter filter = new CountingBloomFilter(1 << 16, 3);
+        filter.add(42);
+        filter.add(42);
+        filter.add(43);
+
+        // Added twice, so it has to be removed twice
+        filter.remove(42);
+        assertTrue(filter.mightContain(42));
+        filter.remove(42);
+        assertFalse(filter.mightContain(42));
+        assertTrue(filter.mightContain(43));
+    }
+
+    @Test
+    public void sharedCountersKeepOtherIds() {
+        // With one counter per ID and 8 counters, some of these IDs share one
+        CountingBloomFilter filter = new CountingBloomFilter(8, 1);
+        for (long id = 0; id < 12; id++) {
+            filter.add(id);
+        }
+        for (long id = 0; id < 12; id += 2) {
+            filter.remove(id);
+        }
+        for (long id = 1; id < 12; id += 2) {
+            assertTrue(filter.mightContain(id));
+        }
+    }
+
+    @Test
+    public void saturatedCountersStaySet() {
+        CountingBloomFilter filter = new CountingBloomFilter(8, 1);
+        for (int i = 0; i < 20; i++) {
+            filter.add(7);
+        }
+        for (int i = 0; i < 20; i++) {
+            filter.remove(7);
+        }
+
+        // The counter stopped counting at 15, so it can't tell the ID is gone
+        assertTrue(filter.mightContain(7));
+    }
+
+    @Test
+    public void countersBelowSaturationCountBackDown() {
+        CountingBloomFilter filter = new CountingBloomFilter(8, 1);
+        for (int i = 0; i < 14; i++) {
+            filter.add(7);
+        }
+        for (int i = 0; i < 14; i++) {
+            filter.remove(7);
+        }
+
+        assertFalse(filter.mightContain(7));
+    }
+
+    @Test
+    public void rejectsCounterCountsThatAreNotPowersOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new CountingBloomFilter(100, 3));
+        assertThrows(IllegalArgumentException.class, () -> new CountingBloomFilter(4, 3));
+    }
+}
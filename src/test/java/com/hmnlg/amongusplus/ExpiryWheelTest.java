@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for ExpiryWheel. The wheel reads time from a clock that only moves
+ * when a test moves it.
+ *
+ * @author maikotui
+ */
+public class ExpiryWheelTest {
+
+    private static final int slotCount = 8;
+    private static final long tickMillis = 100;
+    private static final long timeoutMillis = 500;
+
+    private ManualClock clock;
+    private List<String> expired;
+    private ExpiryWheel<String> wheel;
+
+    @BeforeEach
+    public void setUp() {
+        clock = new ManualClock(1_000_000);
+        expired = new ArrayList<>();
+        wheel = new ExpiryWheel<>(slotCount, tickMillis, timeoutMillis, clock, expired::add);
+    }
+
+    @Test
+    public void expiresOnlyOnceTheTimeoutPassed() {
+        wheel.schedule("game");
+
+        clock.advance(timeoutMillis - 1);
+        assertEquals(0, wheel.advance());
+        assertEquals(List.of(), expired);
+        assertEquals(1, wheel.size());
+
+        clock.advance(tickMillis);
+        assertEquals(1, wheel.advance());
+        assertEquals(List.of("game"), expired);
+        assertEquals(0, wheel.size());
+
+        // Nothing is left behind to expire again
+        clock.advance(slotCount * tickMillis);
+        assertEquals(0, wheel.advance());
+        assertEquals(List.of("game"), expired);
+    }
+
+    @Test
+    public void rearmingMovesTheDeadline() {
+        wheel.schedule("game");
+        clock.advance(timeoutMillis - tickMillis);
+        wheel.advance();
+        wheel.schedule("game");
+
+        // The first deadline passes, but its entry is stale and must be skipped
+        clock.advance(2 * tickMillis);
+        assertEquals(0, wheel.advance());
+        assertEquals(List.of(), expired);
+
+        clock.advance(timeoutMillis - 2 * tickMillis);
+        assertEquals(1, wheel.advance());
+        assertEquals(List.of("game"), expired);
+    }
+
+    @Test
+    public void manyRearmsExpireOnce() {
+        for (int i = 0; i < 20; i++) {
+            wheel.schedule("game");
+            clock.advance(tickMillis / 2);
+            assertEquals(0, wheel.advance());
+        }
+
+        clock.advance(timeoutMillis);
+        assertEquals(1, wheel.advance());
+        assertEquals(List.of("game"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelledItemsNeverExpire() {
+        wheel.schedule("cancelled");
+        wheel.schedule("kept");
+        wheel.cancel("cancelled");
+        assertEquals(1, wheel.size());
+
+        clock.advance(timeoutMillis);
+        assertEquals(1, wheel.advance());
+        assertEquals(List.of("kept"), expired);
+
+        clock.advance(slotCount * tickMillis);
+        assertEquals(0, wheel.advance());
+        assertEquals(List.of("kept"), expired);
+    }
+
+    @Test
+    public void rearmingAfterCancelSchedulesAgain() {
+        wheel.schedule("game");
+        wheel.cancel("game");
+        clock.advance(tickMillis);
+        wheel.schedule("game");
+
+        clock.advance(timeoutMillis - tickMillis);
+        assertEquals(0, wheel.advance());
+
+        clock.advance(tickMillis);
+        assertEquals(1, wheel.advance());
+        assertEquals(List.of("game"), expired);
+    }
+
+    @Test
+    public void timeoutLongerThanOneRevolution() {
+        long longTimeout = 5 * slotCount * tickMillis / 2;
+        ExpiryWheel<String> longWheel = new ExpiryWheel<>(slotCount, tickMillis, longTimeout, clock, expired::add);
+        longWheel.schedule("game");
+
+        // The slot comes due twice before the deadline; the entry must survive both visits
+        for (long waited = tickMillis; waited < longTimeout; waited += tickMillis) {
+            clock.advance(tickMillis);
+            assertEquals(0, longWheel.advance(), "expired early after " + waited + " ms");
+        }
+
+        clock.advance(tickMillis);
+        assertEquals(1, longWheel.advance());
+        assertEquals(List.of("game"), expired);
+    }
+
+    @Test
+    public void longPauseExpiresEverythingOnce() {
+        wheel.schedule("first");
+        clock.advance(tickMillis);
+        wheel.schedule("second");
+
+        // Far more than one revolution without advancing
+        clock.advance(10 * slotCount * tickMillis);
+        assertEquals(2, wheel.advance());
+        assertEquals(List.of("first", "second"), expired);
+
+        clock.advance(tickMillis);
+        assertEquals(0, wheel.advance());
+    }
+
+    @Test
+    public void handedOverWheelExpiresToTheNewOwner() {
+        List<String> newOwner = new ArrayList<>();
+        wheel.schedule("game");
+        wheel.setOnExpire(newOwner::add);
+
+        clock.advance(timeoutMillis);
+        assertEquals(1, wheel.advance());
+        assertEquals(List.of(), expired);
+        assertEquals(List.of("game"), newOwner);
+    }
+
+    /**
+     * A clock that only moves when told to
+     */
+    private static class ManualClock extends Clock {
+
+        private long millis;
+
+        ManualClock(long millis) {
+            this.millis = millis;
+        }
+
+        void advance(long byMillis) {
+            millis += byMillis;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round-trip tests for GameJournal: whatever is written must come back the
+ * same when the journal is opened again, through compaction and crashes.
+ *
+ * @author maikotui
+ */
+public class GameJournalTest {
+
+    private static final int headerSize = 8;
+    private static final int recordSize = 25;
+
+    private static final long guild = 100;
+    private static final long alice = 1;
+    private static final long bob = 2;
+    private static final long carol = 3;
+    private static final long dave = 4;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void replaysEveryChange() throws IOException {
+        Path file = directory.resolve("games.journal");
+        List<long[]> records = activeGames();
+
+        write(GameJournal.open(file), records);
+
+        assertRecovered(expectedImages(records), GameJournal.open(file));
+    }
+
+    @Test
+    public void replaysAfterCompaction() throws IOException {
+        Path file = directory.resolve("games.journal");
+        List<long[]> records = activeGames();
+        write(GameJournal.open(file), records);
+
+        // Opening compacts, so the second open replays a snapshot
+        GameJournal compacted = GameJournal.open(file);
+        compacted.close();
+        assertEquals(snapshotSize(expectedImages(records)), countRecords(file));
+
+        assertRecovered(expectedImages(records), GameJournal.open(file));
+    }
+
+    @Test
+    public void recordCutOffMidWriteEndsTheJournal() throws IOException {
+        Path file = directory.resolve("games.journal");
+        List<long[]> records = activeGames();
+        write(GameJournal.open(file), records);
+        int end = headerSize + countRecords(file) * recordSize;
+
+        try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            // Everything but the type byte of a record that would remove a player
+            ByteBuffer partial = ByteBuffer.allocate(recordSize - 1);
+            partial.putLong(alice).putLong(bob).putLong(0).flip();
+            channel.write(partial, end + 1);
+
+            // A complete record after it must not be read either
+            ByteBuffer complete = ByteBuffer.allocate(recordSize);
+            complete.put(GameJournal.removed).putLong(alice).putLong(0).putLong(0).flip();
+            channel.write(complete, end + recordSize);
+        }
+
+        assertRecovered(expectedImages(records), GameJournal.open(file));
+    }
+
+    @Test
+    public void compactsWhenTheFileIsFull() throws IOException {
+        Path file = directory.resolve("games.journal");
+        List<long[]> records = churn(2000);
+
+        // Room for about forty records, and never compacted by count
+        write(GameJournal.open(file, 1024, Integer.MAX_VALUE), records);
+
+        assertTrue(countRecords(file) < records.size(), "the journal was never compacted");
+        assertRecovered(expectedImages(records), GameJournal.open(file));
+    }
+
+    @Test
+    public void compactsAfterEnoughRecords() throws IOException {
+        Path file = directory.resolve("games.journal");
+        List<long[]> records = churn(2000);
+
+        write(GameJournal.open(file, 1 << 20, 100), records);
+
+        assertTrue(countRecords(file) < records.size(), "the journal was never compacted");
+        assertRecovered(expectedImages(records), GameJournal.open(file));
+    }
+
+    @Test
+    public void toRecordsAndCopyReproduceTheImage() {
+        for (GameImage image : expectedImages(activeGames()).values()) {
+            assertSameImage(image, image.copy());
+
+            GameImage rebuilt = new GameImage(image.ownerId, image.guildId);
+            image.toRecords().stream().skip(1).forEach(record -> rebuilt.apply((byte) record[0], record[1], record[2]));
+            assertSameImage(image, rebuilt);
+        }
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        GameImage image = expectedImages(activeGames()).get(alice);
+        GameImage copy = image.copy();
+
+        copy.apply(GameJournal.playerRemoved, bob, 0);
+        copy.apply(GameJournal.roleAssigned, carol, 7);
+        copy.apply(GameJournal.abilityUsed, GameJournal.detect, 0);
+
+        assertTrue(image.players.contains(bob));
+        assertEquals(List.of(5), image.heldRoles.get(carol));
+        assertFalse(image.abilitiesUsed[GameJournal.detect]);
+    }
+
+    // -- Helpers --
+    /**
+     * Two games that went through every kind of change, and a third that
+     * was removed
+     *
+     * @return Records as {type, owner, a, b}
+     */
+    private static List<long[]> activeGames() {
+        List<long[]> records = new ArrayList<>();
+        records.add(new long[]{GameJournal.create, alice, guild, 0});
+        records.add(new long[]{GameJournal.display, alice, 200, 300});
+        records.add(new long[]{GameJournal.playerAdded, alice, bob, 0});
+        records.add(new long[]{GameJournal.playerAdded, alice, carol, 0});
+        records.add(new long[]{GameJournal.roleAdded, alice, 4, 0});
+        records.add(new long[]{GameJournal.roleAdded, alice, 5, 0});
+        records.add(new long[]{GameJournal.roleAdded, alice, 6, 0});
+        records.add(new long[]{GameJournal.roleRemoved, alice, 6, 0});
+
+        records.add(new long[]{GameJournal.create, dave, guild, 0});
+        records.add(new long[]{GameJournal.playerAdded, dave, 5, 0});
+        records.add(new long[]{GameJournal.removed, dave, 0, 0});
+
+        records.add(new long[]{GameJournal.stateChanged, alice, GameState.PREGAME.ordinal(), 0});
+        records.add(new long[]{GameJournal.roleAssigned, alice, bob, 4});
+        records.add(new long[]{GameJournal.roleAssigned, alice, carol, 5});
+        records.add(new long[]{GameJournal.roleAssigned, alice, alice, 4});
+        records.add(new long[]{GameJournal.rolesCleared, alice, alice, 0});
+        records.add(new long[]{GameJournal.roleAssigned, alice, alice, 5});
+        records.add(new long[]{GameJournal.stateChanged, alice, GameState.ACTIVE.ordinal(), 0});
+        records.add(new long[]{GameJournal.abilityUsed, alice, GameJournal.veto, 0});
+
+        records.add(new long[]{GameJournal.create, bob + 10, guild + 1, 0});
+        records.add(new long[]{GameJournal.playerAdded, bob + 10, dave, 0});
+        records.add(new long[]{GameJournal.playerRemoved, bob + 10, dave, 0});
+        records.add(new long[]{GameJournal.roleAdded, bob + 10, 9, 0});
+        return records;
+    }
+
+    /**
+     * The active games followed by many changes that mostly undo each other
+     *
+     * @param count
+     * @return Records as {type, owner, a, b}
+     */
+    private static List<long[]> churn(int count) {
+        List<long[]> records = activeGames();
+        for (int i = 0; i < count; i++) {
+            long player = 1000 + i % 7;
+            records.add(new long[]{i % 2 == 0 ? GameJournal.playerAdded : GameJournal.playerRemoved, bob + 10, player, 0});
+            if (i % 50 == 0) {
+                // Roles are only held once the game has left NEW
+                GameState state = GameState.values()[i / 50 % 3];
+                records.add(new long[]{GameJournal.stateChanged, alice, state.ordinal(), 0});
+                if (state != GameState.NEW) {
+                    records.add(new long[]{GameJournal.roleAssigned, alice, bob, i % 11});
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Writes the given records to the journal and closes it
+     *
+     * @param journal
+     * @param records
+     */
+    private static void write(GameJournal journal, List<long[]> records) {
+        records.forEach(record -> journal.append((byte) record[0], record[1], record[2], record[3]));
+        journal.close();
+    }
+
+    /**
+     * Applies the given records to fresh images the way the journal does
+     *
+     * @param records
+     * @return Owner ID -> image
+     */
+    private static Map<Long, GameImage> expectedImages(List<long[]> records) {
+        Map<Long, GameImage> images = new LinkedHashMap<>();
+        for (long[] record : records) {
+            if (record[0] == GameJournal.create) {
+                images.put(record[1], new GameImage(record[1], record[2]));
+            } else if (record[0] == GameJournal.removed) {
+                images.remove(record[1]);
+            } else {
+                images.get(record[1]).apply((byte) record[0], record[2], record[3]);
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Checks that the given journal recovered exactly the expected games, then
+     * closes it
+     *
+     * @param expected
+     * @param journal
+     */
+    private static void assertRecovered(Map<Long, GameImage> expected, GameJournal journal) {
+        try {
+            List<GameImage> recovered = journal.getRecoveredGames();
+            assertEquals(expected.size(), recovered.size());
+            for (GameImage image : recovered) {
+                GameImage expectedImage = expected.get(image.ownerId);
+                assertNotNull(expectedImage, "recovered a game that should not exist: " + image.ownerId);
+                assertSameImage(expectedImage, image);
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * Checks that two images describe the same game
+     *
+     * @param expected
+     * @param actual
+     */
+    private static void assertSameImage(GameImage expected, GameImage actual) {
+        assertEquals(expected.ownerId, actual.ownerId);
+        assertEquals(expected.guildId, actual.guildId);
+        assertEquals(expected.channelId, actual.channelId);
+        assertEquals(expected.messageId, actual.messageId);
+        assertEquals(expected.players, actual.players);
+        assertEquals(expected.roles, actual.roles);
+        assertEquals(expected.state, actual.state);
+        assertEquals(expected.heldRoles, actual.heldRoles);
+        assertTrue(Arrays.equals(expected.abilitiesUsed, actual.abilitiesUsed), "abilities used differ");
+    }
+
+    /**
+     * Gives the number of records a snapshot of the given images takes
+     *
+     * @param images
+     * @return
+     */
+    private static int snapshotSize(Map<Long, GameImage> images) {
+        return images.values().stream().mapToInt(image -> image.toRecords().size()).sum();
+    }
+
+    /**
+     * Counts the records in the given journal file up to the first empty one
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    private static int countRecords(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        int count = 0;
+        for (int position = headerSize; position + recordSize <= buffer.limit() && buffer.get(position) != 0; position += recordSize) {
+            count++;
+        }
+        return count;
+    }
+}
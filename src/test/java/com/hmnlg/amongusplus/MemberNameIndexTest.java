@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for MemberNameIndex, including names removed often enough for the
+ * tree to be rebuilt.
+ *
+ * @author maikotui
+ */
+public class MemberNameIndexTest {
+
+    private MemberNameIndex index;
+
+    @BeforeEach
+    public void setUp() {
+        index = new MemberNameIndex();
+        index.add("Alice", 1);
+        index.add("Alicia", 2);
+        index.add("Bob", 3);
+    }
+
+    @Test
+    public void findsNamesWithinTheDistanceIgnoringCase() {
+        assertEquals(List.of(1L), userIds(index.search("ALICE", 0)));
+        assertEquals(List.of(1L, 2L), userIds(index.search("alice", 2)));
+        assertEquals(List.of(3L), userIds(index.search("bop", 1)));
+        assertEquals(List.of(), userIds(index.search("carol", 2)));
+    }
+
+    @Test
+    public void removedMembersAreNotFound() {
+        index.remove("alice", 1);
+
+        assertEquals(List.of(2L), userIds(index.search("alice", 2)));
+        assertEquals(2, index.size());
+
+        // Removing someone who doesn't go by the name changes nothing
+        index.remove("Alicia", 3);
+        assertEquals(List.of(2L), userIds(index.search("alicia", 0)));
+    }
+
+    @Test
+    public void membersSharingANameAreRemovedOneAtATime() {
+        index.add("Bob", 4);
+        assertEquals(List.of(3L, 4L), userIds(index.search("bob", 0)).stream().sorted().collect(Collectors.toList()));
+
+        index.remove("Bob", 3);
+        assertEquals(List.of(4L), userIds(index.search("bob", 0)));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void renamedMembersAreFoundByTheirNewName() {
+        index.remove("Bob", 3);
+        index.add("Robert", 3);
+
+        assertEquals(List.of(), userIds(index.search("bob", 0)));
+        assertEquals(List.of(3L), userIds(index.search("robert", 0)));
+
+        // Taking a name back reuses its empty node
+        index.add("Bob", 3);
+        assertEquals(List.of(3L), userIds(index.search("bob", 0)));
+    }
+
+    @Test
+    public void survivorsAreFoundAfterARebuild() {
+        int members = 300;
+        for (int i = 0; i < members; i++) {
+            index.add("member" + i, 100 + i);
+        }
+        // Far more empty nodes than the index tolerates, so the tree is rebuilt
+        for (int i = 0; i < members; i++) {
+            index.remove("member" + i, 100 + i);
+        }
+
+        assertEquals(3, index.size());
+        assertEquals(List.of(1L, 2L), userIds(index.search("alice", 2)));
+        assertEquals(List.of(3L), userIds(index.search("bob", 0)));
+        assertEquals(List.of(), userIds(index.search("member0", 1)));
+
+        index.add("member0", 100);
+        assertEquals(List.of(100L), userIds(index.search("member0", 0)));
+    }
+
+    @Test
+    public void fillsOnlyOnce() {
+        AtomicInteger fills = new AtomicInteger();
+        MemberNameIndex empty = new MemberNameIndex();
+        for (int i = 0; i < 3; i++) {
+            empty.fillOnce(filling -> {
+                fills.incrementAndGet();
+                filling.add("Alice", 1);
+            });
+        }
+
+        assertEquals(1, fills.get());
+        assertEquals(List.of(1L), userIds(empty.search("alice", 0)));
+    }
+
+    /**
+     * Gives the user IDs of the given matches, in order
+     *
+     * @param matches
+     * @return
+     */
+    private static List<Long> userIds(List<MemberNameIndex.Match> matches) {
+        return matches.stream().map(MemberNameIndex.Match::getUserId).collect(Collectors.toList());
+    }
+}
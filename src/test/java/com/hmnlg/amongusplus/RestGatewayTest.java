@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import net.dv8tion.jda.core.requests.RestAction;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the order RestGateway hands requests to JDA in. Nothing is sent:
+ * the gateway under test only remembers the requests it hands over, and a
+ * test answers them one at a time to free up the budget. Requests are told
+ * apart by their success callbacks, which write down a label once answered.
+ *
+ * @author maikotui
+ */
+public class RestGatewayTest {
+
+    private Metrics metrics;
+    private Deque<Consumer<Object>> handedOver;
+    private List<String> answered;
+    private RestGateway gateway;
+
+    @BeforeEach
+    public void setUp() {
+        metrics = new Metrics();
+        handedOver = new ArrayDeque<>();
+        answered = new ArrayList<>();
+        gateway = gateway(1, 10);
+    }
+
+    @Test
+    public void moreImportantRequestsOvertake() {
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "first");
+        queue(RestRoute.REACTION_REMOVE, RestPriority.COSMETIC, "cosmetic");
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "normal");
+        queue(RestRoute.MESSAGE_EDIT, RestPriority.CRITICAL, "critical");
+
+        answerAll();
+        assertEquals(List.of("first", "critical", "normal", "cosmetic"), answered);
+    }
+
+    @Test
+    public void oldestGoesFirstAcrossRoutes() {
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "first");
+        queue(RestRoute.MESSAGE_DELETE, RestPriority.NORMAL, "delete");
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "send");
+        queue(RestRoute.REACTION_ADD, RestPriority.NORMAL, "reaction");
+
+        answerAll();
+        assertEquals(List.of("first", "delete", "send", "reaction"), answered);
+    }
+
+    @Test
+    public void routesWithoutBudgetLetOthersPass() {
+        gateway = gateway(10, 1);
+        queue(RestRoute.MESSAGE_EDIT, RestPriority.CRITICAL, "edit");
+        queue(RestRoute.MESSAGE_EDIT, RestPriority.CRITICAL, "second edit");
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "send");
+
+        // The second edit waits for the first, the send doesn't
+        assertEquals(2, handedOver.size());
+        answerAll();
+        assertEquals(List.of("edit", "send", "second edit"), answered);
+    }
+
+    @Test
+    public void tooManyCosmeticRequestsAreShed() {
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "first");
+        List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < 257; i++) {
+            gateway.queue(RestRoute.REACTION_REMOVE, RestPriority.COSMETIC, null, null, failures::add);
+        }
+
+        // Only the last one found the line full
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof CancellationException);
+        assertEquals(1, counter(RestRoute.REACTION_REMOVE, "shed"));
+
+        // Critical requests are never shed
+        queue(RestRoute.MESSAGE_EDIT, RestPriority.CRITICAL, "critical");
+        answer();
+        assertEquals(List.of("first"), answered);
+        answer();
+        assertEquals(List.of("first", "critical"), answered);
+    }
+
+    @Test
+    public void replacedRequestKeepsItsPlaceAndCallbacks() {
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "first");
+        Object key = new Object();
+        gateway.queue(RestRoute.MESSAGE_EDIT, RestPriority.NORMAL, key, null, result -> answered.add("edit"), null);
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "send");
+
+        AtomicInteger made = new AtomicInteger();
+        assertTrue(gateway.replaceWaiting(key, () -> {
+            made.incrementAndGet();
+            return null;
+        }));
+        assertEquals(1, made.get());
+
+        answerAll();
+        assertEquals(List.of("first", "edit", "send"), answered);
+        assertEquals(1, counter(RestRoute.MESSAGE_EDIT, "queued"));
+        // Keeping the waiting action doesn't supersede anything
+        assertEquals(0, counter(RestRoute.MESSAGE_EDIT, "superseded"));
+    }
+
+    @Test
+    public void sentRequestsCantBeReplaced() {
+        Object key = new Object();
+        gateway.queue(RestRoute.MESSAGE_EDIT, RestPriority.CRITICAL, key, null, result -> answered.add("edit"), null);
+
+        AtomicInteger made = new AtomicInteger();
+        assertFalse(gateway.replaceWaiting(key, () -> {
+            made.incrementAndGet();
+            return null;
+        }));
+        assertFalse(gateway.replaceWaiting(new Object(), () -> {
+            made.incrementAndGet();
+            return null;
+        }));
+        assertEquals(0, made.get());
+    }
+
+    @Test
+    public void requestSentWhileItsReplacementIsMadeIsNotReplaced() {
+        queue(RestRoute.MESSAGE_SEND, RestPriority.NORMAL, "first");
+        Object key = new Object();
+        gateway.queue(RestRoute.MESSAGE_EDIT, RestPriority.CRITICAL, key, null, result -> answered.add("edit"), null);
+
+        // The budget frees up while the replacement is made, so the waiting edit is sent as it was
+        assertFalse(gateway.replaceWaiting(key, () -> {
+            answer();
+            return null;
+        }));
+        answerAll();
+        assertEquals(List.of("first", "edit"), answered);
+    }
+
+    /**
+     * Makes a gateway that remembers the requests it hands over instead of
+     * sending them
+     *
+     * @param maximumInFlight
+     * @param routeBudget
+     * @return
+     */
+    private RestGateway gateway(long maximumInFlight, int routeBudget) {
+        return new RestGateway(metrics, maximumInFlight, route -> routeBudget) {
+            @Override
+            @SuppressWarnings("unchecked")
+            protected <T> void execute(RestRoute route, RestAction<T> action, Consumer<? super T> success, Consumer<? super Throwable> failure) {
+                handedOver.addLast((Consumer<Object>) success);
+            }
+        };
+    }
+
+    /**
+     * Queues a request that writes down the given label once answered
+     *
+     * @param route
+     * @param priority
+     * @param label
+     */
+    private void queue(RestRoute route, RestPriority priority, String label) {
+        gateway.queue(route, priority, null, result -> answered.add(label));
+    }
+
+    /**
+     * Answers the oldest request handed over, which hands over the next one
+     */
+    private void answer() {
+        handedOver.pollFirst().accept(null);
+    }
+
+    /**
+     * Answers requests until none are left
+     */
+    private void answerAll() {
+        while (!handedOver.isEmpty()) {
+            answer();
+        }
+    }
+
+    /**
+     * Gives the number of requests of the given route with the given outcome
+     *
+     * @param route
+     * @param outcome
+     * @return
+     */
+    private long counter(RestRoute route, String outcome) {
+        return metrics.counter("discord_rest_requests_total", "Requests made to Discord by route and outcome", "route", route.getName(), "outcome", outcome).get();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for RoleCatalog lookups and incompatibilities, and for the checks
+ * CompiledRoles.validate adds on top of them.
+ *
+ * @author maikotui
+ */
+public class RoleCatalogTest {
+
+    @Test
+    public void findsExactNamesAndAliasesIgnoringCase() {
+        RoleCatalog catalog = new RoleCatalog(roles(role(3, "Sheriff", "sher"), role(4, "Shapeshifter")));
+
+        assertSame(catalog.getById(3), catalog.find("sheriff"));
+        assertSame(catalog.getById(3), catalog.find("  SHER "));
+        assertSame(catalog.getCrewRole(), catalog.find("crewmate"));
+    }
+
+    @Test
+    public void findsTheOnlyRoleStartingWithTheQuery() {
+        RoleCatalog catalog = new RoleCatalog(roles(role(3, "Sheriff", "sher"), role(4, "Shapeshifter")));
+
+        assertSame(catalog.getById(4), catalog.find("shap"));
+        // Both keys of the sheriff start with "she", which is still one role
+        assertSame(catalog.getById(3), catalog.find("she"));
+    }
+
+    @Test
+    public void prefixOfSeveralRolesFindsNothing() {
+        RoleCatalog catalog = new RoleCatalog(roles(role(3, "Sheriff", "sher"), role(4, "Shapeshifter")));
+
+        assertNull(catalog.find("sh"));
+        assertNull(catalog.find("s"));
+        assertNull(catalog.find("spy"));
+        assertNull(catalog.find(" "));
+    }
+
+    @Test
+    public void exactNameWinsOverLongerNames() {
+        RoleCatalog catalog = new RoleCatalog(roles(role(3, "Spy"), role(4, "Spymaster")));
+
+        assertSame(catalog.getById(3), catalog.find("spy"));
+        assertSame(catalog.getById(4), catalog.find("spym"));
+    }
+
+    @Test
+    public void rejectsNamesUsedByTwoRoles() {
+        assertThrows(IllegalArgumentException.class, () -> new RoleCatalog(roles(role(3, "Sheriff", "sh"), role(4, "Shapeshifter", "SH"))));
+        assertThrows(IllegalArgumentException.class, () -> new RoleCatalog(roles(role(3, "Sheriff"), role(3, "Shapeshifter"))));
+    }
+
+    @Test
+    public void incompatibilitiesComeFromEachRolesOwnList() {
+        GameRole sheriff = role(3, "Sheriff");
+        sheriff.unstackableRoleIds = new int[]{RoleCatalog.imposterRoleId};
+        RoleCatalog catalog = new RoleCatalog(roles(sheriff));
+        GameRole imposter = catalog.getImposterRole();
+
+        assertEquals(imposter.getMask(), catalog.getIncompatibleMask(sheriff));
+        assertFalse(catalog.isCompatible(sheriff, imposter.getMask()));
+        assertTrue(catalog.isCompatible(sheriff, catalog.getCrewRole().getMask()));
+        // Nothing is filled in for the other side, and the roles are left as they were
+        assertEquals(0, catalog.getIncompatibleMask(imposter));
+        assertNull(imposter.unstackableRoleIds);
+    }
+
+    @Test
+    public void rejectsUnknownUnstackableRoles() {
+        GameRole sheriff = role(3, "Sheriff");
+        sheriff.unstackableRoleIds = new int[]{9};
+
+        assertThrows(IllegalArgumentException.class, () -> new RoleCatalog(roles(sheriff)));
+    }
+
+    @Test
+    public void validateRejectsOneSidedIncompatibilities() {
+        GameRole sheriff = role(3, "Sheriff");
+        sheriff.unstackableRoleIds = new int[]{RoleCatalog.imposterRoleId};
+        List<GameRole> roles = roles(sheriff);
+
+        assertThrows(IllegalArgumentException.class, () -> CompiledRoles.validate(roles));
+
+        // The imposter lists the sheriff back
+        roles.get(1).unstackableRoleIds = new int[]{3};
+        CompiledRoles.validate(roles);
+    }
+
+    /**
+     * Gives the crewmate and imposter roles followed by the given roles
+     *
+     * @param extraRoles
+     * @return
+     */
+    static List<GameRole> roles(GameRole... extraRoles) {
+        List<GameRole> roles = new ArrayList<>();
+        roles.add(role(RoleCatalog.crewRoleId, "Crewmate"));
+        roles.add(role(RoleCatalog.imposterRoleId, "Imposter"));
+        roles.addAll(List.of(extraRoles));
+        for (GameRole role : roles) {
+            role.isDefault = role.id == RoleCatalog.crewRoleId || role.id == RoleCatalog.imposterRoleId;
+        }
+        return roles;
+    }
+
+    /**
+     * Makes a role with the given ID, name and aliases
+     *
+     * @param id
+     * @param name
+     * @param aliases
+     * @return
+     */
+    static GameRole role(int id, String name, String... aliases) {
+        GameRole role = new GameRole();
+        role.id = id;
+        role.name = name;
+        role.aliases = aliases;
+        return role;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2020 maikotui
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.hmnlg.amongusplus;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for RoleDistributor. Every distribution is repeated many times,
+ * since the roles and players are shuffled before they are matched.
+ *
+ * @author maikotui
+ */
+public class RoleDistributorTest {
+
+    private static final int runs = 200;
+
+    private RoleCatalog catalog;
+    private GameRole crew;
+    private GameRole imposter;
+
+    /**
+     * Can't be held with the imposter role
+     */
+    private GameRole sheriff;
+
+    /**
+     * Can't be held with the crewmate role
+     */
+    private GameRole saboteur;
+
+    /**
+     * Can be held with anything
+     */
+    private GameRole jester;
+
+    @BeforeEach
+    public void setUp() {
+        sheriff = RoleCatalogTest.role(3, "Sheriff");
+        sheriff.unstackableRoleIds = new int[]{RoleCatalog.imposterRoleId};
+        saboteur = RoleCatalogTest.role(4, "Saboteur");
+        saboteur.unstackableRoleIds = new int[]{RoleCatalog.crewRoleId};
+        jester = RoleCatalogTest.role(5, "Jester");
+        List<GameRole> roles = RoleCatalogTest.roles(sheriff, saboteur, jester);
+        roles.get(0).unstackableRoleIds = new int[]{4};
+        roles.get(1).unstackableRoleIds = new int[]{3};
+        CompiledRoles.validate(roles);
+
+        catalog = new RoleCatalog(roles);
+        crew = catalog.getCrewRole();
+        imposter = catalog.getImposterRole();
+    }
+
+    @Test
+    public void findsAnAssignmentAroundIncompatibleRoles() throws GeneralGameException {
+        // Only the imposter can be the saboteur, so the jester must go to a crewmate
+        long[] held = {crew.getMask(), imposter.getMask(), crew.getMask()};
+        List<GameRole> roles = List.of(jester, sheriff, saboteur);
+
+        for (int seed = 0; seed < runs; seed++) {
+            int[] players = RoleDistributor.distribute(roles, held, catalog, new Random(seed));
+            assertValid(roles, held, players);
+            assertEquals(1, players[2]);
+        }
+    }
+
+    @Test
+    public void reachesEveryValidAssignment() throws GeneralGameException {
+        long[] held = {crew.getMask(), crew.getMask(), imposter.getMask()};
+        List<GameRole> roles = List.of(sheriff, jester);
+
+        Set<List<Integer>> seen = new HashSet<>();
+        Random rand = new Random(0);
+        for (int i = 0; i < runs; i++) {
+            int[] players = RoleDistributor.distribute(roles, held, catalog, rand);
+            assertValid(roles, held, players);
+            seen.add(List.of(players[0], players[1]));
+        }
+        // The sheriff goes to either crewmate and the jester to anyone else
+        assertEquals(Set.of(List.of(0, 1), List.of(0, 2), List.of(1, 0), List.of(1, 2)), seen);
+    }
+
+    @Test
+    public void rejectsMoreRolesThanPlayers() {
+        long[] held = {crew.getMask(), imposter.getMask()};
+
+        assertThrows(GeneralGameException.class, () -> RoleDistributor.distribute(List.of(sheriff, saboteur, jester), held, catalog, new Random(0)));
+    }
+
+    @Test
+    public void rejectsARoleNobodyCanHold() {
+        long[] held = {crew.getMask(), crew.getMask(), crew.getMask()};
+
+        GeneralGameException ex = assertThrows(GeneralGameException.class, () -> RoleDistributor.distribute(List.of(jester, saboteur), held, catalog, new Random(0)));
+        assertTrue(ex.getMessage().contains("'Saboteur'"), ex.getMessage());
+    }
+
+    @Test
+    public void rejectsRolesCompetingForTooFewPlayers() {
+        // Like the saboteur, the mimic only fits the one imposter
+        GameRole mimic = RoleCatalogTest.role(6, "Mimic");
+        mimic.unstackableRoleIds = new int[]{RoleCatalog.crewRoleId};
+        List<GameRole> roles = RoleCatalogTest.roles(mimic, saboteur);
+        RoleCatalog withMimic = new RoleCatalog(roles);
+        long[] held = {crew.getMask(), imposter.getMask(), crew.getMask()};
+
+        for (int seed = 0; seed < runs; seed++) {
+            Random rand = new Random(seed);
+            GeneralGameException ex = assertThrows(GeneralGameException.class, () -> RoleDistributor.distribute(List.of(mimic, saboteur), held, withMimic, rand));
+            assertTrue(ex.getMessage().contains("1 player(s)"), ex.getMessage());
+        }
+    }
+
+    /**
+     * Checks that every role went to a different player who can hold it
+     *
+     * @param roles
+     * @param held
+     * @param players
+     */
+    private void assertValid(List<GameRole> roles, long[] held, int[] players) {
+        assertEquals(roles.size(), players.length);
+        Set<Integer> used = new HashSet<>();
+        for (int role = 0; role < players.length; role++) {
+            assertTrue(used.add(players[role]), "Two roles went to player " + players[role]);
+            assertTrue(catalog.isCompatible(roles.get(role), held[players[role]]), roles.get(role) + " went to a player who can't hold it");
+        }
+    }
+}